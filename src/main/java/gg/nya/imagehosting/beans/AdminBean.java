@@ -1,8 +1,12 @@
 package gg.nya.imagehosting.beans;
 
 import gg.nya.imagehosting.config.ApplicationContextProvider;
+import gg.nya.imagehosting.models.CacheStatistics;
+import gg.nya.imagehosting.models.ConnectionPoolStatistics;
 import gg.nya.imagehosting.models.Role;
 import gg.nya.imagehosting.models.User;
+import gg.nya.imagehosting.services.CacheStatisticsService;
+import gg.nya.imagehosting.services.ConnectionPoolStatisticsService;
 import gg.nya.imagehosting.services.RoleService;
 import gg.nya.imagehosting.services.UserService;
 import jakarta.annotation.PostConstruct;
@@ -36,14 +40,17 @@ public class AdminBean implements Serializable {
 
     private transient UserService userService;
     private transient RoleService roleService;
+    private transient CacheStatisticsService cacheStatisticsService;
+    private transient ConnectionPoolStatisticsService connectionPoolStatisticsService;
 
     private static final Logger log = LoggerFactory.getLogger(AdminBean.class);
 
     private long totalUserCount;
-    private int page = 0;
+    private long lastUserId = 0;
 
     @Autowired
-    public AdminBean(UserService userService, RoleService roleService) {
+    public AdminBean(UserService userService, RoleService roleService, CacheStatisticsService cacheStatisticsService,
+                     ConnectionPoolStatisticsService connectionPoolStatisticsService) {
         this.users = new ArrayList<>();
         this.roles = new ArrayList<>();
         this.selectedRolesToAdd = new HashMap<>();
@@ -51,6 +58,8 @@ public class AdminBean implements Serializable {
         this.currentUserRoles = new HashMap<>();
         this.userService = userService;
         this.roleService = roleService;
+        this.cacheStatisticsService = cacheStatisticsService;
+        this.connectionPoolStatisticsService = connectionPoolStatisticsService;
     }
 
     @PostConstruct
@@ -68,11 +77,13 @@ public class AdminBean implements Serializable {
             log.warn("loadMoreUsers, user requested more users, but there are no more users to load");
             return;
         }
-        log.debug("loadMoreUsers, user requested more users, loading page: {}", page);
-        List<User> newUsers = userService.getUsers(page, 10);
+        log.debug("loadMoreUsers, user requested more users, loading after user ID: {}", lastUserId);
+        List<User> newUsers = userService.getUsers(lastUserId, 10);
         users.addAll(newUsers);
         this.setUpSelectedRoles();
-        page++;
+        if (!newUsers.isEmpty()) {
+            lastUserId = newUsers.get(newUsers.size() - 1).getId();
+        }
     }
 
     /**
@@ -169,6 +180,22 @@ public class AdminBean implements Serializable {
         return users.size() < totalUserCount;
     }
 
+    /**
+     * Returns a fresh statistics snapshot of all in-memory caches.
+     * @return The statistics of all caches.
+     */
+    public List<CacheStatistics> getCacheStatistics() {
+        return cacheStatisticsService.getCacheStatistics();
+    }
+
+    /**
+     * Returns a fresh statistics snapshot of all database connection pools.
+     * @return The statistics of all connection pools.
+     */
+    public List<ConnectionPoolStatistics> getConnectionPoolStatistics() {
+        return connectionPoolStatisticsService.getConnectionPoolStatistics();
+    }
+
     @Serial
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
@@ -176,5 +203,7 @@ public class AdminBean implements Serializable {
         ApplicationContext ctx = ApplicationContextProvider.getApplicationContext();
         this.userService = ctx.getBean(UserService.class);
         this.roleService = ctx.getBean(RoleService.class);
+        this.cacheStatisticsService = ctx.getBean(CacheStatisticsService.class);
+        this.connectionPoolStatisticsService = ctx.getBean(ConnectionPoolStatisticsService.class);
     }
 }
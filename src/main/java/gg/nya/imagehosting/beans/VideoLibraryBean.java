@@ -1,7 +1,9 @@
 package gg.nya.imagehosting.beans;
 
 import gg.nya.imagehosting.config.ApplicationContextProvider;
-import gg.nya.imagehosting.models.VideoUploadUserFile;
+import gg.nya.imagehosting.models.ThumbnailSize;
+import gg.nya.imagehosting.models.VideoLibraryCursor;
+import gg.nya.imagehosting.models.VideoLibraryItem;
 import gg.nya.imagehosting.services.AuthenticationService;
 import gg.nya.imagehosting.services.VideoHostingService;
 import gg.nya.imagehosting.utils.Utils;
@@ -32,9 +34,9 @@ public class VideoLibraryBean implements Serializable {
     @Serial
     private static final long serialVersionUID = 1L;
 
-    private final List<VideoUploadUserFile> videos = new ArrayList<>();
+    private final List<VideoLibraryItem> videos = new ArrayList<>();
     private boolean canLoadMoreVideos = true;
-    private int page = 0;
+    private VideoLibraryCursor cursor = null;
     private final String requestScheme;
     private final String serverName;
     private final int serverPort;
@@ -77,7 +79,7 @@ public class VideoLibraryBean implements Serializable {
 
     /**
      * Loads more videos for the current user if available.
-     * Increments the page number after loading.
+     * Continues after the last loaded video.
      * If the number of retrieved videos is less than the maximum, sets canLoadMoreVideos to false.
      */
     public void loadMoreVideos() {
@@ -86,28 +88,30 @@ public class VideoLibraryBean implements Serializable {
             return;
         }
 
-        log.info("loadMoreVideos, user {} loading more videos, loading page: {}",
-                authenticationService.getCurrentUsername(), page);
+        log.info("loadMoreVideos, user {} loading more videos after: {}",
+                authenticationService.getCurrentUsername(), cursor);
 
-        List<VideoUploadUserFile> newVideos = videoHostingService.getVideos(page, pageSize,
+        List<VideoLibraryItem> newVideos = videoHostingService.getVideos(cursor, pageSize,
                 authenticationService.getCurrentUsername());
         if (newVideos.isEmpty() || newVideos.size() < pageSize) {
-            log.debug("loadMoreVideos, no more videos to load for user {}, page: {}, set canLoadMoreVideos=false",
-                     authenticationService.getCurrentUserId(), page);
+            log.debug("loadMoreVideos, no more videos to load for user {}, after: {}, set canLoadMoreVideos=false",
+                     authenticationService.getCurrentUserId(), cursor);
             canLoadMoreVideos = false;
         }
 
-        log.debug("loadMoreVideos, loaded {} videos for user {}, page: {}",
-                 newVideos.size(), authenticationService.getCurrentUserId(), page);
+        log.debug("loadMoreVideos, loaded {} videos for user {}, after: {}",
+                 newVideos.size(), authenticationService.getCurrentUserId(), cursor);
         videos.addAll(newVideos);
-        page++;
+        if (!newVideos.isEmpty()) {
+            cursor = VideoLibraryCursor.after(newVideos.get(newVideos.size() - 1));
+        }
     }
 
     /**
      * Getter for video list - returns a copy.
      * @return List of videos loaded for the user.
      */
-    public List<VideoUploadUserFile> getVideos() {
+    public List<VideoLibraryItem> getVideos() {
         return List.copyOf(videos);
     }
 
@@ -116,9 +120,34 @@ public class VideoLibraryBean implements Serializable {
      * @param video The video for which to get the thumbnail URL.
      * @return The thumbnail URL as a String.
      */
-    public String getThumbnailUrl(VideoUploadUserFile video) {
+    public String getThumbnailUrl(VideoLibraryItem video) {
         return Utils.createResourceURL(requestScheme, serverName, serverPort,
-                authenticationService.getCurrentUsername(), "thumbnails", "v-" + video.getFileName());
+                authenticationService.getCurrentUsername(), "thumbnails", "v-" + video.fileName());
+    }
+
+    /**
+     * Returns the URL of the tiny placeholder thumbnail for a given video, shown while the actual thumbnail loads.
+     * @param video The video for which to get the placeholder URL.
+     * @return The placeholder URL as a String.
+     */
+    public String getPlaceholderUrl(VideoLibraryItem video) {
+        return getThumbnailUrl(video) + "?size=" + ThumbnailSize.PLACEHOLDER.getParameter();
+    }
+
+    /**
+     * Returns the width of the thumbnails shown in the library, so the page can reserve their space before they load.
+     * @return The thumbnail width in pixels.
+     */
+    public int getThumbnailWidth() {
+        return ThumbnailSize.SMALL.getWidth();
+    }
+
+    /**
+     * Returns the height of the thumbnails shown in the library, so the page can reserve their space before they load.
+     * @return The thumbnail height in pixels.
+     */
+    public int getThumbnailHeight() {
+        return ThumbnailSize.SMALL.getHeight();
     }
 
     /**
@@ -126,9 +155,9 @@ public class VideoLibraryBean implements Serializable {
      * @param video The video for which to get the full URL.
      * @return The full video URL as a String.
      */
-    public String getVideoUrl(VideoUploadUserFile video) {
+    public String getVideoUrl(VideoLibraryItem video) {
         return Utils.createResourceURL(requestScheme, serverName, serverPort,
-                authenticationService.getCurrentUsername(), "v", video.getFileName());
+                authenticationService.getCurrentUsername(), "v", video.fileName());
     }
 
     /**
@@ -136,10 +165,10 @@ public class VideoLibraryBean implements Serializable {
      * @param video The video for which to get the title.
      * @return The video title or filename as a String.
      */
-    public String getVideoTitle(VideoUploadUserFile video) {
-        String title = video.getVideoTitle();
+    public String getVideoTitle(VideoLibraryItem video) {
+        String title = video.videoTitle();
         if(title == null || title.isBlank()) {
-            return video.getFileName();
+            return video.fileName();
         }
         return title;
     }
@@ -157,8 +186,8 @@ public class VideoLibraryBean implements Serializable {
      * @param video The video for which to get the creation date.
      * @return The creation date as a String.
      */
-    public String getCreatedAt(VideoUploadUserFile video) {
-        return video.getCreatedAt().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+    public String getCreatedAt(VideoLibraryItem video) {
+        return video.createdAt().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
     }
 
     /**
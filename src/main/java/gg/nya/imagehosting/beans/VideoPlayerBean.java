@@ -1,7 +1,8 @@
 package gg.nya.imagehosting.beans;
 
+import gg.nya.imagehosting.models.ThumbnailSize;
+import gg.nya.imagehosting.models.VideoPlayerView;
 import gg.nya.imagehosting.models.VideoUploadStatus;
-import gg.nya.imagehosting.models.VideoUploadUserFile;
 import gg.nya.imagehosting.services.AuthenticationService;
 import gg.nya.imagehosting.services.VideoHostingService;
 import gg.nya.imagehosting.utils.Utils;
@@ -28,7 +29,7 @@ public class VideoPlayerBean implements Serializable {
     @Serial
     private static final long serialVersionUID = 1L;
 
-    private VideoUploadUserFile video;
+    private VideoPlayerView video;
     private String username;
     private String thumbnailUrl;
     private String playerUrl;
@@ -59,7 +60,7 @@ public class VideoPlayerBean implements Serializable {
         String originalUri = (String) request.getAttribute("jakarta.servlet.forward.request_uri");
         String filename = Utils.getTrailingResourceFromUri(originalUri != null ? originalUri : request.getRequestURI());
 
-        Optional<VideoUploadUserFile> videoOpt = videoHostingService.getVideoMetadata(username, filename);
+        Optional<VideoPlayerView> videoOpt = videoHostingService.getVideoMetadata(username, filename);
         if(videoOpt.isEmpty()) {
             log.warn("Unknown video {} for user {} requested, redirecting", filename, username);
             FacesContext.getCurrentInstance().getApplication().getNavigationHandler().handleNavigation(
@@ -72,26 +73,27 @@ public class VideoPlayerBean implements Serializable {
 
         this.video = videoOpt.get();
 
-        // We do this query because the display name that the user used to register might have different capitalization from the subdomain
-        this.username = video.getVideoUploadUser().getUser().getDisplayName();
+        // We use the display name because the name that the user used to register might have different capitalization from the subdomain
+        this.username = video.displayName();
         // Construct URLs - we do not need to append the username as the request is already made to a subdomain
+        // Link embeds get the large JPEG thumbnail, since not every embed crawler supports WebP
         this.thumbnailUrl = Utils.createResourceURL(
                 request,
                 null,
                 "thumbnails",
-                "v-" + video.getFileName() + ".png"
+                "v-" + video.fileName() + ".jpg?size=" + ThumbnailSize.LARGE.getParameter()
         );
         this.playerUrl = Utils.createResourceURL(
                 request,
                 null,
                 "v",
-                video.getFileName()
+                video.fileName()
         );
         this.videoUrl = Utils.createResourceURL(
                 request,
                 null,
                 "v",
-                video.getFileName() + ".mp4"
+                video.fileName() + ".mp4"
         );
     }
 
@@ -109,7 +111,7 @@ public class VideoPlayerBean implements Serializable {
      */
     public String getVideoTitle() {
         if(video == null) return null;
-        return video.getVideoTitle();
+        return video.videoTitle();
     }
 
     /**
@@ -150,7 +152,7 @@ public class VideoPlayerBean implements Serializable {
      */
     public VideoUploadStatus getVideoStatus() {
         if(video == null) return VideoUploadStatus.FAILED;
-        return video.getUploadStatus();
+        return video.uploadStatus();
     }
 
     /**
@@ -159,6 +161,6 @@ public class VideoPlayerBean implements Serializable {
      */
     public String getTimestamp() {
         if(video == null) return "";
-        return video.getCreatedAt().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+        return video.createdAt().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
     }
 }
@@ -1,25 +1,118 @@
 package gg.nya.imagehosting.config;
 
 import com.github.benmanes.caffeine.cache.Caffeine;
+import gg.nya.imagehosting.models.ThumbnailContent;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.EnableCaching;
 import org.springframework.cache.caffeine.CaffeineCacheManager;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
-import java.util.concurrent.TimeUnit;
+import java.time.Duration;
+import java.util.List;
 
+/**
+ * Configures the named in-memory caches of the application. Each cache is sized and expired independently
+ * through the app.cache.* properties.
+ */
 @Configuration
 @EnableCaching
 public class CacheConfig {
+    /**
+     * Cache for raw image bytes, bounded by the total number of bytes held rather than the number of entries.
+     */
+    public static final String FILE_CACHE = "fileCache";
+    /**
+     * Cache for small metadata lookups, such as object sizes.
+     */
+    public static final String METADATA_CACHE = "metadataCache";
+    /**
+     * Cache for lookups that are known to miss, so repeated requests for missing resources stay cheap.
+     */
+    public static final String NEGATIVE_LOOKUP_CACHE = "negativeLookupCache";
+    /**
+     * Cache for video thumbnails read from the local disk, bounded by the total number of bytes held.
+     */
+    public static final String THUMBNAIL_CACHE = "thumbnailCache";
+    /**
+     * Cache for the usernames of users whose media recently changed, whose lookups must not be served by replicas.
+     */
+    public static final String RECENT_WRITES_CACHE = "recentWritesCache";
+    /**
+     * Near cache of HTTP sessions in front of the session table, keyed by session ID.
+     */
+    public static final String SESSION_CACHE = "sessionCache";
+
+    @Value("${app.cache.files.max-weight-bytes}")
+    private long fileCacheMaxWeightBytes;
+    @Value("${app.cache.files.expire-after-write}")
+    private Duration fileCacheExpireAfterWrite;
+    @Value("${app.cache.metadata.max-size}")
+    private long metadataCacheMaxSize;
+    @Value("${app.cache.metadata.expire-after-write}")
+    private Duration metadataCacheExpireAfterWrite;
+    @Value("${app.cache.negative-lookups.max-size}")
+    private long negativeLookupCacheMaxSize;
+    @Value("${app.cache.negative-lookups.expire-after-write}")
+    private Duration negativeLookupCacheExpireAfterWrite;
+    @Value("${app.cache.thumbnails.max-weight-bytes}")
+    private long thumbnailCacheMaxWeightBytes;
+    @Value("${app.cache.thumbnails.expire-after-access}")
+    private Duration thumbnailCacheExpireAfterAccess;
+    @Value("${app.cache.recent-writes.max-size}")
+    private long recentWritesCacheMaxSize;
+    @Value("${app.datasource.replicas.read-after-write-window}")
+    private Duration readAfterWriteWindow;
+    @Value("${app.session.write-behind.max-cached-sessions}")
+    private long sessionCacheMaxSize;
+    @Value("${spring.session.timeout}")
+    private Duration sessionTimeout;
 
     @Bean
     public CacheManager cacheManager() {
-        CaffeineCacheManager cacheManager = new CaffeineCacheManager("fileCache");
-        cacheManager.setCaffeine(Caffeine.newBuilder()
-                .maximumSize(200) // Cache up to 200 files
-                .expireAfterWrite(30, TimeUnit.MINUTES) // Cache entries expire after 30 minutes
-                .recordStats());
+        CaffeineCacheManager cacheManager = new CaffeineCacheManager();
+        // Disable dynamic cache creation - only the caches registered below may be used
+        cacheManager.setCacheNames(List.of());
+
+        // Files are weighed by their size in bytes, so the cache holds a fixed amount of heap regardless of file sizes
+        cacheManager.registerCustomCache(FILE_CACHE, Caffeine.newBuilder()
+                .maximumWeight(fileCacheMaxWeightBytes)
+                .weigher((Object key, Object value) -> value instanceof byte[] bytes ? bytes.length : 1)
+                .expireAfterWrite(fileCacheExpireAfterWrite)
+                .recordStats()
+                .build());
+
+        cacheManager.registerCustomCache(METADATA_CACHE, Caffeine.newBuilder()
+                .maximumSize(metadataCacheMaxSize)
+                .expireAfterWrite(metadataCacheExpireAfterWrite)
+                .recordStats()
+                .build());
+
+        cacheManager.registerCustomCache(NEGATIVE_LOOKUP_CACHE, Caffeine.newBuilder()
+                .maximumSize(negativeLookupCacheMaxSize)
+                .expireAfterWrite(negativeLookupCacheExpireAfterWrite)
+                .recordStats()
+                .build());
+
+        cacheManager.registerCustomCache(THUMBNAIL_CACHE, Caffeine.newBuilder()
+                .maximumWeight(thumbnailCacheMaxWeightBytes)
+                .weigher((Object key, Object value) -> value instanceof ThumbnailContent thumbnail ? thumbnail.data().length : 1)
+                .expireAfterAccess(thumbnailCacheExpireAfterAccess)
+                .recordStats()
+                .build());
+
+        cacheManager.registerCustomCache(RECENT_WRITES_CACHE, Caffeine.newBuilder()
+                .maximumSize(recentWritesCacheMaxSize)
+                .expireAfterWrite(readAfterWriteWindow)
+                .build());
+
+        // Sessions are also checked for expiry on every lookup, since their timeout may differ from the default
+        cacheManager.registerCustomCache(SESSION_CACHE, Caffeine.newBuilder()
+                .maximumSize(sessionCacheMaxSize)
+                .expireAfterAccess(sessionTimeout)
+                .recordStats()
+                .build());
         return cacheManager;
     }
 }
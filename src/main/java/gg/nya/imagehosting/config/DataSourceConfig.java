@@ -0,0 +1,149 @@
+package gg.nya.imagehosting.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.task.ThreadPoolTaskSchedulerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.task.TaskDecorator;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Configures the connection pools of the primary database and its optional read replicas, and the data source
+ * the application uses, which routes each transaction to one of them. The primary database has separate pools for
+ * web requests and background work, each with its own sizing and leak detection.
+ */
+@Configuration
+public class DataSourceConfig {
+
+    @Value("${app.datasource.replicas.urls}")
+    private List<String> replicaUrls;
+    @Value("${app.datasource.replicas.pool-size}")
+    private int replicaPoolSize;
+    @Value("${app.datasource.replicas.max-lag}")
+    private Duration replicaMaxLag;
+    @Value("${app.datasource.replicas.connection-timeout}")
+    private long replicaConnectionTimeout;
+    @Value("${app.datasource.replicas.leak-detection-threshold}")
+    private long replicaLeakDetectionThreshold;
+
+    /**
+     * @return The tracker of the acquisition times of all connection pools.
+     */
+    @Bean
+    public PoolMetricsTrackerFactory poolMetricsTrackerFactory() {
+        return new PoolMetricsTrackerFactory();
+    }
+
+    /**
+     * @param properties The spring.datasource.* properties.
+     * @param poolMetricsTrackerFactory The tracker of connection acquisition times.
+     * @return The connection pool of web requests on the primary database, configured through
+     * spring.datasource.hikari.*.
+     */
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource webDataSource(DataSourceProperties properties,
+                                          PoolMetricsTrackerFactory poolMetricsTrackerFactory) {
+        HikariDataSource dataSource = properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        dataSource.setMetricsTrackerFactory(poolMetricsTrackerFactory);
+        return dataSource;
+    }
+
+    /**
+     * @param properties The spring.datasource.* properties.
+     * @param poolMetricsTrackerFactory The tracker of connection acquisition times.
+     * @return The connection pool of background work on the primary database, configured through
+     * app.datasource.background.hikari.*.
+     */
+    @Bean
+    @ConfigurationProperties("app.datasource.background.hikari")
+    public HikariDataSource backgroundDataSource(DataSourceProperties properties,
+                                                 PoolMetricsTrackerFactory poolMetricsTrackerFactory) {
+        HikariDataSource dataSource = properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        dataSource.setMetricsTrackerFactory(poolMetricsTrackerFactory);
+        return dataSource;
+    }
+
+    /**
+     * Marks all {@code @Async} tasks as background work. Applied to the auto-configured task executor.
+     *
+     * @return The task decorator.
+     */
+    @Bean
+    public TaskDecorator backgroundTaskDecorator() {
+        return WorkloadRoutingDataSource.markAsBackground();
+    }
+
+    /**
+     * Marks all {@code @Scheduled} tasks as background work.
+     *
+     * @return The customizer of the auto-configured task scheduler.
+     */
+    @Bean
+    public ThreadPoolTaskSchedulerCustomizer backgroundTaskSchedulerCustomizer() {
+        return scheduler -> scheduler.setTaskDecorator(WorkloadRoutingDataSource.markAsBackground());
+    }
+
+    /**
+     * Creates a read-only connection pool for each configured replica. Replicas use the credentials of the primary,
+     * and the connection timeout and leak detection threshold of app.datasource.replicas.*.
+     *
+     * @param properties The spring.datasource.* properties.
+     * @param webDataSource The connection pool of web requests on the primary database.
+     * @param backgroundDataSource The connection pool of background work on the primary database.
+     * @param poolMetricsTrackerFactory The tracker of connection acquisition times.
+     * @return The routing data source.
+     */
+    @Bean
+    public ReplicaRoutingDataSource replicaRoutingDataSource(DataSourceProperties properties,
+                                                             @Qualifier("webDataSource") HikariDataSource webDataSource,
+                                                             @Qualifier("backgroundDataSource")
+                                                             HikariDataSource backgroundDataSource,
+                                                             PoolMetricsTrackerFactory poolMetricsTrackerFactory) {
+        Map<String, DataSource> replicas = new LinkedHashMap<>();
+        for (String url : replicaUrls) {
+            if (url.isBlank()) {
+                continue;
+            }
+            String name = "replica-" + replicas.size();
+            HikariDataSource replica = new HikariDataSource();
+            replica.setPoolName(name);
+            replica.setJdbcUrl(url.strip());
+            replica.setUsername(properties.determineUsername());
+            replica.setPassword(properties.determinePassword());
+            replica.setMaximumPoolSize(replicaPoolSize);
+            replica.setConnectionTimeout(replicaConnectionTimeout);
+            replica.setLeakDetectionThreshold(replicaLeakDetectionThreshold);
+            replica.setReadOnly(true);
+            replica.setMetricsTrackerFactory(poolMetricsTrackerFactory);
+            replicas.put(name, replica);
+        }
+        WorkloadRoutingDataSource primary = new WorkloadRoutingDataSource(webDataSource, backgroundDataSource);
+        primary.afterPropertiesSet();
+        return new ReplicaRoutingDataSource(primary, replicas, replicaMaxLag);
+    }
+
+    /**
+     * The data source used by JPA, Flyway and all other database access. Connections are only taken from a pool when
+     * the first statement is run, so the routing can take the read-only flag of the transaction into account.
+     *
+     * @param replicaRoutingDataSource The routing data source.
+     * @return The application data source.
+     */
+    @Bean
+    @Primary
+    public DataSource dataSource(ReplicaRoutingDataSource replicaRoutingDataSource) {
+        return new LazyConnectionDataSourceProxy(replicaRoutingDataSource);
+    }
+}
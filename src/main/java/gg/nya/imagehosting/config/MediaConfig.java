@@ -0,0 +1,35 @@
+package gg.nya.imagehosting.config;
+
+import net.bramp.ffmpeg.FFmpeg;
+import net.bramp.ffmpeg.FFmpegExecutor;
+import net.bramp.ffmpeg.FFprobe;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+
+/**
+ * Configuration of the media processing tools shared by the image and video pipelines.
+ */
+@Configuration
+public class MediaConfig {
+
+    @Value("${media.ffmpeg.path}")
+    private String ffmpegPath;
+    @Value("${media.ffprobe.path}")
+    private String ffprobePath;
+
+    /**
+     * Creates the FFmpeg executor with the configured paths to the FFmpeg and FFprobe binaries.
+     *
+     * @return The shared FFmpeg executor.
+     * @throws IOException if the binaries cannot be found or accessed.
+     */
+    @Bean
+    public FFmpegExecutor ffmpegExecutor() throws IOException {
+        FFmpeg ffmpeg = new FFmpeg(ffmpegPath);
+        FFprobe ffprobe = new FFprobe(ffprobePath);
+        return new FFmpegExecutor(ffmpeg, ffprobe);
+    }
+}
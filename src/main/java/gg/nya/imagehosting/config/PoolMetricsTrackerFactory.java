@@ -0,0 +1,97 @@
+package gg.nya.imagehosting.config;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the connection acquisition times and timeouts of the connection pools it is registered with, by pool name.
+ */
+public class PoolMetricsTrackerFactory implements MetricsTrackerFactory {
+
+    private final Map<String, PoolMetricsTracker> trackers = new ConcurrentHashMap<>();
+
+    @Override
+    public IMetricsTracker create(String poolName, PoolStats poolStats) {
+        PoolMetricsTracker tracker = new PoolMetricsTracker(poolName, poolStats);
+        trackers.put(poolName, tracker);
+        return tracker;
+    }
+
+    /**
+     * @return The trackers of all pools that were started, by pool name.
+     */
+    public Map<String, PoolMetricsTracker> getTrackers() {
+        return Map.copyOf(trackers);
+    }
+
+    /**
+     * @param poolName The name of the pool.
+     * @return The tracker of the pool, or empty if the pool was not started yet.
+     */
+    public Optional<PoolMetricsTracker> getTracker(String poolName) {
+        return Optional.ofNullable(trackers.get(poolName));
+    }
+
+    /**
+     * Metrics of a single connection pool.
+     */
+    public static class PoolMetricsTracker implements IMetricsTracker {
+        private final String poolName;
+        private final PoolStats poolStats;
+        private final LongAdder acquireCount = new LongAdder();
+        private final LongAdder acquireNanos = new LongAdder();
+        private final AtomicLong maxAcquireNanos = new AtomicLong();
+        private final LongAdder timeoutCount = new LongAdder();
+
+        private PoolMetricsTracker(String poolName, PoolStats poolStats) {
+            this.poolName = poolName;
+            this.poolStats = poolStats;
+        }
+
+        @Override
+        public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+            acquireCount.increment();
+            acquireNanos.add(elapsedAcquiredNanos);
+            maxAcquireNanos.accumulateAndGet(elapsedAcquiredNanos, Math::max);
+        }
+
+        @Override
+        public void recordConnectionTimeout() {
+            timeoutCount.increment();
+        }
+
+        public String getPoolName() {
+            return poolName;
+        }
+
+        /**
+         * @return The connection counts of the pool, refreshed by the pool at most once per second.
+         */
+        public PoolStats getPoolStats() {
+            return poolStats;
+        }
+
+        public long getAcquireCount() {
+            return acquireCount.sum();
+        }
+
+        public long getAcquireNanos() {
+            return acquireNanos.sum();
+        }
+
+        public long getMaxAcquireNanos() {
+            return maxAcquireNanos.get();
+        }
+
+        public long getTimeoutCount() {
+            return timeoutCount.sum();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package gg.nya.imagehosting.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Data source that routes connections to the primary database or one of its read replicas.
+ * <p>
+ * Replicas are only used where a caller explicitly opted in through {@link #readFromReplica(Supplier)}, and only
+ * for read-only transactions, since plain repository reads also run in read-only transactions and feed
+ * read-modify-write flows that must see the latest state. Replicas are checked periodically and only used while
+ * they are caught up with the primary or lag behind it by less than the configured maximum. Everything else,
+ * including all reads while no replica is usable, goes to the primary.
+ * <p>
+ * The routing decision is made when a connection is first used, so this data source must be wrapped in a lazy
+ * connection proxy for the read-only flag of the transaction to be known at that point.
+ */
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource {
+
+    private static final String PRIMARY = "primary";
+    private static final ThreadLocal<Boolean> replicaAllowed = ThreadLocal.withInitial(() -> false);
+
+    private final DataSource primary;
+    private final Map<String, DataSource> replicas;
+    private final Duration maxLag;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private volatile List<String> usableReplicas = List.of();
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicaRoutingDataSource.class);
+
+    /**
+     * Creates a new routing data source. No replica is used until the first lag check.
+     *
+     * @param primary The primary database.
+     * @param replicas The read replicas, by name.
+     * @param maxLag The maximum replication lag of a replica to be used.
+     */
+    public ReplicaRoutingDataSource(DataSource primary, Map<String, DataSource> replicas, Duration maxLag) {
+        this.primary = primary;
+        this.replicas = Map.copyOf(replicas);
+        this.maxLag = maxLag;
+        Map<Object, Object> targets = new HashMap<>(replicas);
+        targets.put(PRIMARY, primary);
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(primary);
+    }
+
+    /**
+     * @return True if any read replicas are configured.
+     */
+    public boolean hasReplicas() {
+        return !replicas.isEmpty();
+    }
+
+    /**
+     * Runs the given query, allowing the read-only transactions it starts to be served by a replica.
+     *
+     * @param query The query to run.
+     * @return The result of the query.
+     * @param <T> The type of the result.
+     */
+    public <T> T readFromReplica(Supplier<T> query) {
+        boolean previous = replicaAllowed.get();
+        replicaAllowed.set(true);
+        try {
+            return query.get();
+        } finally {
+            replicaAllowed.set(previous);
+        }
+    }
+
+    /**
+     * Closes the connection pools of the replicas. The primary pool is closed by its own bean.
+     */
+    public void close() {
+        for (DataSource replica : replicas.values()) {
+            if (replica instanceof AutoCloseable closeable) {
+                try {
+                    closeable.close();
+                } catch (Exception e) {
+                    log.warn("close, could not close replica connection pool", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        if (!replicaAllowed.get() || !TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            return PRIMARY;
+        }
+        List<String> candidates = usableReplicas;
+        if (candidates.isEmpty()) {
+            return PRIMARY;
+        }
+        return candidates.get(Math.floorMod(nextReplica.getAndIncrement(), candidates.size()));
+    }
+
+    /**
+     * Measures the replication lag of all replicas and updates the set of replicas that may be used. A replica is
+     * usable if it has replayed everything the primary had written at the start of the check, or if its last
+     * replayed transaction is younger than the maximum lag. A database that is not in recovery is the primary
+     * itself, which allows using a single database as both primary and replica.
+     */
+    @Scheduled(fixedDelayString = "${app.datasource.replicas.check-interval-ms}")
+    public void checkReplicas() {
+        if (replicas.isEmpty()) {
+            return;
+        }
+        String primaryLsn;
+        try (Connection connection = primary.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT pg_current_wal_lsn()::text")) {
+            resultSet.next();
+            primaryLsn = resultSet.getString(1);
+        } catch (SQLException e) {
+            log.warn("checkReplicas, could not read the WAL position of the primary, not using replicas", e);
+            usableReplicas = List.of();
+            return;
+        }
+
+        List<String> usable = new ArrayList<>();
+        for (Map.Entry<String, DataSource> replica : replicas.entrySet()) {
+            if (isUsable(replica.getKey(), replica.getValue(), primaryLsn)) {
+                usable.add(replica.getKey());
+            }
+        }
+        if (usable.size() != usableReplicas.size()) {
+            log.info("checkReplicas, {} of {} replicas are usable: {}", usable.size(), replicas.size(), usable);
+        }
+        usableReplicas = List.copyOf(usable);
+    }
+
+    private boolean isUsable(String name, DataSource replica, String primaryLsn) {
+        String query = "SELECT pg_is_in_recovery(), pg_wal_lsn_diff(?::pg_lsn, pg_last_wal_replay_lsn()), " +
+                "EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp())";
+        try (Connection connection = replica.getConnection();
+             PreparedStatement statement = connection.prepareStatement(query)) {
+            statement.setString(1, primaryLsn);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                boolean inRecovery = resultSet.getBoolean(1);
+                // Either value is null until the replica has replayed anything
+                long bytesBehind = resultSet.getLong(2);
+                boolean caughtUp = !resultSet.wasNull() && bytesBehind <= 0;
+                double secondsBehind = resultSet.getDouble(3);
+                boolean recent = !resultSet.wasNull() && secondsBehind * 1000 <= maxLag.toMillis();
+                boolean usable = !inRecovery || caughtUp || recent;
+                if (!usable) {
+                    log.debug("isUsable, replica {} is {} bytes and {}s behind the primary", name, bytesBehind,
+                            secondsBehind);
+                }
+                return usable;
+            }
+        } catch (SQLException e) {
+            log.warn("isUsable, could not check replica {}, not using it", name, e);
+            return false;
+        }
+    }
+}
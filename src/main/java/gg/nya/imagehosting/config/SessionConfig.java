@@ -0,0 +1,89 @@
+package gg.nya.imagehosting.config;
+
+import gg.nya.imagehosting.services.CacheInvalidationService;
+import org.springframework.beans.factory.BeanClassLoaderAware;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.session.JdbcSessionProperties;
+import org.springframework.boot.autoconfigure.session.SessionProperties;
+import org.springframework.boot.autoconfigure.web.ServerProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.context.properties.PropertyMapper;
+import org.springframework.cache.CacheManager;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.session.config.SessionRepositoryCustomizer;
+import org.springframework.session.jdbc.JdbcIndexedSessionRepository;
+import org.springframework.session.jdbc.config.annotation.web.http.EnableJdbcHttpSession;
+
+import java.time.Duration;
+
+/**
+ * Configures the HTTP session store: Spring Session JDBC behind a write-behind near cache. Defining the write-behind
+ * repository makes Spring Boot back off from configuring Spring Session, so the JDBC repository is set up by
+ * {@link EnableJdbcHttpSession} instead, and spring.session.* is applied to it here the way Spring Boot would.
+ */
+@Configuration
+@EnableJdbcHttpSession
+@EnableConfigurationProperties({SessionProperties.class, JdbcSessionProperties.class})
+public class SessionConfig implements BeanClassLoaderAware {
+
+    @Value("${app.session.write-behind.sticky-sessions}")
+    private boolean stickySessions;
+    @Value("${app.session.write-behind.access-flush-interval-ms}")
+    private long accessFlushIntervalMs;
+
+    private ClassLoader beanClassLoader;
+
+    @Override
+    public void setBeanClassLoader(ClassLoader classLoader) {
+        this.beanClassLoader = classLoader;
+    }
+
+    /**
+     * @param sessionProperties The spring.session.* properties.
+     * @param jdbcSessionProperties The spring.session.jdbc.* properties.
+     * @param serverProperties The server.* properties, for the servlet session timeout if no session timeout is set.
+     * @return The customizer applying the properties and the attribute serialization of the write-behind repository
+     * to the JDBC repository.
+     */
+    @Bean
+    public SessionRepositoryCustomizer<JdbcIndexedSessionRepository> jdbcSessionRepositoryCustomizer(
+            SessionProperties sessionProperties, JdbcSessionProperties jdbcSessionProperties,
+            ServerProperties serverProperties) {
+        return jdbcRepository -> {
+            PropertyMapper map = PropertyMapper.get().alwaysApplyingWhenNonNull();
+            map.from(sessionProperties.determineTimeout(() -> serverProperties.getServlet().getSession().getTimeout()))
+                    .to(jdbcRepository::setDefaultMaxInactiveInterval);
+            map.from(jdbcSessionProperties::getTableName).to(jdbcRepository::setTableName);
+            map.from(jdbcSessionProperties::getFlushMode).to(jdbcRepository::setFlushMode);
+            map.from(jdbcSessionProperties::getSaveMode).to(jdbcRepository::setSaveMode);
+            jdbcRepository.setConversionService(WriteBehindSessionRepository.createConversionService(beanClassLoader));
+            // Expired sessions are cleaned up on spring.session.jdbc.cleanup-cron by the write-behind repository, which
+            // writes its queued access times first and leaves the other nodes a flush interval to write theirs
+            jdbcRepository.setCleanupCron(Scheduled.CRON_DISABLED);
+        };
+    }
+
+    /**
+     * @param jdbcRepository The JDBC session repository configured by Spring Session.
+     * @param jdbcTemplate JDBC template to write queued access times.
+     * @param jdbcSessionProperties The spring.session.jdbc.* properties, for the name of the session table.
+     * @param cacheManager The cache manager, to retrieve the session near cache.
+     * @param cacheInvalidationService Service to drop changed sessions from the near caches of the other nodes.
+     * @return The session repository used by the session filter.
+     */
+    @Bean
+    @Primary
+    public WriteBehindSessionRepository writeBehindSessionRepository(JdbcIndexedSessionRepository jdbcRepository,
+                                                                     JdbcTemplate jdbcTemplate,
+                                                                     JdbcSessionProperties jdbcSessionProperties,
+                                                                     CacheManager cacheManager,
+                                                                     CacheInvalidationService cacheInvalidationService) {
+        return new WriteBehindSessionRepository(jdbcRepository, jdbcTemplate, jdbcSessionProperties.getTableName(),
+                cacheManager.getCache(CacheConfig.SESSION_CACHE), cacheInvalidationService, stickySessions,
+                Duration.ofMillis(accessFlushIntervalMs));
+    }
+}
@@ -0,0 +1,75 @@
+package gg.nya.imagehosting.config;
+
+import org.springframework.core.task.TaskDecorator;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+import javax.sql.DataSource;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Data source that separates the connection pool of web requests from the one of background work, so a burst of
+ * background work cannot starve page renders and media lookups of connections, and vice versa.
+ * <p>
+ * Work is background work if it runs on a thread marked through {@link #markAsBackground()}, which applies to all
+ * {@code @Async} and {@code @Scheduled} tasks, or on a thread of {@link #backgroundThreadFactory(String)}, which
+ * applies to the application's own worker pools. Everything else, in particular every request thread, uses the web
+ * pool.
+ */
+public class WorkloadRoutingDataSource extends AbstractRoutingDataSource {
+
+    private static final String WEB = "web";
+    private static final String BACKGROUND = "background";
+    private static final ThreadLocal<Boolean> background = ThreadLocal.withInitial(() -> false);
+
+    /**
+     * Creates a new routing data source.
+     *
+     * @param webDataSource The connection pool of web requests.
+     * @param backgroundDataSource The connection pool of background work.
+     */
+    public WorkloadRoutingDataSource(DataSource webDataSource, DataSource backgroundDataSource) {
+        setTargetDataSources(Map.of(WEB, webDataSource, BACKGROUND, backgroundDataSource));
+        setDefaultTargetDataSource(webDataSource);
+    }
+
+    /**
+     * Creates a task decorator that runs each task as background work.
+     *
+     * @return The task decorator.
+     */
+    public static TaskDecorator markAsBackground() {
+        return task -> () -> {
+            boolean previous = background.get();
+            background.set(true);
+            try {
+                task.run();
+            } finally {
+                background.set(previous);
+            }
+        };
+    }
+
+    /**
+     * Creates a factory of daemon threads that run as background work for their whole lifetime, for worker pools
+     * the application builds itself.
+     *
+     * @param namePrefix The name of the threads, which is followed by their number.
+     * @return The thread factory.
+     */
+    public static ThreadFactory backgroundThreadFactory(String namePrefix) {
+        TaskDecorator taskDecorator = markAsBackground();
+        AtomicInteger threadNumber = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(taskDecorator.decorate(runnable), namePrefix + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        return background.get() ? BACKGROUND : WEB;
+    }
+}
@@ -0,0 +1,492 @@
+package gg.nya.imagehosting.config;
+
+import gg.nya.imagehosting.services.CacheInvalidationService;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cache.Cache;
+import org.springframework.core.convert.ConversionService;
+import org.springframework.core.convert.support.GenericConversionService;
+import org.springframework.core.serializer.support.DeserializingConverter;
+import org.springframework.core.serializer.support.SerializationFailedException;
+import org.springframework.core.serializer.support.SerializingConverter;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.session.Session;
+import org.springframework.session.SessionRepository;
+import org.springframework.session.jdbc.JdbcIndexedSessionRepository;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Session repository that keeps sessions in an in-memory near cache in front of Spring Session JDBC, and only writes
+ * to the database what actually changed.
+ * <p>
+ * Attributes are written when they were set to a value that serializes differently from the last written one, so
+ * JSF re-setting its unchanged view state at the end of every request costs no write. The serialized form is handed
+ * to the JDBC repository through the conversion service of {@link #createConversionService}, so every written
+ * attribute is serialized once. Requests that change no attribute only move the last access time forward, which is
+ * queued and written for all sessions in one batch every flush interval, so a node that crashes loses at most one
+ * interval of access times and its sessions expire that much earlier. New sessions, changed session IDs and deletions
+ * are written right away.
+ * <p>
+ * With sticky sessions, all requests of a session reach the same node, so its cached copy is served without reading
+ * the database. Writes, deletions and written access times are broadcast to the other nodes, which drop their copy,
+ * so a session that fails over and back is not served stale. A copy that looks expired is checked against the
+ * database, since another node may have kept the session alive in the meantime. A session whose queued access time
+ * finds no row to update was deleted elsewhere, so its copy is dropped. Expired sessions are only deleted once they
+ * have been expired for a full flush interval, so a session kept alive by an access time still queued on another node
+ * survives until that node writes it. Without sticky sessions, consecutive
+ * requests may reach different nodes faster than broadcasts arrive, so every request loads the session from the
+ * database and only the write savings apply.
+ */
+public class WriteBehindSessionRepository implements SessionRepository<WriteBehindSessionRepository.CachedSession> {
+
+    private static final String FLUSH_ACCESS_TIMES_QUERY = "UPDATE %TABLE_NAME%" +
+            " SET LAST_ACCESS_TIME = GREATEST(LAST_ACCESS_TIME, ?), MAX_INACTIVE_INTERVAL = ?, " +
+            "EXPIRY_TIME = GREATEST(EXPIRY_TIME, ?) WHERE SESSION_ID = ?";
+    private static final String DELETE_EXPIRED_SESSIONS_QUERY = "DELETE FROM %TABLE_NAME% WHERE EXPIRY_TIME < ?";
+
+    /**
+     * Serialized forms of attribute values exchanged with the JDBC repository on the current thread, by value
+     * identity. Filled before a session is written, so the repository writes them instead of serializing the values
+     * again, and while a session is loaded, so its digests come from the bytes that were read.
+     */
+    private static final ThreadLocal<Map<Object, byte[]>> serializedForms = new ThreadLocal<>();
+
+    private final SessionRepository<Session> delegate;
+    private final JdbcTemplate jdbcTemplate;
+    private final String flushAccessTimesQuery;
+    private final String deleteExpiredSessionsQuery;
+    private final Duration accessFlushInterval;
+    private final Cache sessionCache;
+    private final CacheInvalidationService cacheInvalidationService;
+    private final boolean stickySessions;
+    private final Map<String, PendingAccess> pendingAccessTimes = new ConcurrentHashMap<>();
+
+    private static final Logger log = LoggerFactory.getLogger(WriteBehindSessionRepository.class);
+
+    /**
+     * Creates a new write-behind session repository.
+     *
+     * @param jdbcRepository The repository that stores the sessions in the database. Must use the conversion service
+     *                       of {@link #createConversionService}.
+     * @param jdbcTemplate JDBC template to write the queued access times.
+     * @param tableName The name of the session table of the JDBC repository.
+     * @param sessionCache The near cache of sessions, keyed by session ID.
+     * @param cacheInvalidationService Service to drop changed sessions from the near caches of the other nodes.
+     * @param stickySessions True if all requests of a session are routed to the same node.
+     * @param accessFlushInterval The interval at which every node writes its queued access times.
+     */
+    @SuppressWarnings("unchecked")
+    public WriteBehindSessionRepository(JdbcIndexedSessionRepository jdbcRepository, JdbcTemplate jdbcTemplate,
+                                        String tableName, Cache sessionCache,
+                                        CacheInvalidationService cacheInvalidationService, boolean stickySessions,
+                                        Duration accessFlushInterval) {
+        // The session type of the JDBC repository is not public, its sessions are only handed back to it
+        this.delegate = (SessionRepository<Session>) (SessionRepository<?>) jdbcRepository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.flushAccessTimesQuery = FLUSH_ACCESS_TIMES_QUERY.replace("%TABLE_NAME%", tableName);
+        this.deleteExpiredSessionsQuery = DELETE_EXPIRED_SESSIONS_QUERY.replace("%TABLE_NAME%", tableName);
+        this.accessFlushInterval = accessFlushInterval;
+        this.sessionCache = sessionCache;
+        this.cacheInvalidationService = cacheInvalidationService;
+        this.stickySessions = stickySessions;
+    }
+
+    /**
+     * Creates the conversion service the JDBC repository must use to serialize attributes. It is the repository's
+     * default Java serialization, except that values this repository already serialized are not serialized again.
+     *
+     * @param classLoader The class loader to deserialize attributes with.
+     * @return The conversion service.
+     */
+    public static ConversionService createConversionService(ClassLoader classLoader) {
+        SerializingConverter serializer = new SerializingConverter();
+        DeserializingConverter deserializer = new DeserializingConverter(classLoader);
+        GenericConversionService conversionService = new GenericConversionService();
+        conversionService.addConverter(Object.class, byte[].class, source -> {
+            Map<Object, byte[]> forms = serializedForms.get();
+            byte[] serialized = forms == null ? null : forms.get(source);
+            return serialized != null ? serialized : serializer.convert(source);
+        });
+        conversionService.addConverter(byte[].class, Object.class, source -> {
+            Object value = deserializer.convert(source);
+            Map<Object, byte[]> forms = serializedForms.get();
+            if (forms != null && value != null) {
+                forms.put(value, source);
+            }
+            return value;
+        });
+        return conversionService;
+    }
+
+    @Override
+    public CachedSession createSession() {
+        return new CachedSession(delegate.createSession(), true);
+    }
+
+    @Override
+    public void save(CachedSession session) {
+        synchronized (session) {
+            String previousId = session.persistedId;
+            boolean written = session.flush(delegate);
+            if (written) {
+                pendingAccessTimes.remove(session.getId());
+                if (previousId != null && !previousId.equals(session.getId())) {
+                    sessionCache.evict(previousId);
+                    pendingAccessTimes.remove(previousId);
+                    cacheInvalidationService.broadcast(CacheInvalidationService.Scope.SESSION, previousId);
+                }
+                cacheInvalidationService.broadcast(CacheInvalidationService.Scope.SESSION, session.getId());
+            } else if (session.getLastAccessedTime().isAfter(session.flushedAccessTime)) {
+                pendingAccessTimes.put(session.getId(), new PendingAccess(session.getLastAccessedTime(),
+                        session.getMaxInactiveInterval()));
+            }
+        }
+        if (stickySessions) {
+            sessionCache.put(session.getId(), session);
+        }
+    }
+
+    @Override
+    public CachedSession findById(String id) {
+        if (stickySessions) {
+            CachedSession cached = sessionCache.get(id, CachedSession.class);
+            if (cached != null) {
+                if (!cached.isExpired()) {
+                    return cached;
+                }
+                // Another node may have served the session since, so only the database can tell if it expired
+                sessionCache.evict(id);
+            }
+        }
+
+        Session stored = delegate.findById(id);
+        if (stored == null) {
+            return null;
+        }
+        // The stored access time may lag behind one that is still queued on this node
+        PendingAccess pending = pendingAccessTimes.get(id);
+        if (pending != null && pending.lastAccessedTime().isAfter(stored.getLastAccessedTime())) {
+            stored.setLastAccessedTime(pending.lastAccessedTime());
+        }
+        CachedSession session = new CachedSession(stored, false);
+        if (stickySessions) {
+            sessionCache.put(id, session);
+        }
+        return session;
+    }
+
+    @Override
+    public void deleteById(String id) {
+        sessionCache.evict(id);
+        pendingAccessTimes.remove(id);
+        delegate.deleteById(id);
+        cacheInvalidationService.broadcast(CacheInvalidationService.Scope.SESSION, id);
+    }
+
+    /**
+     * Writes the queued access times of all sessions in one batch. Access times only ever move forward, so a queued
+     * time older than one written by another node in the meantime is ignored. Sessions whose row is gone were deleted
+     * by another node, through a logout or the cleanup, so their cached copy is dropped instead of being served on.
+     */
+    @Scheduled(fixedDelayString = "${app.session.write-behind.access-flush-interval-ms}")
+    public void flushAccessTimes() {
+        if (pendingAccessTimes.isEmpty()) {
+            return;
+        }
+
+        List<Object[]> batch = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        Map<String, PendingAccess> flushed = new HashMap<>();
+        Iterator<Map.Entry<String, PendingAccess>> iterator = pendingAccessTimes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, PendingAccess> entry = iterator.next();
+            PendingAccess access = entry.getValue();
+            long lastAccessedTime = access.lastAccessedTime().toEpochMilli();
+            long expiryTime = access.maxInactiveInterval().isNegative() ? Long.MAX_VALUE :
+                    lastAccessedTime + access.maxInactiveInterval().toMillis();
+            batch.add(new Object[]{lastAccessedTime, (int) access.maxInactiveInterval().toSeconds(), expiryTime,
+                    entry.getKey()});
+            ids.add(entry.getKey());
+            flushed.put(entry.getKey(), access);
+            iterator.remove();
+        }
+
+        try {
+            int[] updateCounts = jdbcTemplate.batchUpdate(flushAccessTimesQuery, batch);
+            int deleted = 0;
+            for (int i = 0; i < ids.size(); i++) {
+                String id = ids.get(i);
+                if (updateCounts[i] == 0) {
+                    sessionCache.evict(id);
+                    deleted++;
+                } else if (sessionCache.get(id, CachedSession.class) instanceof CachedSession cached) {
+                    cached.markAccessFlushed(flushed.get(id).lastAccessedTime());
+                }
+            }
+            log.trace("flushAccessTimes, wrote the access times of {} sessions, dropped {} deleted sessions",
+                    batch.size() - deleted, deleted);
+            // Other nodes only hold copies of sessions that failed over, which would otherwise keep their older access
+            // time. Dropping the broadcast when the queue is full is safe, since copies that look expired are checked.
+            if (stickySessions && !cacheInvalidationService.broadcastIfCapacity(CacheInvalidationService.Scope.SESSION,
+                    flushed.keySet())) {
+                log.debug("flushAccessTimes, skipped broadcasting the access times of {} sessions", batch.size());
+            }
+        } catch (DataAccessException e) {
+            // Keep the access times for the next attempt, unless a newer one was queued in the meantime
+            log.warn("flushAccessTimes, could not write the access times of {} sessions, retrying later",
+                    batch.size(), e);
+            flushed.forEach(pendingAccessTimes::putIfAbsent);
+        }
+    }
+
+    /**
+     * Deletes the sessions that have been expired for longer than the access flush interval from the database. Queued
+     * access times are written first, and the other nodes write theirs within the interval, so sessions that are still
+     * in use are not deleted. The attributes of the sessions are deleted along with them by the foreign key.
+     */
+    @Scheduled(cron = "${spring.session.jdbc.cleanup-cron}")
+    public void cleanUpExpiredSessions() {
+        flushAccessTimes();
+        long expiredBefore = Instant.now().minus(accessFlushInterval).toEpochMilli();
+        int deleted = jdbcTemplate.update(deleteExpiredSessionsQuery, expiredBefore);
+        log.debug("cleanUpExpiredSessions, deleted {} expired sessions", deleted);
+    }
+
+    /**
+     * Writes the queued access times before the node shuts down.
+     */
+    @PreDestroy
+    public void shutdown() {
+        flushAccessTimes();
+    }
+
+    /**
+     * An access time that has not been written to the database yet.
+     *
+     * @param lastAccessedTime The time of the last request of the session.
+     * @param maxInactiveInterval The time after the last request at which the session expires.
+     */
+    private record PendingAccess(Instant lastAccessedTime, Duration maxInactiveInterval) {
+    }
+
+    /**
+     * Session held in the near cache. Keeps its attributes as live objects, and tracks which of them were set since
+     * they were last written, along with a digest of their last written form.
+     */
+    public static final class CachedSession implements Session {
+
+        private final Session stored;
+        private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+        private final Map<String, byte[]> writtenDigests = new HashMap<>();
+        private final Set<String> dirtyAttributes = ConcurrentHashMap.newKeySet();
+        private volatile Instant lastAccessedTime;
+        private volatile Duration maxInactiveInterval;
+        private String persistedId;
+        private Instant flushedAccessTime;
+        private Duration flushedMaxInactiveInterval;
+
+        private CachedSession(Session stored, boolean isNew) {
+            this.stored = stored;
+            this.lastAccessedTime = stored.getLastAccessedTime();
+            this.maxInactiveInterval = stored.getMaxInactiveInterval();
+            this.persistedId = isNew ? null : stored.getId();
+            this.flushedAccessTime = isNew ? Instant.EPOCH : stored.getLastAccessedTime();
+            this.flushedMaxInactiveInterval = stored.getMaxInactiveInterval();
+            // The JDBC repository deserializes attributes on first access, recording the bytes it read
+            Map<Object, byte[]> forms = new IdentityHashMap<>();
+            serializedForms.set(forms);
+            try {
+                for (String name : stored.getAttributeNames()) {
+                    Object value = stored.getAttribute(name);
+                    attributes.put(name, value);
+                    byte[] serialized = forms.get(value);
+                    writtenDigests.put(name, digest(serialized != null ? serialized : serialize(value)));
+                }
+            } finally {
+                serializedForms.remove();
+            }
+        }
+
+        @Override
+        public String getId() {
+            return stored.getId();
+        }
+
+        @Override
+        public synchronized String changeSessionId() {
+            return stored.changeSessionId();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T getAttribute(String attributeName) {
+            return (T) attributes.get(attributeName);
+        }
+
+        @Override
+        public Set<String> getAttributeNames() {
+            return new HashSet<>(attributes.keySet());
+        }
+
+        @Override
+        public void setAttribute(String attributeName, Object attributeValue) {
+            if (attributeValue == null) {
+                removeAttribute(attributeName);
+                return;
+            }
+            attributes.put(attributeName, attributeValue);
+            dirtyAttributes.add(attributeName);
+        }
+
+        @Override
+        public void removeAttribute(String attributeName) {
+            attributes.remove(attributeName);
+            dirtyAttributes.add(attributeName);
+        }
+
+        @Override
+        public Instant getCreationTime() {
+            return stored.getCreationTime();
+        }
+
+        @Override
+        public void setLastAccessedTime(Instant lastAccessedTime) {
+            this.lastAccessedTime = lastAccessedTime;
+        }
+
+        @Override
+        public Instant getLastAccessedTime() {
+            return lastAccessedTime;
+        }
+
+        @Override
+        public void setMaxInactiveInterval(Duration interval) {
+            this.maxInactiveInterval = interval;
+        }
+
+        @Override
+        public Duration getMaxInactiveInterval() {
+            return maxInactiveInterval;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return !maxInactiveInterval.isNegative() &&
+                    Instant.now().minus(maxInactiveInterval).compareTo(lastAccessedTime) >= 0;
+        }
+
+        /**
+         * Writes the session to the database if it is new, its ID changed, its timeout changed or any of its set
+         * attributes serializes differently than when it was last written. Only the changed attributes are written.
+         * Must be called while holding the lock of the session.
+         *
+         * @param repository The JDBC repository to write the session to.
+         * @return True if the session was written, including its current access time.
+         */
+        private boolean flush(SessionRepository<Session> repository) {
+            boolean changed = persistedId == null || !persistedId.equals(stored.getId()) ||
+                    !maxInactiveInterval.equals(flushedMaxInactiveInterval);
+            Map<String, byte[]> digests = new HashMap<>();
+            Map<Object, byte[]> forms = new IdentityHashMap<>();
+            for (Iterator<String> iterator = dirtyAttributes.iterator(); iterator.hasNext(); ) {
+                String name = iterator.next();
+                iterator.remove();
+                Object value = attributes.get(name);
+                if (value == null) {
+                    if (writtenDigests.containsKey(name)) {
+                        stored.removeAttribute(name);
+                        digests.put(name, null);
+                        changed = true;
+                    }
+                    continue;
+                }
+                byte[] serialized = serialize(value);
+                byte[] digest = digest(serialized);
+                if (digest == null || !Arrays.equals(digest, writtenDigests.get(name))) {
+                    stored.setAttribute(name, value);
+                    digests.put(name, digest);
+                    if (serialized != null) {
+                        forms.put(value, serialized);
+                    }
+                    changed = true;
+                }
+            }
+            if (!changed) {
+                return false;
+            }
+
+            stored.setLastAccessedTime(lastAccessedTime);
+            stored.setMaxInactiveInterval(maxInactiveInterval);
+            serializedForms.set(forms);
+            try {
+                repository.save(stored);
+            } catch (RuntimeException e) {
+                // The attributes were not written, so they are compared again on the next save
+                dirtyAttributes.addAll(digests.keySet());
+                throw e;
+            } finally {
+                serializedForms.remove();
+            }
+            digests.forEach((name, digest) -> {
+                if (digest == null) {
+                    writtenDigests.remove(name);
+                } else {
+                    writtenDigests.put(name, digest);
+                }
+            });
+            persistedId = stored.getId();
+            flushedAccessTime = lastAccessedTime;
+            flushedMaxInactiveInterval = maxInactiveInterval;
+            return true;
+        }
+
+        private synchronized void markAccessFlushed(Instant accessTime) {
+            if (accessTime.isAfter(flushedAccessTime)) {
+                flushedAccessTime = accessTime;
+            }
+        }
+
+        /**
+         * Serializes an attribute value the same way the JDBC repository does.
+         *
+         * @param value The attribute value.
+         * @return The serialized value, or null if it cannot be serialized, in which case it is always written so the
+         * JDBC repository reports the error.
+         */
+        private static byte[] serialize(Object value) {
+            try {
+                return new SerializingConverter().convert(value);
+            } catch (SerializationFailedException e) {
+                return null;
+            }
+        }
+
+        private static byte[] digest(byte[] serialized) {
+            if (serialized == null) {
+                return null;
+            }
+            try {
+                return MessageDigest.getInstance("SHA-256").digest(serialized);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not supported", e);
+            }
+        }
+    }
+}
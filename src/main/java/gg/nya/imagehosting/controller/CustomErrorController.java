@@ -1,6 +1,9 @@
 package gg.nya.imagehosting.controller;
 
 import org.springframework.boot.web.servlet.error.ErrorController;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import jakarta.servlet.RequestDispatcher;
@@ -9,17 +12,47 @@ import jakarta.servlet.http.HttpServletRequest;
 @Controller
 public class CustomErrorController implements ErrorController {
 
+    /**
+     * Handles all error dispatches. Errors of raw media requests (images, video files, thumbnails) are answered with
+     * a minimal plain text body, since nobody looks at them in a browser and rendering the error page is comparatively
+     * expensive. All other errors are rendered by the error page.
+     *
+     * @param request The error dispatch request.
+     * @return A plain text response for media requests, otherwise the view name of the error page.
+     */
     @RequestMapping("/error")
-    public String handleError(HttpServletRequest request) {
+    public Object handleError(HttpServletRequest request) {
         // Store error attributes in request scope
         Object status = request.getAttribute(RequestDispatcher.ERROR_STATUS_CODE);
         Object exception = request.getAttribute(RequestDispatcher.ERROR_EXCEPTION);
         Object message = request.getAttribute(RequestDispatcher.ERROR_MESSAGE);
 
+        if (isMediaRequest((String) request.getAttribute(RequestDispatcher.ERROR_REQUEST_URI))) {
+            HttpStatus httpStatus = status instanceof Integer code && HttpStatus.resolve(code) != null
+                    ? HttpStatus.valueOf(code) : HttpStatus.INTERNAL_SERVER_ERROR;
+            return ResponseEntity.status(httpStatus)
+                    .contentType(MediaType.TEXT_PLAIN)
+                    .body(httpStatus.value() + " " + httpStatus.getReasonPhrase());
+        }
+
         request.setAttribute("errorStatus", status);
         request.setAttribute("errorException", exception);
         request.setAttribute("errorMessage", message);
 
         return "/error.xhtml";
     }
-}
\ No newline at end of file
+
+    /**
+     * Checks if the request URI belongs to a raw media endpoint. The video player page (/v/ without .mp4) is not
+     * considered a media request.
+     *
+     * @param uri The original request URI.
+     * @return True if the URI targets an image, a video file or a thumbnail.
+     */
+    private boolean isMediaRequest(String uri) {
+        if (uri == null) {
+            return false;
+        }
+        return uri.startsWith("/i/") || uri.startsWith("/thumbnails/") || (uri.startsWith("/v/") && uri.endsWith(".mp4"));
+    }
+}
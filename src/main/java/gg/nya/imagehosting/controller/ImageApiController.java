@@ -1,20 +1,28 @@
 package gg.nya.imagehosting.controller;
 
+import gg.nya.imagehosting.models.ByteRange;
 import gg.nya.imagehosting.models.ImageApiEntity;
+import gg.nya.imagehosting.models.ImageBatchApiEntity;
+import gg.nya.imagehosting.models.ImageContent;
 import gg.nya.imagehosting.services.ImageHostingService;
 import gg.nya.imagehosting.utils.Utils;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.List;
 
 @RestController
 public class ImageApiController {
@@ -28,17 +36,51 @@ public class ImageApiController {
     }
 
     @GetMapping(value = "/i/{filename}", produces = MediaType.ALL_VALUE)
-    public ResponseEntity<InputStreamResource> getImage(@PathVariable String filename, HttpServletRequest request) {
+    public void getImage(@PathVariable String filename,
+                         @RequestParam(value = "w", required = false) Integer width,
+                         @RequestParam(value = "h", required = false) Integer height,
+                         @RequestParam(value = "fmt", required = false) String format,
+                         HttpServletRequest request, HttpServletResponse response) throws IOException {
         String serverName = request.getServerName();
         String user = Utils.getLeadingSubdomainFromUri(serverName);
-        log.info("getImage, image requested for user {}, filename: {}", user, filename);
-        ByteArrayInputStream imageStream = imageHostingService.retrieveImage(user, filename);
-        imageStream.reset();
-        MediaType contentType = imageHostingService.getMediaType(filename);
-
-        return ResponseEntity.ok()
-                .contentType(contentType)
-                .body(new InputStreamResource(imageStream));
+        log.info("getImage, image requested for user {}, filename: {}, width: {}, height: {}, format: {}",
+                user, filename, width, height, format);
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        ImageContent content = imageHostingService.retrieveImage(user, filename, width, height, format,
+                request.getHeader(HttpHeaders.ACCEPT), ifNoneMatch);
+        // The served format may depend on the Accept header, so shared caches must key on it
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        if (content.eTag() != null) {
+            response.setHeader(HttpHeaders.ETAG, content.eTag());
+            if (content.isCurrent(ifNoneMatch)) {
+                response.setStatus(HttpStatus.NOT_MODIFIED.value());
+                return;
+            }
+        }
+        ByteRange range = ByteRange.parse(request.getHeader(HttpHeaders.RANGE), content.size());
+        final long start = range != null ? range.start() : 0;
+        final long length = range != null ? range.length() : content.size();
+
+        response.setContentType(content.mediaType().toString());
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (range != null) {
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, range.toContentRange(content.size()));
+        }
+        response.setContentLengthLong(length);
+        if (length == 0) {
+            return;
+        }
+
+        if (content.isStreamed()) {
+            try (InputStream in = imageHostingService.getImageStream(user, content.objectName(), start, start + length - 1)) {
+                in.transferTo(response.getOutputStream());
+            }
+            return;
+        }
+        // Write the buffer straight to the response - off-heap buffers are transferred in small chunks, never as a whole
+        ByteBuffer image = content.data().slice(content.data().position() + (int) start, (int) length);
+        Channels.newChannel(response.getOutputStream()).write(image);
     }
 
     @PostMapping(value = "/i/", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
@@ -48,7 +90,21 @@ public class ImageApiController {
     ) throws IOException {
         String apiKey = request.getHeader("X-API-Key");
         log.info("uploadImage, image upload requested for user with API key {}, original file name {}", apiKey, file.getOriginalFilename());
-        ImageApiEntity response = imageHostingService.uploadImageForUser(request, apiKey, file.getInputStream(), file.getOriginalFilename());
+        ImageApiEntity response;
+        try (InputStream fileStream = file.getInputStream()) {
+            response = imageHostingService.uploadImageForUser(request, apiKey, fileStream, file.getSize(), file.getOriginalFilename());
+        }
+        return ResponseEntity.ok().body(response);
+    }
+
+    @PostMapping(value = "/i/batch", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<ImageBatchApiEntity> uploadImages(
+            @RequestParam("files") List<MultipartFile> files,
+            HttpServletRequest request
+    ) {
+        String apiKey = request.getHeader("X-API-Key");
+        log.info("uploadImages, batch upload of {} images requested for user with API key {}", files.size(), apiKey);
+        ImageBatchApiEntity response = imageHostingService.uploadImagesForUser(request, apiKey, files);
         return ResponseEntity.ok().body(response);
     }
 }
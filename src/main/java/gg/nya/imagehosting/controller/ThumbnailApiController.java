@@ -1,23 +1,36 @@
 package gg.nya.imagehosting.controller;
 
+import gg.nya.imagehosting.models.ThumbnailContent;
+import gg.nya.imagehosting.models.ThumbnailSize;
+import gg.nya.imagehosting.models.ThumbnailVariant;
 import gg.nya.imagehosting.services.DataStorageService;
 import gg.nya.imagehosting.utils.Utils;
 import jakarta.servlet.http.HttpServletRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.InputStreamResource;
-import org.springframework.http.MediaType;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Duration;
+import java.util.List;
 
 /**
  * This REST controller handles requests for user-specific thumbnails at the /thumbnails/ endpoint.
  */
 @RestController
 public class ThumbnailApiController {
+    @Value("${app.thumbnails.browser-cache-max-age}")
+    private Duration browserCacheMaxAge;
+
     private final DataStorageService dataStorageService;
 
     private static final Logger log = LoggerFactory.getLogger(ThumbnailApiController.class);
@@ -36,23 +49,57 @@ public class ThumbnailApiController {
     /**
      * Retrieves a thumbnail for the given user and filename.
      * If the thumbnail does not exist, it tries to retrieve a static backup thumbnail.
-     * The caller may request the thumbnail with or without the .png extension - this is mainly for compatibility with
-     * metadata extractors that expect file extensions.
+     * The caller may request the thumbnail with or without a file extension - this is mainly for compatibility with
+     * metadata extractors that expect file extensions. A .jpg or .webp extension selects that format, otherwise WebP
+     * is served to clients that accept it and JPEG to all others.
+     * Thumbnails are served with an ETag and may be cached by browsers, while the backup thumbnail must be
+     * revalidated, so the actual thumbnail shows up once the video has been processed.
      *
-     * @param filename The identifier of the thumbnail (filename with or without .png extension).
+     * @param filename The identifier of the thumbnail (filename with or without extension).
+     * @param size The requested size, one of "placeholder", "small" (default) or "large".
      * @param request The HTTP request, for extracting the username.
-     * @return ResponseEntity containing the thumbnail image as an InputStreamResource
+     * @return ResponseEntity containing the thumbnail image, or an empty 304 response if the client's copy is current.
      */
-    @GetMapping(value = {"/thumbnails/{filename}", "/thumbnails/{filename}.png"}, produces = MediaType.IMAGE_PNG_VALUE)
-    public ResponseEntity<InputStreamResource> getThumbnail(@PathVariable String filename, HttpServletRequest request) {
+    @GetMapping(value = {"/thumbnails/{filename}", "/thumbnails/{filename}.png", "/thumbnails/{filename}.jpg",
+            "/thumbnails/{filename}.webp"})
+    public ResponseEntity<byte[]> getThumbnail(@PathVariable String filename,
+                                               @RequestParam(value = "size", required = false) String size,
+                                               HttpServletRequest request) {
         // Identify file to serve
         String serverName = request.getServerName();
         String user = Utils.getLeadingSubdomainFromUri(serverName);
-        log.info("getThumbnail, thumbnail requested for user {}, filename: {}", user, filename);
+        log.info("getThumbnail, thumbnail requested for user {}, filename: {}, size: {}", user, filename, size);
+
+        ThumbnailSize thumbnailSize = size == null ? ThumbnailSize.SMALL : ThumbnailSize.fromParameter(size)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown thumbnail size"));
+        String requestUri = request.getRequestURI();
+        boolean negotiated = !requestUri.endsWith(".jpg") && !requestUri.endsWith(".webp");
+        String format;
+        if (negotiated) {
+            format = Utils.acceptsMediaType(request.getHeader(HttpHeaders.ACCEPT), ThumbnailVariant.IMAGE_WEBP)
+                    ? "webp" : "jpeg";
+        } else {
+            format = requestUri.endsWith(".webp") ? "webp" : "jpeg";
+        }
 
-        InputStreamResource thumbnail = new InputStreamResource(dataStorageService.getThumbnail(user, filename));
+        ThumbnailContent thumbnail = dataStorageService.getThumbnail(user, filename, new ThumbnailVariant(thumbnailSize, format));
+        CacheControl cacheControl = thumbnail.backup()
+                ? CacheControl.noCache()
+                : CacheControl.maxAge(browserCacheMaxAge).cachePublic();
+        HttpHeaders headers = new HttpHeaders();
+        headers.setETag(thumbnail.eTag());
+        headers.setCacheControl(cacheControl);
+        if (negotiated) {
+            // The served format depends on the Accept header, so shared caches must key on it
+            headers.setVary(List.of(HttpHeaders.ACCEPT));
+        }
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null && (ifNoneMatch.contains(thumbnail.eTag()) || ifNoneMatch.trim().equals("*"))) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).headers(headers).build();
+        }
         return ResponseEntity.ok()
-                .contentType(MediaType.IMAGE_PNG)
-                .body(thumbnail);
+                .headers(headers)
+                .contentType(thumbnail.mediaType())
+                .body(thumbnail.data());
     }
 }
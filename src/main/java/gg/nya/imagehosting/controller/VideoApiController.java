@@ -1,5 +1,6 @@
 package gg.nya.imagehosting.controller;
 
+import gg.nya.imagehosting.models.ByteRange;
 import gg.nya.imagehosting.services.AuthenticationService;
 import gg.nya.imagehosting.services.VideoHostingService;
 import gg.nya.imagehosting.utils.Utils;
@@ -63,36 +64,10 @@ public class VideoApiController {
         // Will throw 404 if the video does not exist on the database or S3
         final long contentLength = videoHostingService.getVideoFileSize(user, filename);
 
-        //Check if request contains Range header
-        String rangeHeader = request.getHeader("Range");
-        final long start, end;
-
-        //Simple case - no Range header, serve full content
-        if (rangeHeader == null || !rangeHeader.startsWith("bytes=")) {
-            start = 0;
-            end = contentLength - 1;
-        }
-        //Parse Range header
-        else {
-            String[] ranges = rangeHeader.substring(6).split("-");
-            start = ranges[0].isEmpty() ? 0 : Long.parseLong(ranges[0]);
-            if (start >= contentLength) {
-                log.error("getVideo, invalid range request: start {} >= contentLength {} for user {}, filename {}",
-                        start, contentLength, user, filename);
-                throw new ResponseStatusException(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, "Invalid Range Header");
-            }
-            end = ranges.length > 1 && !ranges[1].isEmpty() ? Long.parseLong(ranges[1]) : contentLength - 1;
-            if(end < start) {
-                log.error("getVideo, invalid range request: end {} < start {} for user {}, filename {}",
-                        end, start, user, filename);
-                throw new ResponseStatusException(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, "Invalid Range Header");
-            }
-            if(end >= contentLength) {
-                log.error("getVideo, invalid range request: end {} >= contentLength {} for user {}, filename {}",
-                        end, contentLength, user, filename);
-                throw new ResponseStatusException(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, "Invalid Range Header");
-            }
-        }
+        //Parse Range header - without a usable single range, the full content is served
+        ByteRange range = ByteRange.parse(request.getHeader(HttpHeaders.RANGE), contentLength);
+        final long start = range != null ? range.start() : 0;
+        final long end = range != null ? range.end() : contentLength - 1;
         final long rangeLength = end - start + 1;
 
         // Set response headers
@@ -102,12 +77,12 @@ public class VideoApiController {
         // Tell the client to cache the video for 1 year - the video URL is permanent and immutable
         headers.add("Cache-Control", "public, max-age=31536000");
         // Content-Range header is set only for partial content responses
-        if (rangeHeader != null) {
-            headers.add("Content-Range", String.format("bytes %d-%d/%d", start, end, contentLength));
+        if (range != null) {
+            headers.add("Content-Range", range.toContentRange(contentLength));
         }
         // Content-Length is always set to the length of the response body
         headers.setContentLength(rangeLength);
-        HttpStatus status = rangeHeader != null ? HttpStatus.PARTIAL_CONTENT : HttpStatus.OK;
+        HttpStatus status = range != null ? HttpStatus.PARTIAL_CONTENT : HttpStatus.OK;
         InputStream in = videoHostingService.getVideo(user, filename, start, end);
 
         // Synchronous IO streaming because otherwise Weld complains - should be fine for low to medium traffic levels
@@ -1,7 +1,6 @@
 package gg.nya.imagehosting.jobs;
 
-import gg.nya.imagehosting.models.VideoUploadStatus;
-import gg.nya.imagehosting.models.VideoUploadUserFile;
+import gg.nya.imagehosting.models.AbandonedVideoUpload;
 import gg.nya.imagehosting.services.DataStorageService;
 import gg.nya.imagehosting.services.VideoHostingService;
 import org.slf4j.Logger;
@@ -10,6 +9,8 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.List;
 
@@ -32,7 +33,7 @@ public class FailedVideoUploadCleanupJob {
      * Constructor for the FailedVideoUploadCleanupJob. Injects the relevant services.
      *
      * @param videoHostingService The video hosting service, to retrieve and clean up abandoned uploads.
-     * @param dataStorageService The data storage service, to generate temporary file paths.
+     * @param dataStorageService The data storage service, to sweep orphaned temporary files.
      */
     public FailedVideoUploadCleanupJob(VideoHostingService videoHostingService, DataStorageService dataStorageService) {
         this.videoHostingService = videoHostingService;
@@ -41,31 +42,28 @@ public class FailedVideoUploadCleanupJob {
 
     /**
      * Cleans up video uploads that have been processing for too long.
+     * Abandoned uploads are drained batch by batch until none are left, so a backlog is cleared in a single run.
+     * Afterwards, any temporary file older than the threshold is considered orphaned and deleted.
      */
     @Scheduled(fixedRateString = "${app.jobs.video-cleanup.schedule}")
     public void cleanupFailedUploads() {
         log.trace("cleanupFailedUploads, starting job at {}", LocalDateTime.now());
 
-        // Retrieve a batch of abandoned video uploads
-        List<VideoUploadUserFile> abandonedVideos = videoHostingService.getAbandonedVideos(batchSize, thresholdHours);
-        log.trace("cleanupFailedUploads, found {} abandoned uploads to clean up", abandonedVideos.size());
+        int totalFailed = 0;
+        List<AbandonedVideoUpload> abandonedVideos;
+        int updated;
+        do {
+            // Failed rows drop out of the PROCESSING filter, so the first page always holds the next batch
+            abandonedVideos = videoHostingService.getAbandonedVideos(batchSize, thresholdHours);
+            log.trace("cleanupFailedUploads, found {} abandoned uploads to clean up", abandonedVideos.size());
+            updated = videoHostingService.failAbandonedUploads(abandonedVideos);
+            totalFailed += updated;
+        } while (abandonedVideos.size() == batchSize && updated > 0);
 
-        for(VideoUploadUserFile video : abandonedVideos) {
-            String username = video.getVideoUploadUser().getUser().getUsername();
-            String filename = video.getFileName();
-            log.trace("cleanupFailedUploads, cleaning up abandoned upload: id={}, username={}, filename={}", video.getId(), username, filename);
+        int deletedFiles = dataStorageService.deleteTempFilesOlderThan(
+                Instant.now().minus(Duration.ofHours(thresholdHours)));
 
-            // TODO: Unfortunately with current design the input temp file can't be deleted since we don't know the original file type
-            // See Issue #8
-            videoHostingService.cleanUpUpload(
-                    username,
-                    filename,
-                    List.of(
-                        dataStorageService.getTempFilePath(username + "_" + filename + ".mp4"),
-                        dataStorageService.getTempFilePath("thumbnail_" + username + "_" + filename + ".png")
-                    ),
-                    VideoUploadStatus.FAILED
-            );
-        }
+        log.debug("cleanupFailedUploads, marked {} uploads as failed and deleted {} orphaned temporary files",
+                totalFailed, deletedFiles);
     }
 }
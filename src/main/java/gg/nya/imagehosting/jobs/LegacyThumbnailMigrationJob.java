@@ -0,0 +1,118 @@
+package gg.nya.imagehosting.jobs;
+
+import gg.nya.imagehosting.config.WorkloadRoutingDataSource;
+import gg.nya.imagehosting.services.DataStorageService;
+import gg.nya.imagehosting.services.ThumbnailStoreService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One-off job that migrates thumbnails stored on the local disk by older versions, after startup. Thumbnails stored
+ * as individual files are moved into the packed thumbnail store, and all thumbnails on the local disk are uploaded to
+ * the object store in parallel. Once every upload succeeded, a marker file is written so later starts skip the
+ * uploads. Users whose thumbnails are requested before the job reaches them are packed on their first request.
+ */
+@Component
+public class LegacyThumbnailMigrationJob {
+    private final ThumbnailStoreService thumbnailStoreService;
+    private final DataStorageService dataStorageService;
+
+    @Value("${app.thumbnails.store.migrate-on-startup}")
+    private boolean migrateOnStartup;
+    @Value("${app.thumbnails.store.migration-parallelism}")
+    private int migrationParallelism;
+    @Value("${app.localstorage.thumbnail-directory}")
+    private String thumbnailDirectory;
+
+    private static final String OBJECT_STORE_MARKER = ".object-store-migrated";
+
+    private final Logger log = LoggerFactory.getLogger(LegacyThumbnailMigrationJob.class);
+
+    /**
+     * Constructor for the LegacyThumbnailMigrationJob. Injects the relevant services.
+     *
+     * @param thumbnailStoreService The packed thumbnail store to migrate from.
+     * @param dataStorageService The data storage service, to upload thumbnails to the object store.
+     */
+    public LegacyThumbnailMigrationJob(ThumbnailStoreService thumbnailStoreService, DataStorageService dataStorageService) {
+        this.thumbnailStoreService = thumbnailStoreService;
+        this.dataStorageService = dataStorageService;
+    }
+
+    /**
+     * Migrates the thumbnails of all users in the background, once the application is ready.
+     */
+    @Async
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrateLegacyThumbnails() {
+        if (!migrateOnStartup) {
+            return;
+        }
+        Path marker = Path.of(thumbnailDirectory, OBJECT_STORE_MARKER);
+        boolean upload = !Files.exists(marker);
+        long startTime = System.currentTimeMillis();
+        AtomicInteger uploaded = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(migrationParallelism,
+                WorkloadRoutingDataSource.backgroundThreadFactory("thumbnail-migration"));
+
+        try {
+            List<String> usernames = thumbnailStoreService.listUsers();
+            for (String username : usernames) {
+                // Listing a user's thumbnails packs any that are still stored as individual files
+                List<String> identifiers;
+                try {
+                    identifiers = thumbnailStoreService.listThumbnails(username);
+                } catch (IOException e) {
+                    log.error("migrateLegacyThumbnails, failed to load thumbnails of user {}", username, e);
+                    failed.incrementAndGet();
+                    continue;
+                }
+                if (!upload) {
+                    continue;
+                }
+                for (String identifier : identifiers) {
+                    pool.execute(() -> {
+                        try {
+                            if (dataStorageService.uploadCachedThumbnail(username, identifier)) {
+                                uploaded.incrementAndGet();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            log.error("migrateLegacyThumbnails, failed to upload thumbnail {} of user {}", identifier, username, e);
+                            failed.incrementAndGet();
+                        }
+                    });
+                }
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+            if (upload && failed.get() == 0) {
+                Files.createDirectories(marker.getParent());
+                Files.createFile(marker);
+            }
+            log.info("migrateLegacyThumbnails, checked thumbnails of {} users and uploaded {} thumbnails ({} failed) in {}ms",
+                    usernames.size(), uploaded.get(), failed.get(), System.currentTimeMillis() - startTime);
+        } catch (IOException e) {
+            log.error("migrateLegacyThumbnails, failed to migrate thumbnails in {}", thumbnailDirectory, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package gg.nya.imagehosting.models;
+
+/**
+ * Read-only projection of a video upload that is stuck in processing, carrying what is needed to clean it up.
+ *
+ * @param id The ID of the video.
+ * @param username The username of the owner of the video.
+ * @param fileName The file name of the video.
+ * @param originalExtension The extension of the uploaded file, or null for uploads from before it was persisted.
+ */
+public record AbandonedVideoUpload(Long id, String username, String fileName, String originalExtension) {
+}
@@ -0,0 +1,105 @@
+package gg.nya.imagehosting.models;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * A single byte range of an HTTP Range request, with both ends inclusive.
+ *
+ * @param start The first byte of the range.
+ * @param end The last byte of the range.
+ */
+public record ByteRange(long start, long end) {
+
+    /**
+     * Parses the Range header of a request (RFC 9110, section 14). Single ranges in the forms "bytes=start-end",
+     * "bytes=start-" and "bytes=-suffixLength" are supported, and an end beyond the content is clamped to its last
+     * byte. Headers with multiple ranges, other units or invalid syntax are ignored, so the full content is served.
+     * Throws a 416 error if the range does not overlap the content, which carries the content length in its
+     * Content-Range header (RFC 9110, section 15.5.17).
+     *
+     * @param rangeHeader The value of the Range header, or null.
+     * @param contentLength The full length of the requested content.
+     * @return The requested range, or null if the full content should be served.
+     */
+    public static ByteRange parse(String rangeHeader, long contentLength) {
+        if (rangeHeader == null || !rangeHeader.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+
+        String rangeSpec = rangeHeader.substring(6).trim();
+        int separator = rangeSpec.indexOf('-');
+        if (separator < 0 || rangeSpec.indexOf(',') >= 0) {
+            return null;
+        }
+        String first = rangeSpec.substring(0, separator).trim();
+        String last = rangeSpec.substring(separator + 1).trim();
+
+        final long start, end;
+        try {
+            if (first.isEmpty()) {
+                // Suffix range - the last n bytes of the content
+                long suffixLength = Long.parseLong(last);
+                if (suffixLength < 0) {
+                    return null;
+                }
+                if (suffixLength == 0 || contentLength == 0) {
+                    throw new RangeNotSatisfiableException(contentLength);
+                }
+                start = Math.max(0, contentLength - suffixLength);
+                end = contentLength - 1;
+            } else {
+                start = Long.parseLong(first);
+                long requestedEnd = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                if (start < 0 || requestedEnd < start) {
+                    return null;
+                }
+                if (start >= contentLength) {
+                    throw new RangeNotSatisfiableException(contentLength);
+                }
+                end = Math.min(requestedEnd, contentLength - 1);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return new ByteRange(start, end);
+    }
+
+    /**
+     * 416 error for a range that does not overlap the content, stating the content length in the Content-Range
+     * header of the response.
+     */
+    public static class RangeNotSatisfiableException extends ResponseStatusException {
+        private final long contentLength;
+
+        public RangeNotSatisfiableException(long contentLength) {
+            super(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, "Invalid Range Header");
+            this.contentLength = contentLength;
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            HttpHeaders headers = new HttpHeaders();
+            headers.set(HttpHeaders.CONTENT_RANGE, "bytes */" + contentLength);
+            return headers;
+        }
+    }
+
+    /**
+     * @return The number of bytes in the range.
+     */
+    public long length() {
+        return end - start + 1;
+    }
+
+    /**
+     * Formats the range as value of a Content-Range header.
+     *
+     * @param contentLength The full length of the content.
+     * @return The Content-Range header value.
+     */
+    public String toContentRange(long contentLength) {
+        return String.format("bytes %d-%d/%d", start, end, contentLength);
+    }
+}
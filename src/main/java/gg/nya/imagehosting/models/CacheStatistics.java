@@ -0,0 +1,59 @@
+package gg.nya.imagehosting.models;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+/**
+ * Snapshot of the statistics of a single named in-memory cache.
+ */
+public class CacheStatistics implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private final String name;
+    private final long estimatedSize;
+    private final long hitCount;
+    private final long missCount;
+    private final double hitRate;
+    private final long evictionCount;
+    private final long evictionWeight;
+
+    public CacheStatistics(String name, long estimatedSize, long hitCount, long missCount, double hitRate,
+                           long evictionCount, long evictionWeight) {
+        this.name = name;
+        this.estimatedSize = estimatedSize;
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.hitRate = hitRate;
+        this.evictionCount = evictionCount;
+        this.evictionWeight = evictionWeight;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getEstimatedSize() {
+        return estimatedSize;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public double getHitRate() {
+        return hitRate;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public long getEvictionWeight() {
+        return evictionWeight;
+    }
+}
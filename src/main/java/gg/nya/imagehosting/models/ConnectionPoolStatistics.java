@@ -0,0 +1,72 @@
+package gg.nya.imagehosting.models;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+/**
+ * Snapshot of the statistics of a single database connection pool.
+ */
+public class ConnectionPoolStatistics implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private final String name;
+    private final int activeConnections;
+    private final int idleConnections;
+    private final int maxConnections;
+    private final int pendingThreads;
+    private final long acquireCount;
+    private final double averageAcquireMillis;
+    private final double maxAcquireMillis;
+    private final long timeoutCount;
+
+    public ConnectionPoolStatistics(String name, int activeConnections, int idleConnections, int maxConnections,
+                                    int pendingThreads, long acquireCount, double averageAcquireMillis,
+                                    double maxAcquireMillis, long timeoutCount) {
+        this.name = name;
+        this.activeConnections = activeConnections;
+        this.idleConnections = idleConnections;
+        this.maxConnections = maxConnections;
+        this.pendingThreads = pendingThreads;
+        this.acquireCount = acquireCount;
+        this.averageAcquireMillis = averageAcquireMillis;
+        this.maxAcquireMillis = maxAcquireMillis;
+        this.timeoutCount = timeoutCount;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getActiveConnections() {
+        return activeConnections;
+    }
+
+    public int getIdleConnections() {
+        return idleConnections;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getPendingThreads() {
+        return pendingThreads;
+    }
+
+    public long getAcquireCount() {
+        return acquireCount;
+    }
+
+    public double getAverageAcquireMillis() {
+        return averageAcquireMillis;
+    }
+
+    public double getMaxAcquireMillis() {
+        return maxAcquireMillis;
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount;
+    }
+}
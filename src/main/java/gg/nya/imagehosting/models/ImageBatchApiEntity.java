@@ -0,0 +1,15 @@
+package gg.nya.imagehosting.models;
+
+import java.util.List;
+
+public class ImageBatchApiEntity {
+    private List<String> URLs;
+
+    public void setURLs(List<String> URLs) {
+        this.URLs = URLs;
+    }
+
+    public List<String> getURLs() {
+        return URLs;
+    }
+}
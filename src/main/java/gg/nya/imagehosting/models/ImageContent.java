@@ -0,0 +1,81 @@
+package gg.nya.imagehosting.models;
+
+import org.springframework.http.MediaType;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Image ready to be served, along with the media type it is encoded in. Small images are held in memory, large
+ * images are not loaded at all and have to be streamed from the object store instead. This applies to originals and
+ * to the variants served in their place, such as derivatives.
+ *
+ * @param data The image data as a read-only buffer, or null if the image is streamed.
+ * @param mediaType The media type of the image data.
+ * @param size The size of the image in bytes.
+ * @param eTag The quoted entity tag of the image, or null if it has none.
+ * @param objectName The file name of the stored object to stream, or null if the image is held in memory.
+ */
+public record ImageContent(ByteBuffer data, MediaType mediaType, long size, String eTag, String objectName) {
+
+    /**
+     * Creates the content of an image held in memory.
+     *
+     * @param data The image data as a read-only buffer.
+     * @param mediaType The media type of the image data.
+     * @return The image content.
+     */
+    public static ImageContent buffered(ByteBuffer data, MediaType mediaType) {
+        return new ImageContent(data, mediaType, data.remaining(), null, null);
+    }
+
+    /**
+     * Creates the content of an image that has to be streamed from the object store.
+     *
+     * @param objectName The file name of the stored object, relative to the user.
+     * @param size The size of the image in bytes.
+     * @param mediaType The media type of the image.
+     * @return The image content.
+     */
+    public static ImageContent streamed(String objectName, long size, MediaType mediaType) {
+        return new ImageContent(null, mediaType, size, null, objectName);
+    }
+
+    /**
+     * Creates the content of an image whose data was not loaded, because the client already holds its current
+     * version. Must only be used when {@link #isCurrent(String)} holds for the request.
+     *
+     * @param mediaType The media type of the image.
+     * @param eTag The quoted entity tag of the image.
+     * @return The image content.
+     */
+    public static ImageContent notModified(MediaType mediaType, String eTag) {
+        return new ImageContent(null, mediaType, 0, eTag, null);
+    }
+
+    /**
+     * Returns a copy of this content with the given entity tag.
+     *
+     * @param eTag The quoted entity tag, or null.
+     * @return The image content with the entity tag.
+     */
+    public ImageContent withETag(String eTag) {
+        return new ImageContent(data, mediaType, size, eTag, objectName);
+    }
+
+    /**
+     * Checks whether a client's copy of the image is current.
+     *
+     * @param ifNoneMatch The If-None-Match header of the request, or null.
+     * @return True if the image has an entity tag and the header matches it.
+     */
+    public boolean isCurrent(String ifNoneMatch) {
+        return eTag != null && ifNoneMatch != null && (ifNoneMatch.contains(eTag) || ifNoneMatch.trim().equals("*"));
+    }
+
+    /**
+     * @return True if the image is not held in memory and has to be streamed from the object store.
+     */
+    public boolean isStreamed() {
+        return data == null;
+    }
+}
@@ -0,0 +1,56 @@
+package gg.nya.imagehosting.models;
+
+import org.springframework.http.MediaType;
+
+/**
+ * Describes a derivative of an image: a resized and/or re-encoded variant of the original.
+ *
+ * @param width The maximum width of the derivative, or null to only bound the height.
+ * @param height The maximum height of the derivative, or null to only bound the width.
+ * @param format The target format, one of "webp", "jpeg" or "png".
+ */
+public record ImageDerivativeSpec(Integer width, Integer height, String format) {
+
+    /**
+     * Returns the file name under which the derivative of the given original is stored.
+     * e.g. "derivatives/abcd1234.png/w480.webp"
+     *
+     * @param originalFileName The file name of the original image.
+     * @return The file name of the derivative.
+     */
+    public String toFileName(String originalFileName) {
+        StringBuilder name = new StringBuilder("derivatives/").append(originalFileName).append('/');
+        if (width != null) {
+            name.append('w').append(width);
+        }
+        if (height != null) {
+            name.append('h').append(height);
+        }
+        if (width == null && height == null) {
+            name.append("original");
+        }
+        return name.append('.').append(getFileExtension()).toString();
+    }
+
+    /**
+     * Returns the file extension matching the target format.
+     *
+     * @return The file extension, without dot.
+     */
+    public String getFileExtension() {
+        return format.equals("jpeg") ? "jpg" : format;
+    }
+
+    /**
+     * Returns the media type matching the target format.
+     *
+     * @return The media type of the derivative.
+     */
+    public MediaType getMediaType() {
+        return switch (format) {
+            case "jpeg" -> MediaType.IMAGE_JPEG;
+            case "png" -> MediaType.IMAGE_PNG;
+            default -> MediaType.valueOf("image/webp");
+        };
+    }
+}
@@ -12,8 +12,16 @@ public class ImageHostingUserFile implements Serializable {
     @Serial
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Number of IDs each node draws from the sequence at once. Must match the increment of the sequence set by V10.
+     */
+    public static final int ID_ALLOCATION_SIZE = 50;
+
+    // Identity columns would force an immediate insert per file, so batch uploads draw their IDs from the sequence
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "image_hosting_user_files_id")
+    @SequenceGenerator(name = "image_hosting_user_files_id", sequenceName = "image_hosting_user_files_id_seq",
+            allocationSize = ID_ALLOCATION_SIZE)
     private Long id;
 
     @NotNull
@@ -33,6 +41,18 @@ public class ImageHostingUserFile implements Serializable {
     @Column(name = "created_at")
     private LocalDateTime createdAt;
 
+    @Column(name = "original_file_size")
+    private Long originalFileSize;
+
+    @Column(name = "optimized_at")
+    private LocalDateTime optimizedAt;
+
+    @Column(name = "content_sha256")
+    private String contentSha256;
+
+    @Column(name = "content_crc32c")
+    private String contentCrc32c;
+
     public LocalDateTime getCreatedAt() {
         return createdAt;
     }
@@ -72,4 +92,36 @@ public class ImageHostingUserFile implements Serializable {
     public void setFileSize(Long fileSize) {
         this.fileSize = fileSize;
     }
+
+    public Long getOriginalFileSize() {
+        return originalFileSize;
+    }
+
+    public void setOriginalFileSize(Long originalFileSize) {
+        this.originalFileSize = originalFileSize;
+    }
+
+    public LocalDateTime getOptimizedAt() {
+        return optimizedAt;
+    }
+
+    public void setOptimizedAt(LocalDateTime optimizedAt) {
+        this.optimizedAt = optimizedAt;
+    }
+
+    public String getContentSha256() {
+        return contentSha256;
+    }
+
+    public void setContentSha256(String contentSha256) {
+        this.contentSha256 = contentSha256;
+    }
+
+    public String getContentCrc32c() {
+        return contentCrc32c;
+    }
+
+    public void setContentCrc32c(String contentCrc32c) {
+        this.contentCrc32c = contentCrc32c;
+    }
 }
@@ -0,0 +1,10 @@
+package gg.nya.imagehosting.models;
+
+/**
+ * Read-only projection of an image hosting user file, carrying only its ID and the SHA-256 digest of its content.
+ */
+public interface ImageHostingUserFileChecksumView {
+    Long getId();
+
+    String getContentSha256();
+}
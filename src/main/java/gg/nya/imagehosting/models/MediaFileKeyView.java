@@ -0,0 +1,10 @@
+package gg.nya.imagehosting.models;
+
+/**
+ * Read-only projection of an uploaded media file, carrying only the username of its owner and its file name.
+ */
+public interface MediaFileKeyView {
+    String getUsername();
+
+    String getFileName();
+}
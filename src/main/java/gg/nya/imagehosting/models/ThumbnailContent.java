@@ -0,0 +1,30 @@
+package gg.nya.imagehosting.models;
+
+import org.springframework.http.MediaType;
+
+import java.util.zip.CRC32C;
+
+/**
+ * Thumbnail ready to be served from memory.
+ *
+ * @param data The image data. Must not be modified.
+ * @param mediaType The media type of the image data.
+ * @param eTag The quoted entity tag of the thumbnail.
+ * @param backup True if this is the static backup thumbnail, served in place of a missing thumbnail.
+ */
+public record ThumbnailContent(byte[] data, MediaType mediaType, String eTag, boolean backup) {
+
+    /**
+     * Creates the content of a thumbnail, deriving its entity tag from the CRC32C checksum of its data.
+     *
+     * @param data The image data.
+     * @param mediaType The media type of the image data.
+     * @param backup True if this is the static backup thumbnail.
+     * @return The thumbnail content.
+     */
+    public static ThumbnailContent of(byte[] data, MediaType mediaType, boolean backup) {
+        CRC32C crc32c = new CRC32C();
+        crc32c.update(data);
+        return new ThumbnailContent(data, mediaType, String.format("\"%08x-%d\"", crc32c.getValue(), data.length), backup);
+    }
+}
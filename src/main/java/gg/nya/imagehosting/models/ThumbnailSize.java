@@ -0,0 +1,58 @@
+package gg.nya.imagehosting.models;
+
+import java.util.Optional;
+
+/**
+ * Enum representing the sizes in which video thumbnails are generated.
+ */
+public enum ThumbnailSize {
+    /**
+     * Tiny preview shown while the actual thumbnail loads.
+     */
+    PLACEHOLDER("placeholder", 32, 18),
+    /**
+     * Thumbnail shown in the video library grid.
+     */
+    SMALL("small", 480, 270),
+    /**
+     * Preview image for link embeds (OpenGraph, Twitter cards).
+     */
+    LARGE("large", 1200, 675);
+
+    private final String parameter;
+    private final int width;
+    private final int height;
+
+    ThumbnailSize(String parameter, int width, int height) {
+        this.parameter = parameter;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Resolves the size requested through the size parameter of a thumbnail URL.
+     *
+     * @param parameter The value of the size parameter.
+     * @return The size, or empty if the value is unknown.
+     */
+    public static Optional<ThumbnailSize> fromParameter(String parameter) {
+        for (ThumbnailSize size : values()) {
+            if (size.parameter.equalsIgnoreCase(parameter)) {
+                return Optional.of(size);
+            }
+        }
+        return Optional.empty();
+    }
+
+    public String getParameter() {
+        return parameter;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
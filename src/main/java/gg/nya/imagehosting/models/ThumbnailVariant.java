@@ -0,0 +1,64 @@
+package gg.nya.imagehosting.models;
+
+import org.springframework.http.MediaType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes one of the encodings in which a video thumbnail is stored.
+ *
+ * @param size The size of the thumbnail.
+ * @param format The format of the thumbnail, either "webp" or "jpeg".
+ */
+public record ThumbnailVariant(ThumbnailSize size, String format) {
+    /**
+     * Formats in which every size is generated. WebP is served to clients that accept it, JPEG to all others.
+     */
+    public static final List<String> FORMATS = List.of("webp", "jpeg");
+    public static final MediaType IMAGE_WEBP = MediaType.valueOf("image/webp");
+
+    /**
+     * Returns all variants that are generated for a video.
+     *
+     * @return The variants, in a stable order.
+     */
+    public static List<ThumbnailVariant> all() {
+        List<ThumbnailVariant> variants = new ArrayList<>();
+        for (ThumbnailSize size : ThumbnailSize.values()) {
+            for (String format : FORMATS) {
+                variants.add(new ThumbnailVariant(size, format));
+            }
+        }
+        return variants;
+    }
+
+    /**
+     * Returns the identifier under which the variant of the given thumbnail is stored.
+     * e.g. "v-abcd1234@small.webp"
+     *
+     * @param thumbnailIdentifier The identifier of the thumbnail.
+     * @return The identifier of the variant.
+     */
+    public String toIdentifier(String thumbnailIdentifier) {
+        return thumbnailIdentifier + "@" + size.getParameter() + "." + getFileExtension();
+    }
+
+    /**
+     * Returns the file extension matching the format.
+     *
+     * @return The file extension, without dot.
+     */
+    public String getFileExtension() {
+        return format.equals("jpeg") ? "jpg" : format;
+    }
+
+    /**
+     * Returns the media type matching the format.
+     *
+     * @return The media type of the variant.
+     */
+    public MediaType getMediaType() {
+        return format.equals("webp") ? IMAGE_WEBP : MediaType.IMAGE_JPEG;
+    }
+}
@@ -0,0 +1,27 @@
+package gg.nya.imagehosting.models;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+/**
+ * Position in a user's video library, pointing at the last video of the previously loaded page. Videos are listed
+ * newest first, with the ID breaking ties between videos created at the same time.
+ *
+ * @param createdAt The creation time of the last loaded video.
+ * @param id The ID of the last loaded video.
+ */
+public record VideoLibraryCursor(LocalDateTime createdAt, Long id) implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a cursor pointing at the given video.
+     *
+     * @param video The last loaded video.
+     * @return The cursor.
+     */
+    public static VideoLibraryCursor after(VideoLibraryItem video) {
+        return new VideoLibraryCursor(video.createdAt(), video.id());
+    }
+}
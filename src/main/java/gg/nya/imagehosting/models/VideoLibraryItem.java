@@ -0,0 +1,19 @@
+package gg.nya.imagehosting.models;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+/**
+ * Read-only projection of a video in a user's library grid.
+ *
+ * @param id The ID of the video.
+ * @param fileName The file name of the video.
+ * @param videoTitle The title of the video.
+ * @param createdAt The creation time of the video.
+ */
+public record VideoLibraryItem(Long id, String fileName, String videoTitle, LocalDateTime createdAt)
+        implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,16 @@
+package gg.nya.imagehosting.models;
+
+import java.time.LocalDateTime;
+
+/**
+ * Read-only projection of a video for its player page, carrying the display name of its owner.
+ *
+ * @param fileName The file name of the video.
+ * @param videoTitle The title of the video.
+ * @param createdAt The creation time of the video.
+ * @param uploadStatus The upload status of the video.
+ * @param displayName The display name of the owner of the video.
+ */
+public record VideoPlayerView(String fileName, String videoTitle, LocalDateTime createdAt,
+                              VideoUploadStatus uploadStatus, String displayName) {
+}
@@ -45,6 +45,9 @@ public class VideoUploadUserFile implements Serializable {
     @Enumerated(EnumType.STRING)
     private VideoUploadStatus uploadStatus;
 
+    @Column(name = "original_extension")
+    private String originalExtension;
+
     public Long getId() {
         return id;
     }
@@ -100,4 +103,12 @@ public class VideoUploadUserFile implements Serializable {
     public void setVideoTitle(String videoTitle) {
         this.videoTitle = videoTitle;
     }
+
+    public String getOriginalExtension() {
+        return originalExtension;
+    }
+
+    public void setOriginalExtension(String originalExtension) {
+        this.originalExtension = originalExtension;
+    }
 }
@@ -2,10 +2,49 @@ package gg.nya.imagehosting.repositories;
 
 import gg.nya.imagehosting.models.ImageHostingUser;
 import gg.nya.imagehosting.models.ImageHostingUserFile;
+import gg.nya.imagehosting.models.ImageHostingUserFileChecksumView;
+import gg.nya.imagehosting.models.MediaFileKeyView;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
 
 @Repository
 public interface ImageHostingUserFileRepository extends CrudRepository<ImageHostingUserFile, Long> {
-    boolean existsByImageHostingUserAndFileName(ImageHostingUser imageHostingUser, String fileName);
+    Optional<ImageHostingUserFile> findFirstByImageHostingUserAndContentSha256AndFileSize(ImageHostingUser imageHostingUser,
+                                                                                         String contentSha256,
+                                                                                         Long fileSize);
+
+    List<ImageHostingUserFile> findByImageHostingUserAndContentSha256In(ImageHostingUser imageHostingUser,
+                                                                       Collection<String> contentSha256s);
+
+    @Query("SELECT f.fileName FROM image_hosting_user_files f " +
+            "WHERE f.imageHostingUser = :imageHostingUser AND f.fileName IN :fileNames")
+    List<String> findExistingFileNames(@Param("imageHostingUser") ImageHostingUser imageHostingUser,
+                                       @Param("fileNames") Collection<String> fileNames);
+
+    @Query("SELECT f.imageHostingUser.user.username AS username, f.fileName AS fileName " +
+            "FROM image_hosting_user_files f ORDER BY f.createdAt DESC")
+    List<MediaFileKeyView> findRecentFileKeys(Pageable pageable);
+
+    @Transactional(readOnly = true)
+    @Query("SELECT f.id AS id, f.contentSha256 AS contentSha256 FROM image_hosting_user_files f " +
+            "WHERE f.imageHostingUser.user.username = :username AND f.fileName = :fileName")
+    Optional<ImageHostingUserFileChecksumView> findChecksumByUsernameAndFileName(@Param("username") String username,
+                                                                                 @Param("fileName") String fileName);
+
+    @Query("SELECT f.fileName FROM image_hosting_user_files f WHERE f.imageHostingUser.user.username = :username")
+    List<String> findFileNamesByUsername(@Param("username") String username);
+
+    @Query("SELECT f.fileName FROM image_hosting_user_files f " +
+            "WHERE f.imageHostingUser.user.username = :username AND f.createdAt >= :since")
+    List<String> findFileNamesByUsernameCreatedSince(@Param("username") String username,
+                                                     @Param("since") LocalDateTime since);
 }
@@ -1,7 +1,9 @@
 package gg.nya.imagehosting.repositories;
 
+import java.util.List;
 import java.util.Optional;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.PagingAndSortingRepository;
 import org.springframework.stereotype.Repository;
@@ -11,4 +13,6 @@ import gg.nya.imagehosting.models.User;
 @Repository
 public interface UserRepository extends PagingAndSortingRepository<User, Long>, CrudRepository<User, Long> {
     Optional<User> findByUsername(String username);
+
+    List<User> findByIdGreaterThanOrderByIdAsc(Long id, Pageable pageable);
 }
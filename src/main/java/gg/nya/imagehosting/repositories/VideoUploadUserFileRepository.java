@@ -1,28 +1,81 @@
 package gg.nya.imagehosting.repositories;
 
+import gg.nya.imagehosting.models.AbandonedVideoUpload;
+import gg.nya.imagehosting.models.MediaFileKeyView;
+import gg.nya.imagehosting.models.VideoLibraryItem;
+import gg.nya.imagehosting.models.VideoPlayerView;
 import gg.nya.imagehosting.models.VideoUploadStatus;
 import gg.nya.imagehosting.models.VideoUploadUser;
 import gg.nya.imagehosting.models.VideoUploadUserFile;
 import org.springframework.data.domain.Pageable;
-import org.springframework.data.domain.Slice;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.PagingAndSortingRepository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface VideoUploadUserFileRepository extends PagingAndSortingRepository<VideoUploadUserFile, Long>,
         CrudRepository<VideoUploadUserFile, Long> {
-    boolean existsByVideoUploadUserAndFileName(VideoUploadUser videoUploadUser, String fileName);
+    @Transactional(readOnly = true)
     boolean existsByVideoUploadUserAndFileNameAndUploadStatus(VideoUploadUser videoUploadUser, String fileName, VideoUploadStatus uploadStatus);
-    Slice<VideoUploadUserFile> findAllByVideoUploadUserAndUploadStatus(VideoUploadUser videoUploadUser, VideoUploadStatus uploadStatus, Pageable pageable);
-    Slice<VideoUploadUserFile> findAllByUploadStatusAndCreatedAtBefore(VideoUploadStatus uploadStatus, LocalDateTime date, Pageable pageable);
 
     @Query("SELECT vuf FROM video_upload_user_files vuf WHERE vuf.videoUploadUser.user.username = ?1 AND vuf.fileName = ?2")
     Optional<VideoUploadUserFile> findByUsernameAndFileName(String username, String fileName);
 
+    /**
+     * Fetches only what the player page displays, joining the owner in the same statement. Selecting into a record
+     * loads no entities, so none of their eager associations are fetched either.
+     */
+    @Transactional(readOnly = true)
+    @Query("SELECT new gg.nya.imagehosting.models.VideoPlayerView(vuf.fileName, vuf.videoTitle, vuf.createdAt, " +
+            "vuf.uploadStatus, u.displayName) FROM video_upload_user_files vuf JOIN vuf.videoUploadUser vu " +
+            "JOIN vu.user u WHERE u.username = :username AND vuf.fileName = :fileName")
+    Optional<VideoPlayerView> findPlayerViewByUsernameAndFileName(@Param("username") String username,
+                                                                  @Param("fileName") String fileName);
 
+    @Transactional(readOnly = true)
+    @Query("SELECT new gg.nya.imagehosting.models.VideoLibraryItem(vuf.id, vuf.fileName, vuf.videoTitle, vuf.createdAt) " +
+            "FROM video_upload_user_files vuf JOIN vuf.videoUploadUser vu JOIN vu.user u " +
+            "WHERE u.username = :username AND vuf.uploadStatus = :status ORDER BY vuf.createdAt DESC, vuf.id DESC")
+    List<VideoLibraryItem> findLibraryItems(@Param("username") String username,
+                                            @Param("status") VideoUploadStatus status,
+                                            Pageable pageable);
+
+    /**
+     * Seeks past the given position instead of skipping rows with an offset, so every page costs the same.
+     * The row value comparison lets Postgres start the index scan right at the position.
+     */
+    @Transactional(readOnly = true)
+    @Query("SELECT new gg.nya.imagehosting.models.VideoLibraryItem(vuf.id, vuf.fileName, vuf.videoTitle, vuf.createdAt) " +
+            "FROM video_upload_user_files vuf JOIN vuf.videoUploadUser vu JOIN vu.user u " +
+            "WHERE u.username = :username AND vuf.uploadStatus = :status " +
+            "AND (vuf.createdAt, vuf.id) < (:createdAt, :id) ORDER BY vuf.createdAt DESC, vuf.id DESC")
+    List<VideoLibraryItem> findLibraryItemsAfter(@Param("username") String username,
+                                                 @Param("status") VideoUploadStatus status,
+                                                 @Param("createdAt") LocalDateTime createdAt,
+                                                 @Param("id") Long id,
+                                                 Pageable pageable);
+
+    @Query("SELECT new gg.nya.imagehosting.models.AbandonedVideoUpload(vuf.id, u.username, vuf.fileName, " +
+            "vuf.originalExtension) FROM video_upload_user_files vuf JOIN vuf.videoUploadUser vu JOIN vu.user u " +
+            "WHERE vuf.uploadStatus = :status AND vuf.createdAt < :date ORDER BY vuf.createdAt")
+    List<AbandonedVideoUpload> findAbandonedUploads(@Param("status") VideoUploadStatus status,
+                                                    @Param("date") LocalDateTime date,
+                                                    Pageable pageable);
+
+    @Query("SELECT vuf.videoUploadUser.user.username AS username, vuf.fileName AS fileName " +
+            "FROM video_upload_user_files vuf WHERE vuf.uploadStatus = :status ORDER BY vuf.createdAt DESC")
+    List<MediaFileKeyView> findRecentFileKeysByUploadStatus(@Param("status") VideoUploadStatus status, Pageable pageable);
+
+    @Modifying
+    @Query("UPDATE video_upload_user_files vuf SET vuf.uploadStatus = :status WHERE vuf.id IN :ids")
+    int updateUploadStatusByIdIn(@Param("ids") Collection<Long> ids, @Param("status") VideoUploadStatus status);
 }
@@ -5,11 +5,16 @@ import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.Optional;
 
 @Repository
 public interface VideoUploadUserRepository extends CrudRepository<VideoUploadUser, Long> {
+    @Transactional(readOnly = true)
     @Query("SELECT v FROM video_upload_users v WHERE v.user.username = :username")
     Optional<VideoUploadUser> findByUsername(@Param("username") String username);
+
+    @Transactional(readOnly = true)
+    boolean existsByUserUsername(String username);
 }
@@ -0,0 +1,347 @@
+package gg.nya.imagehosting.services;
+
+import gg.nya.imagehosting.config.CacheConfig;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SimpleDriverDataSource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Service that keeps the local caches of all application nodes consistent, by broadcasting invalidated keys over
+ * Postgres LISTEN/NOTIFY on the existing database.
+ * <p>
+ * Invalidations are applied locally right away and queued for broadcast. The queue is a set, so repeated
+ * invalidations of the same key between two flushes are sent once, and each flush packs all queued keys into as few
+ * notifications as possible. If too many keys pile up, a single full flush is broadcast instead. A node that loses
+ * its listening connection cannot know what it missed, so it flushes all of its caches after reconnecting.
+ */
+@Service
+public class CacheInvalidationService {
+
+    /**
+     * Kinds of cached entries that can be invalidated.
+     */
+    public enum Scope {
+        /**
+         * File contents in the in-memory and off-heap file caches, keyed by username/fileName.
+         */
+        FILE,
+        /**
+         * Entries of the metadata cache, keyed by their cache key.
+         */
+        METADATA,
+        /**
+         * Entries of the negative lookup cache, keyed by their cache key.
+         */
+        NEGATIVE_LOOKUP,
+        /**
+         * New files to add to the existence index, keyed by username/fileName.
+         */
+        EXISTENCE_INDEX_ADD,
+        /**
+         * Users whose media recently changed, keyed by username.
+         */
+        RECENT_WRITE,
+        /**
+         * HTTP sessions in the session near cache, keyed by session ID.
+         */
+        SESSION,
+        /**
+         * All caches. Carries no key.
+         */
+        ALL
+    }
+
+    @Value("${app.cache.invalidation.enabled}")
+    private boolean enabled;
+    @Value("${app.cache.invalidation.channel}")
+    private String channel;
+    @Value("${app.cache.invalidation.max-pending-keys}")
+    private int maxPendingKeys;
+    @Value("${app.cache.invalidation.reconnect-delay}")
+    private Duration reconnectDelay;
+
+    /**
+     * Postgres rejects notification payloads of 8000 bytes or more.
+     */
+    private static final int MAX_PAYLOAD_BYTES = 7000;
+    private static final int POLL_TIMEOUT_MILLIS = 1000;
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final JdbcTemplate jdbcTemplate;
+    private final DataSource listenerDataSource;
+    private final MappedFileCacheService mappedFileCacheService;
+    private final ImageExistenceIndexService imageExistenceIndexService;
+    private final Cache fileCache;
+    private final Cache metadataCache;
+    private final Cache negativeLookupCache;
+    private final Cache recentWritesCache;
+    private final Cache sessionCache;
+    private volatile boolean running;
+    private Thread listenerThread;
+
+    private static final Logger log = LoggerFactory.getLogger(CacheInvalidationService.class);
+
+    /**
+     * Constructor for CacheInvalidationService. Injects the caches it keeps consistent and the database access.
+     *
+     * @param jdbcTemplate JDBC template to send notifications.
+     * @param dataSourceProperties The database connection properties, to open a dedicated connection for listening.
+     * @param cacheManager The cache manager, to retrieve the named caches.
+     * @param mappedFileCacheService The off-heap file cache.
+     * @param imageExistenceIndexService The in-memory existence index of image file names.
+     */
+    public CacheInvalidationService(JdbcTemplate jdbcTemplate, DataSourceProperties dataSourceProperties,
+                                    CacheManager cacheManager,
+                                    MappedFileCacheService mappedFileCacheService,
+                                    ImageExistenceIndexService imageExistenceIndexService) {
+        this.jdbcTemplate = jdbcTemplate;
+        // The listening connection is held for the lifetime of the node, so it is not taken from a pool
+        this.listenerDataSource = dataSourceProperties.initializeDataSourceBuilder()
+                .type(SimpleDriverDataSource.class).build();
+        this.mappedFileCacheService = mappedFileCacheService;
+        this.imageExistenceIndexService = imageExistenceIndexService;
+        this.fileCache = cacheManager.getCache(CacheConfig.FILE_CACHE);
+        this.metadataCache = cacheManager.getCache(CacheConfig.METADATA_CACHE);
+        this.negativeLookupCache = cacheManager.getCache(CacheConfig.NEGATIVE_LOOKUP_CACHE);
+        this.recentWritesCache = cacheManager.getCache(CacheConfig.RECENT_WRITES_CACHE);
+        this.sessionCache = cacheManager.getCache(CacheConfig.SESSION_CACHE);
+    }
+
+    /**
+     * Starts listening for invalidations of other nodes.
+     */
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            log.info("init, cluster cache invalidation is disabled");
+            return;
+        }
+        if (!channel.matches("[a-z_][a-z0-9_]*")) {
+            throw new IllegalStateException("Cache invalidation channel must be a lowercase SQL identifier");
+        }
+        running = true;
+        listenerThread = new Thread(this::listen, "cache-invalidation-listener");
+        listenerThread.setDaemon(true);
+        listenerThread.start();
+    }
+
+    /**
+     * Broadcasts the remaining invalidations and stops listening.
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (!enabled) {
+            return;
+        }
+        running = false;
+        listenerThread.interrupt();
+        flushPending();
+    }
+
+    /**
+     * Queues an invalidation for broadcast to all other nodes. The caller is responsible for applying the
+     * invalidation to the local caches.
+     *
+     * @param scope The kind of cached entry.
+     * @param key The key of the entry.
+     */
+    public void broadcast(Scope scope, String key) {
+        if (enabled) {
+            pending.add(scope.name() + " " + key);
+        }
+    }
+
+    /**
+     * Queues invalidations for broadcast to all other nodes, unless they would push the queue over its limit and so
+     * force a full flush. Meant for invalidations the other nodes can do without. The caller is responsible for
+     * applying the invalidations to the local caches.
+     *
+     * @param scope The kind of cached entries.
+     * @param keys The keys of the entries.
+     * @return True if the invalidations were queued.
+     */
+    public boolean broadcastIfCapacity(Scope scope, Collection<String> keys) {
+        if (!enabled || pending.size() + keys.size() > maxPendingKeys) {
+            return false;
+        }
+        keys.forEach(key -> pending.add(scope.name() + " " + key));
+        return true;
+    }
+
+    /**
+     * Sends all queued invalidations, packed into as few notifications as possible.
+     */
+    @Scheduled(fixedDelayString = "${app.cache.invalidation.flush-interval-ms}")
+    public void flushPending() {
+        if (!enabled || pending.isEmpty()) {
+            return;
+        }
+
+        List<String> lines = new ArrayList<>();
+        Iterator<String> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            lines.add(iterator.next());
+            iterator.remove();
+        }
+        if (lines.size() > maxPendingKeys) {
+            log.info("flushPending, {} pending invalidations exceed the limit, broadcasting a full flush", lines.size());
+            lines = List.of(Scope.ALL.name());
+        }
+
+        StringBuilder payload = new StringBuilder(nodeId);
+        int payloadBytes = nodeId.length();
+        int sent = 0;
+        try {
+            for (String line : lines) {
+                int lineBytes = line.getBytes(StandardCharsets.UTF_8).length + 1;
+                if (payloadBytes + lineBytes > MAX_PAYLOAD_BYTES) {
+                    notify(payload.toString());
+                    sent++;
+                    payload.setLength(0);
+                    payload.append(nodeId);
+                    payloadBytes = nodeId.length();
+                }
+                payload.append('\n').append(line);
+                payloadBytes += lineBytes;
+            }
+            notify(payload.toString());
+            sent++;
+            log.trace("flushPending, broadcast {} invalidations in {} notifications", lines.size(), sent);
+        } catch (DataAccessException e) {
+            // Keep the invalidations for the next attempt - re-sending ones that were delivered is harmless
+            log.warn("flushPending, could not broadcast {} invalidations, retrying later", lines.size(), e);
+            pending.addAll(lines);
+        }
+    }
+
+    private void notify(String payload) {
+        jdbcTemplate.queryForObject("SELECT pg_notify(?, ?)", Object.class, channel, payload);
+    }
+
+    /**
+     * Holds a dedicated connection listening on the channel, and applies the invalidations received on it.
+     * Reconnects after a delay if the connection fails, flushing all local caches since invalidations may have been
+     * missed in the meantime.
+     */
+    private void listen() {
+        boolean reconnecting = false;
+        while (running) {
+            try (Connection connection = listenerDataSource.getConnection()) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("LISTEN " + channel);
+                }
+                if (reconnecting) {
+                    log.warn("listen, reconnected to invalidation channel {}, flushing all local caches", channel);
+                    invalidateAllLocal();
+                } else {
+                    log.info("listen, listening for cache invalidations on channel {} as node {}", channel, nodeId);
+                }
+                reconnecting = true;
+
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                while (running) {
+                    PGNotification[] notifications = pgConnection.getNotifications(POLL_TIMEOUT_MILLIS);
+                    if (notifications != null) {
+                        for (PGNotification notification : notifications) {
+                            apply(notification.getParameter());
+                        }
+                    }
+                }
+            } catch (SQLException | RuntimeException e) {
+                if (!running) {
+                    break;
+                }
+                log.error("listen, invalidation channel {} failed, reconnecting in {}", channel, reconnectDelay, e);
+                reconnecting = true;
+                try {
+                    Thread.sleep(reconnectDelay.toMillis());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the invalidations of a received notification to the local caches. Notifications sent by this node are
+     * ignored, since they were applied when they were queued.
+     *
+     * @param payload The notification payload.
+     */
+    private void apply(String payload) {
+        String[] lines = payload.split("\n");
+        if (lines.length == 0 || lines[0].equals(nodeId)) {
+            return;
+        }
+        for (int i = 1; i < lines.length; i++) {
+            int separator = lines[i].indexOf(' ');
+            String scopeName = separator < 0 ? lines[i] : lines[i].substring(0, separator);
+            String key = separator < 0 ? "" : lines[i].substring(separator + 1);
+            try {
+                applyLocal(Scope.valueOf(scopeName), key);
+            } catch (IllegalArgumentException e) {
+                log.warn("apply, ignoring invalidation with unknown scope {}", scopeName);
+            }
+        }
+        log.trace("apply, applied {} invalidations from node {}", lines.length - 1, lines[0]);
+    }
+
+    private void applyLocal(Scope scope, String key) {
+        switch (scope) {
+            case FILE -> {
+                fileCache.evict(key);
+                mappedFileCacheService.invalidate(key);
+            }
+            case METADATA -> metadataCache.evict(key);
+            case NEGATIVE_LOOKUP -> negativeLookupCache.evict(key);
+            case EXISTENCE_INDEX_ADD -> {
+                int separator = key.indexOf('/');
+                if (separator > 0) {
+                    imageExistenceIndexService.recordFile(key.substring(0, separator), key.substring(separator + 1));
+                }
+            }
+            case RECENT_WRITE -> recentWritesCache.put(key, Boolean.TRUE);
+            case SESSION -> sessionCache.evict(key);
+            case ALL -> invalidateAllLocal();
+        }
+    }
+
+    private void invalidateAllLocal() {
+        // Writes may have been missed as well, so no lookups are served by replicas until they caught up
+        recentWritesCache.put(ReadReplicaService.ALL_USERS, Boolean.TRUE);
+        fileCache.clear();
+        metadataCache.clear();
+        negativeLookupCache.clear();
+        sessionCache.clear();
+        mappedFileCacheService.invalidateAll();
+        imageExistenceIndexService.invalidateAll();
+    }
+}
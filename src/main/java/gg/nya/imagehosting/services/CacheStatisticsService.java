@@ -0,0 +1,54 @@
+package gg.nya.imagehosting.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import gg.nya.imagehosting.models.CacheStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.caffeine.CaffeineCache;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Service for reading the statistics recorded by the application's in-memory caches.
+ */
+@Service
+public class CacheStatisticsService {
+    private final CacheManager cacheManager;
+
+    private static final Logger log = LoggerFactory.getLogger(CacheStatisticsService.class);
+
+    public CacheStatisticsService(CacheManager cacheManager) {
+        this.cacheManager = cacheManager;
+    }
+
+    /**
+     * Collects a statistics snapshot for every registered cache.
+     *
+     * @return The statistics of all caches, ordered by cache name.
+     */
+    public List<CacheStatistics> getCacheStatistics() {
+        List<CacheStatistics> statistics = new ArrayList<>();
+        for (String cacheName : cacheManager.getCacheNames().stream().sorted().toList()) {
+            if (!(cacheManager.getCache(cacheName) instanceof CaffeineCache caffeineCache)) {
+                log.warn("getCacheStatistics, cache {} is not a Caffeine cache, skipping", cacheName);
+                continue;
+            }
+            Cache<Object, Object> nativeCache = caffeineCache.getNativeCache();
+            CacheStats stats = nativeCache.stats();
+            statistics.add(new CacheStatistics(
+                    cacheName,
+                    nativeCache.estimatedSize(),
+                    stats.hitCount(),
+                    stats.missCount(),
+                    stats.hitRate(),
+                    stats.evictionCount(),
+                    stats.evictionWeight()
+            ));
+        }
+        return statistics;
+    }
+}
@@ -0,0 +1,248 @@
+package gg.nya.imagehosting.services;
+
+import gg.nya.imagehosting.config.CacheConfig;
+import gg.nya.imagehosting.config.WorkloadRoutingDataSource;
+import gg.nya.imagehosting.models.MediaFileKeyView;
+import gg.nya.imagehosting.models.VideoUploadStatus;
+import gg.nya.imagehosting.repositories.ImageHostingUserFileRepository;
+import gg.nya.imagehosting.repositories.VideoUploadUserFileRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Preloads the file caches on startup, so the first requests after a deploy do not all go to the object store.
+ * <p>
+ * On shutdown, the keys of the hottest cached files are written to a snapshot file. On startup, those files are loaded
+ * first, followed by the most recently uploaded images, and the sizes of the most recent videos are looked up. The
+ * warm-up runs on a bounded pool and stops once its time budget is used up. It runs before the web server starts
+ * accepting connections.
+ */
+@Service
+public class CacheWarmupService implements SmartLifecycle {
+
+    @Value("${app.cache.warmup.enabled}")
+    private boolean enabled;
+    @Value("${app.cache.warmup.snapshot-file}")
+    private String snapshotFile;
+    @Value("${app.cache.warmup.max-files}")
+    private int maxFiles;
+    @Value("${app.cache.warmup.max-videos}")
+    private int maxVideos;
+    @Value("${app.cache.warmup.parallelism}")
+    private int parallelism;
+    @Value("${app.cache.warmup.time-budget}")
+    private Duration timeBudget;
+    @Value("${app.images.streaming-threshold-bytes}")
+    private long streamingThresholdBytes;
+
+    private final S3Service s3Service;
+    private final MappedFileCacheService mappedFileCacheService;
+    private final ImageHostingUserFileRepository imageHostingUserFileRepository;
+    private final VideoUploadUserFileRepository videoUploadUserFileRepository;
+    private final Cache fileCache;
+    private volatile boolean running = false;
+
+    private static final Logger log = LoggerFactory.getLogger(CacheWarmupService.class);
+
+    /**
+     * Constructor for CacheWarmupService. Injects the relevant services.
+     *
+     * @param s3Service Service to load files through the cache tiers.
+     * @param mappedFileCacheService The off-heap file cache, to snapshot its most recent keys.
+     * @param imageHostingUserFileRepository Repository to find recently uploaded images.
+     * @param videoUploadUserFileRepository Repository to find recently uploaded videos.
+     * @param cacheManager The cache manager, to snapshot the hottest keys of the in-memory file cache.
+     */
+    public CacheWarmupService(S3Service s3Service, MappedFileCacheService mappedFileCacheService,
+                              ImageHostingUserFileRepository imageHostingUserFileRepository,
+                              VideoUploadUserFileRepository videoUploadUserFileRepository, CacheManager cacheManager) {
+        this.s3Service = s3Service;
+        this.mappedFileCacheService = mappedFileCacheService;
+        this.imageHostingUserFileRepository = imageHostingUserFileRepository;
+        this.videoUploadUserFileRepository = videoUploadUserFileRepository;
+        this.fileCache = cacheManager.getCache(CacheConfig.FILE_CACHE);
+    }
+
+    /**
+     * Warms the caches. Blocks until the warm-up is done or its time budget is used up.
+     */
+    @Override
+    public void start() {
+        running = true;
+        if (!enabled) {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        Set<String> fileKeys = new LinkedHashSet<>(readSnapshot());
+        List<MediaFileKeyView> videos = List.of();
+        try {
+            if (fileKeys.size() < maxFiles) {
+                imageHostingUserFileRepository.findRecentFileKeys(PageRequest.of(0, maxFiles)).stream()
+                        .map(file -> file.getUsername() + "/" + file.getFileName())
+                        .forEach(fileKeys::add);
+            }
+            videos = videoUploadUserFileRepository.findRecentFileKeysByUploadStatus(
+                    VideoUploadStatus.COMPLETED, PageRequest.of(0, maxVideos));
+        } catch (RuntimeException e) {
+            log.warn("start, could not load recent uploads for cache warm-up", e);
+        }
+
+        AtomicInteger warmedFiles = new AtomicInteger();
+        AtomicInteger warmedVideos = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism,
+                WorkloadRoutingDataSource.backgroundThreadFactory("cache-warmup"));
+        fileKeys.stream().limit(maxFiles).forEach(key -> pool.execute(() -> {
+            if (warmFile(key)) {
+                warmedFiles.incrementAndGet();
+            }
+        }));
+        videos.forEach(video -> pool.execute(() -> {
+            if (warmVideoSize(video)) {
+                warmedVideos.incrementAndGet();
+            }
+        }));
+        pool.shutdown();
+
+        try {
+            if (!pool.awaitTermination(timeBudget.toMillis(), TimeUnit.MILLISECONDS)) {
+                log.warn("start, cache warm-up exceeded its time budget of {}, cancelling remaining work", timeBudget);
+                pool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        log.info("start, warmed {} files and {} video sizes in {}ms", warmedFiles.get(), warmedVideos.get(),
+                System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Writes the keys of the hottest cached files to the snapshot file, for the warm-up of the next start.
+     */
+    @Override
+    public void stop() {
+        running = false;
+        if (!enabled) {
+            return;
+        }
+
+        Set<String> hotKeys = new LinkedHashSet<>();
+        if (fileCache.getNativeCache() instanceof com.github.benmanes.caffeine.cache.Cache<?, ?> caffeineCache) {
+            caffeineCache.policy().eviction().ifPresent(eviction ->
+                    eviction.hottest(maxFiles).keySet().forEach(key -> hotKeys.add(key.toString())));
+        }
+        for (String key : mappedFileCacheService.getRecentKeys(maxFiles)) {
+            if (hotKeys.size() >= maxFiles) {
+                break;
+            }
+            hotKeys.add(key);
+        }
+
+        try {
+            Path snapshotPath = Path.of(snapshotFile);
+            Files.createDirectories(snapshotPath.getParent());
+            Files.write(snapshotPath, hotKeys, StandardCharsets.UTF_8);
+            log.info("stop, wrote {} hot cache keys to {}", hotKeys.size(), snapshotPath);
+        } catch (IOException e) {
+            log.warn("stop, could not write hot cache keys to {}", snapshotFile, e);
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Runs below the phase of the embedded web server, so the warm-up completes before connections are accepted,
+     * and the snapshot is taken after the web server stopped serving requests.
+     */
+    @Override
+    public int getPhase() {
+        return SmartLifecycle.DEFAULT_PHASE - 4096;
+    }
+
+    /**
+     * Reads the keys of the snapshot file written on the last shutdown.
+     *
+     * @return The keys, hottest first, or an empty list if there is no snapshot.
+     */
+    private List<String> readSnapshot() {
+        Path snapshotPath = Path.of(snapshotFile);
+        if (!Files.isRegularFile(snapshotPath)) {
+            log.debug("readSnapshot, no hot cache key snapshot found at {}", snapshotPath);
+            return List.of();
+        }
+        try {
+            List<String> keys = new ArrayList<>();
+            for (String line : Files.readAllLines(snapshotPath, StandardCharsets.UTF_8)) {
+                if (line.indexOf('/') > 0) {
+                    keys.add(line);
+                }
+            }
+            log.debug("readSnapshot, read {} hot cache keys from {}", keys.size(), snapshotPath);
+            return keys;
+        } catch (IOException e) {
+            log.warn("readSnapshot, could not read hot cache keys from {}", snapshotPath, e);
+            return List.of();
+        }
+    }
+
+    /**
+     * Loads a file into the cache tiers, unless it is large enough to be streamed instead.
+     *
+     * @param key The cache key of the file, in the form username/fileName.
+     * @return True if the file was loaded.
+     */
+    private boolean warmFile(String key) {
+        int separator = key.indexOf('/');
+        String username = key.substring(0, separator);
+        String fileName = key.substring(separator + 1);
+        try {
+            if (s3Service.getFileSize(username, fileName) > streamingThresholdBytes) {
+                return false;
+            }
+            return s3Service.findCacheableFile(username, fileName).isPresent();
+        } catch (RuntimeException e) {
+            log.debug("warmFile, could not warm file {}", key);
+            return false;
+        }
+    }
+
+    /**
+     * Looks up the size of a video, which is cached and required for every request of it.
+     *
+     * @param video The video to look up.
+     * @return True if the size was looked up.
+     */
+    private boolean warmVideoSize(MediaFileKeyView video) {
+        try {
+            s3Service.getFileSize(video.getUsername(), video.getFileName() + ".mp4");
+            return true;
+        } catch (RuntimeException e) {
+            log.debug("warmVideoSize, could not warm size of video {} of user {}", video.getFileName(), video.getUsername());
+            return false;
+        }
+    }
+}
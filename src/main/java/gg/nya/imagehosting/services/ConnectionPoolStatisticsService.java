@@ -0,0 +1,50 @@
+package gg.nya.imagehosting.services;
+
+import com.zaxxer.hikari.metrics.PoolStats;
+import gg.nya.imagehosting.config.PoolMetricsTrackerFactory;
+import gg.nya.imagehosting.models.ConnectionPoolStatistics;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Service for reading the statistics recorded by the application's database connection pools.
+ */
+@Service
+public class ConnectionPoolStatisticsService {
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+    private final PoolMetricsTrackerFactory poolMetricsTrackerFactory;
+
+    public ConnectionPoolStatisticsService(PoolMetricsTrackerFactory poolMetricsTrackerFactory) {
+        this.poolMetricsTrackerFactory = poolMetricsTrackerFactory;
+    }
+
+    /**
+     * Collects a statistics snapshot for every connection pool that was started. Connection counts are refreshed by
+     * the pools at most once per second, acquisition times are counted since the pool was started.
+     *
+     * @return The statistics of all started pools, ordered by pool name.
+     */
+    public List<ConnectionPoolStatistics> getConnectionPoolStatistics() {
+        List<ConnectionPoolStatistics> statistics = new ArrayList<>();
+        poolMetricsTrackerFactory.getTrackers().values().stream()
+                .sorted((a, b) -> a.getPoolName().compareTo(b.getPoolName()))
+                .forEach(tracker -> {
+                    PoolStats poolStats = tracker.getPoolStats();
+                    long acquireCount = tracker.getAcquireCount();
+                    statistics.add(new ConnectionPoolStatistics(
+                            tracker.getPoolName(),
+                            poolStats.getActiveConnections(),
+                            poolStats.getIdleConnections(),
+                            poolStats.getMaxConnections(),
+                            poolStats.getPendingThreads(),
+                            acquireCount,
+                            acquireCount == 0 ? 0 : tracker.getAcquireNanos() / NANOS_PER_MILLI / acquireCount,
+                            tracker.getMaxAcquireNanos() / NANOS_PER_MILLI,
+                            tracker.getTimeoutCount()));
+                });
+        return statistics;
+    }
+}
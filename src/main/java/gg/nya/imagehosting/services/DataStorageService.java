@@ -1,80 +1,186 @@
 package gg.nya.imagehosting.services;
 
+import gg.nya.imagehosting.config.CacheConfig;
+import gg.nya.imagehosting.models.ThumbnailContent;
+import gg.nya.imagehosting.models.ThumbnailVariant;
+import jakarta.annotation.PostConstruct;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
 import org.springframework.web.server.ResponseStatusException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
 
 /**
- * Service for managing data stored on the local disk.
+ * Service for managing data stored on the local disk. Thumbnails are stored in the object store and read through an
+ * in-memory cache and a local disk cache, so any node can serve any thumbnail.
  */
 @Service
 public class DataStorageService {
 
-    @Value("${app.localstorage.thumbnail-directory}")
-    private String thumbnailDirectory;
     @Value("${app.localstorage.temp-directory}")
     private String tempDirectory;
 
+    private static final String BACKUP_THUMBNAIL_RESOURCE = "/META-INF/resources/assets/images/backup.png";
+    /**
+     * Prefix of thumbnails in the object store, below the user's directory.
+     */
+    private static final String THUMBNAIL_PREFIX = "thumbnails/";
+    /**
+     * Category of thumbnail lookups in the negative lookup cache.
+     */
+    private static final String THUMBNAIL_LOOKUP = "thumbnail";
+
+    private final ThumbnailStoreService thumbnailStoreService;
+    private final S3Service s3Service;
+    private final NegativeLookupService negativeLookupService;
+    private final Cache thumbnailCache;
+    private ThumbnailContent backupThumbnail;
+
     private static final Logger log = LoggerFactory.getLogger(DataStorageService.class);
 
     /**
-     * Stores a thumbnail image on the local disk at the specified path.
-     * Creates user subdirectory if it doesn't exist.
-     * 
+     * Constructor for DataStorageService.
+     *
+     * @param thumbnailStoreService The packed store caching thumbnails on the local disk.
+     * @param s3Service Service for storing thumbnails in the object store.
+     * @param negativeLookupService Service to remember thumbnails that are missing from the object store.
+     * @param cacheManager The cache manager, to retrieve the thumbnail cache.
+     */
+    public DataStorageService(ThumbnailStoreService thumbnailStoreService, S3Service s3Service,
+                              NegativeLookupService negativeLookupService, CacheManager cacheManager) {
+        this.thumbnailStoreService = thumbnailStoreService;
+        this.s3Service = s3Service;
+        this.negativeLookupService = negativeLookupService;
+        this.thumbnailCache = cacheManager.getCache(CacheConfig.THUMBNAIL_CACHE);
+    }
+
+    /**
+     * Loads the static backup thumbnail from the compiled resources, so it is only read once.
+     *
+     * @throws IOException If the backup thumbnail could not be read.
+     */
+    @PostConstruct
+    public void init() throws IOException {
+        try (InputStream backup = getClass().getResourceAsStream(BACKUP_THUMBNAIL_RESOURCE)) {
+            if (backup == null) {
+                throw new IllegalStateException("Backup thumbnail resource " + BACKUP_THUMBNAIL_RESOURCE + " not found");
+            }
+            this.backupThumbnail = ThumbnailContent.of(backup.readAllBytes(), MediaType.IMAGE_PNG, true);
+        }
+    }
+
+    /**
+     * Stores a thumbnail image in the object store, and caches it on the local disk.
+     *
      * @param username The username of the user
-     * @param fileIdentifier The identifier of the file
+     * @param fileIdentifier The identifier of the file, including the variant suffix if it is a variant
      * @param inputStream The input stream containing the thumbnail data
      */
     public void saveThumbnail(String username, String fileIdentifier, InputStream inputStream) {
         log.trace("saveThumbnail, storing thumbnail for user {} with filename {}", username, fileIdentifier);
 
+        byte[] thumbnail;
         try {
-            Path userDir = Path.of(thumbnailDirectory, username);
-            Files.createDirectories(userDir);
-            
-            Path thumbnailPath = userDir.resolve(fileIdentifier + ".png");
-            Files.copy(inputStream, thumbnailPath, StandardCopyOption.REPLACE_EXISTING);
-            
-            log.debug("saveThumbnail, stored thumbnail for user {} with filename {} at path {}",
-                    username, fileIdentifier, thumbnailPath);
+            thumbnail = inputStream.readAllBytes();
         } catch (IOException e) {
-            log.error("saveThumbnail, failed to store thumbnail for user {} with filename {}",
+            log.error("saveThumbnail, failed to read thumbnail for user {} with filename {}",
                     username, fileIdentifier, e);
             throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to store thumbnail", e);
         }
+        s3Service.uploadFile(username, THUMBNAIL_PREFIX + fileIdentifier, thumbnail,
+                getThumbnailMediaType(fileIdentifier).toString());
+        cacheThumbnailOnDisk(username, fileIdentifier, thumbnail);
+        thumbnailCache.evict(getThumbnailKey(username, fileIdentifier));
+        negativeLookupService.invalidate(THUMBNAIL_LOOKUP, username, fileIdentifier);
+
+        log.debug("saveThumbnail, stored thumbnail for user {} with filename {} ({} bytes)",
+                username, fileIdentifier, thumbnail.length);
     }
 
     /**
-     * Retrieves a thumbnail image from the local disk. If the thumbnail does not exist, retrieves a static backup thumbnail.
+     * Uploads a thumbnail from the local disk cache to the object store. Used to migrate thumbnails that were stored
+     * before the object store held them.
+     *
+     * @param username The username of the user
+     * @param fileIdentifier The identifier of the file, including the variant suffix if it is a variant
+     * @return True if the thumbnail was uploaded, false if it is not on the local disk.
+     * @throws IOException If the local disk cache could not be read.
+     */
+    public boolean uploadCachedThumbnail(String username, String fileIdentifier) throws IOException {
+        Optional<byte[]> thumbnail = thumbnailStoreService.get(username, fileIdentifier);
+        if (thumbnail.isEmpty()) {
+            return false;
+        }
+        s3Service.uploadFile(username, THUMBNAIL_PREFIX + fileIdentifier, thumbnail.get(),
+                getThumbnailMediaType(fileIdentifier).toString());
+        // Not broadcast - a migration uploads every thumbnail of the node, which would flood the invalidation channel,
+        // and misses recorded by other nodes expire on their own within the negative lookup TTL
+        negativeLookupService.invalidateLocal(THUMBNAIL_LOOKUP, username, fileIdentifier);
+        return true;
+    }
+
+    /**
+     * Retrieves a variant of a thumbnail image from the in-memory cache or the local disk. Videos processed before
+     * variants were introduced only have a single PNG thumbnail, which is served in place of every variant. If the
+     * thumbnail does not exist, retrieves the static backup thumbnail. Missing thumbnails are not cached, since they
+     * are created once the processing of their video completes.
      *
      * @param username The username of the user
      * @param fileIdentifier The identifier (filename without extension)
-     * @return An InputStream of the thumbnail image
+     * @param variant The requested size and format
+     * @return The thumbnail image
      */
-    public InputStream getThumbnail(String username, String fileIdentifier) {
-        log.trace("getThumbnail, retrieving thumbnail for user {} with filename {}", username, fileIdentifier);
+    public ThumbnailContent getThumbnail(String username, String fileIdentifier, ThumbnailVariant variant) {
+        log.trace("getThumbnail, retrieving thumbnail {} for user {} with filename {}", variant, username, fileIdentifier);
 
-        Path thumbnailPath = Path.of(thumbnailDirectory, username, fileIdentifier + ".png");
-        if (!Files.exists(thumbnailPath)) {
+        Optional<ThumbnailContent> thumbnail = findThumbnail(username, variant.toIdentifier(fileIdentifier))
+                .or(() -> findThumbnail(username, fileIdentifier));
+        if (thumbnail.isEmpty()) {
             log.warn("getThumbnail, thumbnail not found for user {} with filename {}, serving backup", username, fileIdentifier);
-            return getBackupThumbnail();
+            return backupThumbnail;
         }
+        return thumbnail.get();
+    }
 
-        try {
-            log.trace("getThumbnail, found thumbnail for user {} with filename {}", username, fileIdentifier);
-            return Files.newInputStream(thumbnailPath);
-        } catch (IOException e) {
-            log.error("getThumbnail, error while reading thumbnail from path {}", thumbnailPath);
-            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Error reading thumbnail", e);
+    /**
+     * Deletes all variants of a thumbnail image from the object store and the local disk, if they exist.
+     *
+     * @param username The username of the user
+     * @param fileIdentifier The identifier (filename without extension)
+     */
+    public void deleteThumbnail(String username, String fileIdentifier) {
+        List<String> identifiers = new ArrayList<>();
+        identifiers.add(fileIdentifier);
+        ThumbnailVariant.all().forEach(variant -> identifiers.add(variant.toIdentifier(fileIdentifier)));
+        for (String identifier : identifiers) {
+            try {
+                s3Service.deleteFile(username, THUMBNAIL_PREFIX + identifier);
+                if (thumbnailStoreService.delete(username, identifier)) {
+                    log.debug("deleteThumbnail, deleted thumbnail for user {} with filename {}", username, identifier);
+                }
+            } catch (IOException | ResponseStatusException e) {
+                log.warn("deleteThumbnail, failed to delete thumbnail for user {} with filename {}", username, identifier, e);
+            }
+            thumbnailCache.evict(getThumbnailKey(username, identifier));
         }
     }
 
@@ -97,6 +203,29 @@ public class DataStorageService {
         }
     }
 
+    /**
+     * Store a temporary file in the specified directory from a buffer, without copying the buffer onto the heap.
+     * @param data The contents of the file to be stored.
+     * @param filename The full name of the file, including its file extension.
+     */
+    public void saveTempFile(ByteBuffer data, String filename) {
+        try {
+            Path tempDir = Path.of(tempDirectory);
+            Files.createDirectories(tempDir);
+            try (FileChannel channel = FileChannel.open(tempDir.resolve(filename), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer source = data.duplicate();
+                while (source.hasRemaining()) {
+                    channel.write(source);
+                }
+            }
+            log.debug("saveTempFile, created file {}", tempDir.resolve(filename));
+        } catch (IOException e) {
+            log.error("saveTempFile, failed to store temporary file {}", filename, e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to store temporary file", e);
+        }
+    }
+
     /**
      * Returns the full path for a temporary file in the specified directory.
      * @param filename The full name of the file, including its file extension.
@@ -122,11 +251,111 @@ public class DataStorageService {
     }
 
     /**
-     * Retrieves a backup thumbnail image from the compiled resources.
+     * Deletes all regular files in the temporary directory that were last modified before the given cutoff.
+     * The directory is streamed entry by entry, so arbitrarily large directories can be swept without
+     * materializing the full listing.
+     *
+     * @param cutoff Files last modified before this instant are deleted.
+     * @return The number of deleted files.
+     */
+    public int deleteTempFilesOlderThan(Instant cutoff) {
+        Path tempDir = Path.of(tempDirectory);
+        if (!Files.isDirectory(tempDir)) {
+            log.trace("deleteTempFilesOlderThan, temporary directory {} does not exist", tempDir);
+            return 0;
+        }
+
+        int deleted = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(tempDir)) {
+            for (Path entry : entries) {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    if (attributes.isRegularFile() && attributes.lastModifiedTime().toInstant().isBefore(cutoff)
+                            && Files.deleteIfExists(entry)) {
+                        log.debug("deleteTempFilesOlderThan, deleted orphaned temporary file {}", entry);
+                        deleted++;
+                    }
+                } catch (IOException e) {
+                    log.warn("deleteTempFilesOlderThan, failed to delete temporary file {}", entry, e);
+                }
+            }
+        } catch (IOException e) {
+            log.error("deleteTempFilesOlderThan, failed to list temporary directory {}", tempDir, e);
+        }
+        return deleted;
+    }
+
+    /**
+     * Retrieves a stored thumbnail from the in-memory cache, the local disk cache or the object store, in that order.
+     * Thumbnails fetched from the object store are added to both caches, and missing thumbnails are remembered for a
+     * short time, so requests for videos that are still processing do not all reach the object store.
      *
-     * @return An InputStream of the backup thumbnail image
+     * @param username The username of the user
+     * @param identifier The identifier under which the thumbnail is stored
+     * @return The thumbnail image, or empty if it is not stored
      */
-    private InputStream getBackupThumbnail() {
-        return getClass().getResourceAsStream("/META-INF/resources/assets/images/backup.png");
+    private Optional<ThumbnailContent> findThumbnail(String username, String identifier) {
+        String key = getThumbnailKey(username, identifier);
+        ThumbnailContent cachedThumbnail = thumbnailCache.get(key, ThumbnailContent.class);
+        if (cachedThumbnail != null) {
+            log.trace("findThumbnail, cache hit for thumbnail of user {} with filename {}", username, identifier);
+            return Optional.of(cachedThumbnail);
+        }
+
+        Optional<byte[]> storedThumbnail = Optional.empty();
+        try {
+            storedThumbnail = thumbnailStoreService.get(username, identifier);
+        } catch (IOException e) {
+            log.warn("findThumbnail, error while reading cached thumbnail for user {} with filename {}", username, identifier, e);
+        }
+        if (storedThumbnail.isEmpty()) {
+            if (negativeLookupService.isKnownMissing(THUMBNAIL_LOOKUP, username, identifier)) {
+                return Optional.empty();
+            }
+            try {
+                storedThumbnail = s3Service.findFile(username, THUMBNAIL_PREFIX + identifier);
+            } catch (ResponseStatusException e) {
+                // Only a confirmed miss may be remembered, a failed lookup is retried by the next request
+                log.warn("findThumbnail, could not look up thumbnail for user {} with filename {} in the object store",
+                        username, identifier);
+                return Optional.empty();
+            }
+            if (storedThumbnail.isEmpty()) {
+                negativeLookupService.recordMissing(THUMBNAIL_LOOKUP, username, identifier);
+                return Optional.empty();
+            }
+            log.trace("findThumbnail, fetched thumbnail for user {} with filename {} from object store", username, identifier);
+            cacheThumbnailOnDisk(username, identifier, storedThumbnail.get());
+        }
+
+        ThumbnailContent thumbnail = ThumbnailContent.of(storedThumbnail.get(), getThumbnailMediaType(identifier), false);
+        thumbnailCache.put(key, thumbnail);
+        return Optional.of(thumbnail);
+    }
+
+    /**
+     * Adds a thumbnail to the local disk cache. Failures are only logged, since the object store holds the thumbnail.
+     */
+    private void cacheThumbnailOnDisk(String username, String identifier, byte[] thumbnail) {
+        try {
+            thumbnailStoreService.put(username, identifier, thumbnail);
+        } catch (IOException e) {
+            log.warn("cacheThumbnailOnDisk, failed to cache thumbnail for user {} with filename {}", username, identifier, e);
+        }
+    }
+
+    /**
+     * Derives the media type of a stored thumbnail from its identifier. Variants carry the extension of their format,
+     * thumbnails created before variants existed are PNG images.
+     */
+    private MediaType getThumbnailMediaType(String identifier) {
+        if (identifier.endsWith(".webp")) {
+            return ThumbnailVariant.IMAGE_WEBP;
+        }
+        return identifier.endsWith(".jpg") ? MediaType.IMAGE_JPEG : MediaType.IMAGE_PNG;
+    }
+
+    private String getThumbnailKey(String username, String fileIdentifier) {
+        return username + "/" + fileIdentifier;
     }
 }
@@ -0,0 +1,239 @@
+package gg.nya.imagehosting.services;
+
+import gg.nya.imagehosting.utils.Utils;
+import net.bramp.ffmpeg.FFmpegExecutor;
+import net.bramp.ffmpeg.builder.FFmpegBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Service for converting animated GIF uploads into an MP4 companion video. The GIF stays the stored original, and the
+ * companion is served in its place to clients that can display videos where they requested an image.
+ */
+@Service
+public class ImageAnimationService {
+
+    @Value("${app.images.animations.enabled}")
+    private boolean enabled;
+    @Value("${app.images.animations.min-input-bytes}")
+    private long minInputBytes;
+    @Value("${app.images.animations.max-input-bytes}")
+    private long maxInputBytes;
+
+    /**
+     * Category of companion video lookups in the negative lookup cache.
+     */
+    private static final String COMPANION_LOOKUP = "gif-companion";
+    public static final MediaType VIDEO_MP4 = MediaType.valueOf("video/mp4");
+
+    private final S3Service s3Service;
+    private final DataStorageService dataStorageService;
+    private final NegativeLookupService negativeLookupService;
+    private final FFmpegExecutor executor;
+
+    private static final Logger log = LoggerFactory.getLogger(ImageAnimationService.class);
+
+    /**
+     * Constructor for ImageAnimationService. Injects the relevant services.
+     *
+     * @param s3Service Service for retrieving GIFs and storing their companion videos.
+     * @param dataStorageService Service for the temporary files FFmpeg works on.
+     * @param negativeLookupService Service to remember GIFs without a companion video.
+     * @param executor The shared FFmpeg executor.
+     */
+    public ImageAnimationService(S3Service s3Service, DataStorageService dataStorageService,
+                                 NegativeLookupService negativeLookupService, FFmpegExecutor executor) {
+        this.s3Service = s3Service;
+        this.dataStorageService = dataStorageService;
+        this.negativeLookupService = negativeLookupService;
+        this.executor = executor;
+    }
+
+    /**
+     * Checks if the client should be served the companion video of an animated GIF, either because it asked for it
+     * explicitly, or because its Accept header lists MP4 videos with a non-zero quality value.
+     *
+     * @param filename The file name of the requested image.
+     * @param format The explicitly requested format, or null.
+     * @param acceptHeader The Accept header of the request, or null.
+     * @return True if the companion video should be served, if there is one.
+     */
+    public boolean acceptsCompanionVideo(String filename, String format, String acceptHeader) {
+        if (!enabled || !Utils.getFileExtensionFromFilename(filename).equals("gif")) {
+            return false;
+        }
+        if (format != null) {
+            return format.equalsIgnoreCase("mp4");
+        }
+        return Utils.acceptsMediaType(acceptHeader, VIDEO_MP4);
+    }
+
+    /**
+     * Looks up the companion video of an animated GIF. The video is not loaded, so the caller can decide whether to
+     * serve it from memory or stream it.
+     *
+     * @param username The username of the owner of the GIF.
+     * @param filename The file name of the GIF.
+     * @return The file name of the stored companion video, or empty if the GIF has none.
+     */
+    public Optional<String> findCompanionVideo(String username, String filename) {
+        if (negativeLookupService.isKnownMissing(COMPANION_LOOKUP, username, filename)) {
+            return Optional.empty();
+        }
+        String companionName = getCompanionFileName(filename);
+        boolean stored;
+        try {
+            stored = s3Service.findCachedFile(username, companionName).isPresent()
+                    || s3Service.findFileSize(username, companionName).isPresent();
+        } catch (ResponseStatusException e) {
+            log.warn("findCompanionVideo, could not look up companion video of GIF {} for user {}, serving GIF", filename, username);
+            return Optional.empty();
+        }
+        if (!stored) {
+            negativeLookupService.recordMissing(COMPANION_LOOKUP, username, filename);
+            return Optional.empty();
+        }
+        return Optional.of(companionName);
+    }
+
+    /**
+     * Asynchronously creates the companion video of a newly uploaded GIF, if it is animated and large enough for the
+     * conversion to pay off. The companion is only stored if it is smaller than the GIF.
+     *
+     * @param username The username of the owner of the GIF.
+     * @param filename The file name of the GIF.
+     */
+    @Async
+    public void createCompanionVideoAsync(String username, String filename) {
+        if (!enabled || !Utils.getFileExtensionFromFilename(filename).equals("gif")) {
+            return;
+        }
+        long size = s3Service.getFileSize(username, filename);
+        if (size < minInputBytes || size > maxInputBytes) {
+            log.trace("createCompanionVideoAsync, GIF {} of user {} has {} bytes, skipping", filename, username, size);
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        String tempName = "animation_" + UUID.randomUUID();
+        List<String> tempFiles = List.of(tempName + ".gif", tempName + ".mp4");
+        Path inputPath = dataStorageService.getTempFilePath(tempFiles.get(0));
+        Path outputPath = dataStorageService.getTempFilePath(tempFiles.get(1));
+
+        try {
+            // Stream the GIF to disk instead of loading it, so it does not pass through the file caches either
+            try (InputStream gif = s3Service.getFileStreamRange(username, filename, 0, size - 1)) {
+                dataStorageService.saveTempFile(gif, tempFiles.get(0));
+            }
+            if (!isAnimatedGif(inputPath)) {
+                log.trace("createCompanionVideoAsync, GIF {} of user {} is not animated, skipping", filename, username);
+                return;
+            }
+
+            executor.createJob(new FFmpegBuilder()
+                    .setInput(inputPath.toString())
+                    .overrideOutputFiles(true)
+                    .addOutput(outputPath.toString())
+                    .setFormat("mp4")
+                    .setVideoCodec("libx264")
+                    .setVideoPixelFormat("yuv420p")
+                    // H.264 with 4:2:0 chroma subsampling requires even dimensions
+                    .setVideoFilter("scale=trunc(iw/2)*2:trunc(ih/2)*2")
+                    .addExtraArgs("-crf", "23")
+                    .addExtraArgs("-movflags", "+faststart")
+                    .disableAudio()
+                    .done()).run();
+
+            byte[] companion = Files.readAllBytes(outputPath);
+            if (companion.length == 0 || companion.length >= size) {
+                log.debug("createCompanionVideoAsync, companion of GIF {} of user {} is not smaller ({} vs {} bytes), discarding",
+                        filename, username, companion.length, size);
+                return;
+            }
+            s3Service.uploadCacheableFile(username, getCompanionFileName(filename), companion, VIDEO_MP4.toString());
+            negativeLookupService.invalidate(COMPANION_LOOKUP, username, filename);
+            log.info("createCompanionVideoAsync, created companion of GIF {} of user {}: {} -> {} bytes in {}ms",
+                    filename, username, size, companion.length, System.currentTimeMillis() - startTime);
+        } catch (IOException | RuntimeException e) {
+            log.error("createCompanionVideoAsync, failed to create companion of GIF {} of user {}", filename, username, e);
+        } finally {
+            tempFiles.forEach(dataStorageService::deleteTempFile);
+        }
+    }
+
+    /**
+     * Returns the file name under which the companion video of a GIF is stored, next to its image derivatives.
+     *
+     * @param filename The file name of the GIF.
+     * @return The file name of the companion video.
+     */
+    private String getCompanionFileName(String filename) {
+        return "derivatives/" + filename + "/animation.mp4";
+    }
+
+    /**
+     * Checks if a GIF file holds more than one frame, by walking its blocks up to the second image descriptor.
+     *
+     * @param gifPath The GIF file.
+     * @return True if the GIF is animated, false if it holds a single frame or is malformed.
+     * @throws IOException If the file could not be read.
+     */
+    private static boolean isAnimatedGif(Path gifPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(gifPath, StandardOpenOption.READ)) {
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (data.remaining() < 13 || data.get(0) != 'G' || data.get(1) != 'I' || data.get(2) != 'F') {
+                return false;
+            }
+            // Header (6 bytes) and logical screen descriptor (7 bytes), followed by the optional global color table
+            int flags = data.get(10) & 0xFF;
+            int position = 13 + ((flags & 0x80) != 0 ? 3 * (1 << ((flags & 0x07) + 1)) : 0);
+            int frames = 0;
+
+            while (position < data.limit()) {
+                int blockType = data.get(position) & 0xFF;
+                if (blockType == 0x2C) {
+                    if (++frames > 1) {
+                        return true;
+                    }
+                    if (position + 10 > data.limit()) {
+                        return false;
+                    }
+                    // Image descriptor (10 bytes), optional local color table, LZW minimum code size (1 byte)
+                    int localFlags = data.get(position + 9) & 0xFF;
+                    position += 10 + ((localFlags & 0x80) != 0 ? 3 * (1 << ((localFlags & 0x07) + 1)) : 0) + 1;
+                } else if (blockType == 0x21) {
+                    // Extension introducer and label (2 bytes)
+                    position += 2;
+                } else {
+                    // Trailer or malformed data
+                    return false;
+                }
+                // Skip the data sub-blocks, which are terminated by an empty sub-block
+                while (position < data.limit()) {
+                    int subBlockSize = data.get(position) & 0xFF;
+                    position += subBlockSize + 1;
+                    if (subBlockSize == 0) {
+                        break;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package gg.nya.imagehosting.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import gg.nya.imagehosting.config.WorkloadRoutingDataSource;
+import gg.nya.imagehosting.models.ImageDerivativeSpec;
+import gg.nya.imagehosting.utils.Utils;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import net.bramp.ffmpeg.FFmpegExecutor;
+import net.bramp.ffmpeg.builder.FFmpegBuilder;
+import net.bramp.ffmpeg.builder.FFmpegOutputBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+/**
+ * Service for generating resized and re-encoded variants (derivatives) of hosted images on demand.
+ * Derivatives are generated with FFmpeg on a bounded worker pool, stored in the object store next to the original
+ * and served through the regular file cache tiers afterwards. Concurrent requests for the same derivative share a
+ * single generation.
+ */
+@Service
+public class ImageDerivativeService {
+
+    @Value("${app.images.derivatives.enabled}")
+    private boolean enabled;
+    @Value("${app.images.derivatives.negotiate-webp}")
+    private boolean negotiateWebp;
+    @Value("${app.images.derivatives.allowed-sizes}")
+    private List<Integer> allowedSizes;
+    @Value("${app.images.derivatives.worker-threads}")
+    private int workerThreads;
+    @Value("${app.images.derivatives.queue-capacity}")
+    private int queueCapacity;
+    @Value("${app.images.derivatives.timeout}")
+    private Duration timeout;
+    @Value("${app.images.derivatives.failure-ttl}")
+    private Duration failureTtl;
+    @Value("${app.images.derivatives.failure-cache-max-size}")
+    private long failureCacheMaxSize;
+
+    /**
+     * Original formats that derivatives can be generated from. Animated GIFs and vector images are always served as-is.
+     */
+    private static final List<String> DERIVABLE_EXTENSIONS = List.of("png", "jpg", "jpeg", "webp");
+    private static final MediaType WEBP = MediaType.valueOf("image/webp");
+
+    private final S3Service s3Service;
+    private final DataStorageService dataStorageService;
+    private final FFmpegExecutor executor;
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+    /**
+     * Derivatives whose generation recently failed. Requests for them are served the original without running FFmpeg
+     * again until the entry expires.
+     */
+    private Cache<String, Boolean> failedDerivatives;
+    private ThreadPoolExecutor workerPool;
+
+    private static final Logger log = LoggerFactory.getLogger(ImageDerivativeService.class);
+
+    /**
+     * Constructor for ImageDerivativeService. Injects the relevant services.
+     *
+     * @param s3Service Service for retrieving originals and storing derivatives.
+     * @param dataStorageService Service for the temporary files FFmpeg works on.
+     * @param executor The shared FFmpeg executor.
+     */
+    public ImageDerivativeService(S3Service s3Service, DataStorageService dataStorageService, FFmpegExecutor executor) {
+        this.s3Service = s3Service;
+        this.dataStorageService = dataStorageService;
+        this.executor = executor;
+    }
+
+    /**
+     * Initializes the bounded worker pool and the failure cache. Requests beyond the pool's queue capacity are served
+     * the original image.
+     */
+    @PostConstruct
+    public void init() {
+        this.failedDerivatives = Caffeine.newBuilder()
+                .maximumSize(failureCacheMaxSize)
+                .expireAfterWrite(failureTtl)
+                .build();
+        this.workerPool = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), WorkloadRoutingDataSource.backgroundThreadFactory("image-derivative"),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Stops the worker pool.
+     */
+    @PreDestroy
+    public void shutdown() {
+        workerPool.shutdownNow();
+    }
+
+    /**
+     * Determines which derivative, if any, should be served for a request. Requested sizes are rounded up to the
+     * nearest allowed size, so the number of derivatives per image stays bounded. Throws a 400 error for invalid
+     * parameters.
+     *
+     * @param filename The file name of the original image.
+     * @param width The requested maximum width, or null.
+     * @param height The requested maximum height, or null.
+     * @param format The explicitly requested format, or null to negotiate through the Accept header.
+     * @param acceptHeader The Accept header of the request, or null.
+     * @return The derivative to serve, or empty if the original should be served.
+     */
+    public Optional<ImageDerivativeSpec> resolveSpec(String filename, Integer width, Integer height, String format,
+                                                     String acceptHeader) {
+        String originalExtension = Utils.getFileExtensionFromFilename(filename);
+        if (!enabled || !DERIVABLE_EXTENSIONS.contains(originalExtension)) {
+            return Optional.empty();
+        }
+
+        String originalFormat = normalizeFormat(originalExtension);
+        String targetFormat;
+        if (format != null) {
+            targetFormat = normalizeFormat(format.toLowerCase());
+            if (targetFormat == null) {
+                log.debug("resolveSpec, unsupported format {} requested for file {}", format, filename);
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unsupported image format");
+            }
+        } else if (negotiateWebp && Utils.acceptsMediaType(acceptHeader, WEBP)) {
+            targetFormat = "webp";
+        } else {
+            targetFormat = originalFormat;
+        }
+
+        Integer snappedWidth = snapSize(width);
+        Integer snappedHeight = snapSize(height);
+        if (snappedWidth == null && snappedHeight == null && targetFormat.equals(originalFormat)) {
+            return Optional.empty();
+        }
+        return Optional.of(new ImageDerivativeSpec(snappedWidth, snappedHeight, targetFormat));
+    }
+
+    /**
+     * Makes sure a derivative of an image is stored, generating it if it does not exist yet. The derivative is not
+     * loaded, so the caller can decide whether to serve it from memory or stream it. If the derivative cannot be
+     * generated in time, or its generation recently failed, the caller is expected to fall back to the original.
+     *
+     * @param username The username of the owner of the image.
+     * @param filename The file name of the original image.
+     * @param spec The derivative to retrieve.
+     * @return The file name of the stored derivative, or empty if it is not available.
+     */
+    public Optional<String> getDerivative(String username, String filename, ImageDerivativeSpec spec) {
+        String derivativeName = spec.toFileName(filename);
+        String key = username + "/" + derivativeName;
+        if (failedDerivatives.getIfPresent(key) != null) {
+            log.trace("getDerivative, generation of {} for user {} failed recently, serving original", derivativeName, username);
+            return Optional.empty();
+        }
+        try {
+            if (isStored(username, derivativeName)) {
+                return Optional.of(derivativeName);
+            }
+        } catch (ResponseStatusException e) {
+            log.warn("getDerivative, could not look up {} for user {}, serving original", derivativeName, username);
+            return Optional.empty();
+        }
+
+        // Single flight - all concurrent requests for the same derivative wait on the same generation
+        CompletableFuture<Void> created = new CompletableFuture<>();
+        CompletableFuture<Void> generation = inFlight.putIfAbsent(key, created);
+        if (generation == null) {
+            generation = created;
+            try {
+                workerPool.execute(() -> {
+                    try {
+                        // A generation that finished between the lookup above and claiming the key has already
+                        // stored the derivative, so look again before running FFmpeg
+                        if (!isStored(username, derivativeName)) {
+                            generateDerivative(username, filename, derivativeName, spec);
+                        }
+                        created.complete(null);
+                    } catch (Throwable t) {
+                        failedDerivatives.put(key, Boolean.TRUE);
+                        created.completeExceptionally(t);
+                    } finally {
+                        inFlight.remove(key, created);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                log.warn("getDerivative, worker pool saturated, serving original for file {} of user {}", filename, username);
+                inFlight.remove(key, created);
+                created.completeExceptionally(e);
+                return Optional.empty();
+            }
+        }
+
+        try {
+            generation.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            return Optional.of(derivativeName);
+        } catch (TimeoutException e) {
+            log.warn("getDerivative, generation of {} for user {} timed out, serving original", derivativeName, username);
+        } catch (ExecutionException e) {
+            // Only the request that started the generation logs the failure, the others are served the original quietly
+            if (generation == created) {
+                log.error("getDerivative, generation of {} for user {} failed, serving original for {}",
+                        derivativeName, username, failureTtl, e.getCause());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Generates a derivative with FFmpeg and stores it in the object store and the cache tiers.
+     *
+     * @param username The username of the owner of the image.
+     * @param filename The file name of the original image.
+     * @param derivativeName The file name of the derivative.
+     * @param spec The derivative to generate.
+     */
+    private void generateDerivative(String username, String filename, String derivativeName, ImageDerivativeSpec spec) {
+        long startTime = System.currentTimeMillis();
+        String tempName = "derivative_" + UUID.randomUUID();
+        String inputName = tempName + "_input." + Utils.getFileExtensionFromFilename(filename);
+        String outputName = tempName + "." + spec.getFileExtension();
+        Path inputPath = dataStorageService.getTempFilePath(inputName);
+        Path outputPath = dataStorageService.getTempFilePath(outputName);
+
+        try {
+            dataStorageService.saveTempFile(s3Service.getCacheableFile(username, filename), inputName);
+
+            FFmpegOutputBuilder output = new FFmpegBuilder()
+                    .setInput(inputPath.toString())
+                    .overrideOutputFiles(true)
+                    .addOutput(outputPath.toString())
+                    .setFrames(1);
+            String scaleFilter = getScaleFilter(spec);
+            if (scaleFilter != null) {
+                output.setVideoFilter(scaleFilter);
+            }
+            switch (spec.format()) {
+                case "webp" -> output.setVideoCodec("libwebp").addExtraArgs("-quality", "80");
+                case "jpeg" -> output.setVideoCodec("mjpeg").addExtraArgs("-q:v", "3").addExtraArgs("-update", "1");
+                default -> output.setVideoCodec("png").addExtraArgs("-update", "1");
+            }
+            executor.createJob(output.done()).run();
+
+            byte[] derivative = Files.readAllBytes(outputPath);
+            s3Service.uploadCacheableFile(username, derivativeName, derivative, spec.getMediaType().toString());
+            log.debug("generateDerivative, generated {} for user {} ({} bytes) in {}ms",
+                    derivativeName, username, derivative.length, System.currentTimeMillis() - startTime);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            dataStorageService.deleteTempFile(inputName);
+            dataStorageService.deleteTempFile(outputName);
+        }
+    }
+
+    /**
+     * Checks if a derivative is stored, without loading it.
+     *
+     * @param username The username of the owner of the image.
+     * @param derivativeName The file name of the derivative.
+     * @return True if the derivative is held in the cache tiers or the object store.
+     */
+    private boolean isStored(String username, String derivativeName) {
+        return s3Service.findCachedFile(username, derivativeName).isPresent()
+                || s3Service.findFileSize(username, derivativeName).isPresent();
+    }
+
+    /**
+     * Builds the FFmpeg scale filter for a derivative. Images are only ever scaled down, keeping their aspect ratio.
+     *
+     * @param spec The derivative to generate.
+     * @return The scale filter, or null if the image keeps its size.
+     */
+    private String getScaleFilter(ImageDerivativeSpec spec) {
+        if (spec.width() != null && spec.height() != null) {
+            return String.format("scale='min(iw,%d)':'min(ih,%d)':force_original_aspect_ratio=decrease",
+                    spec.width(), spec.height());
+        }
+        if (spec.width() != null) {
+            return String.format("scale='min(iw,%d)':-1", spec.width());
+        }
+        if (spec.height() != null) {
+            return String.format("scale=-1:'min(ih,%d)'", spec.height());
+        }
+        return null;
+    }
+
+    /**
+     * Rounds a requested size up to the nearest allowed size, or down to the largest allowed size.
+     * Throws a 400 error for non-positive sizes.
+     *
+     * @param size The requested size, or null.
+     * @return The allowed size, or null if no size was requested.
+     */
+    private Integer snapSize(Integer size) {
+        if (size == null) {
+            return null;
+        }
+        if (size <= 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid image size");
+        }
+        int largest = 0;
+        Integer snapped = null;
+        for (int allowed : allowedSizes) {
+            largest = Math.max(largest, allowed);
+            if (allowed >= size && (snapped == null || allowed < snapped)) {
+                snapped = allowed;
+            }
+        }
+        return snapped != null ? snapped : largest;
+    }
+
+    /**
+     * Maps a format name or file extension to the canonical format name.
+     *
+     * @param format The format name or file extension.
+     * @return The canonical format name, or null if the format is not supported.
+     */
+    private static String normalizeFormat(String format) {
+        return switch (format) {
+            case "webp" -> "webp";
+            case "jpg", "jpeg" -> "jpeg";
+            case "png" -> "png";
+            default -> null;
+        };
+    }
+}
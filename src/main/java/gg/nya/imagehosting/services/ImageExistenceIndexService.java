@@ -0,0 +1,203 @@
+package gg.nya.imagehosting.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import gg.nya.imagehosting.repositories.ImageHostingUserFileRepository;
+import gg.nya.imagehosting.utils.BloomFilter;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Service that keeps an in-memory Bloom filter of image file names per user, so that lookups of images that
+ * definitely do not exist can be answered without querying the database.
+ * <p>
+ * Filters are loaded lazily on the first lookup for a user. Uploads on this node are added immediately, uploads on
+ * other nodes are picked up by an incremental refresh of the rows created since the previous refresh on every lookup
+ * that misses, so a miss is only reported after the database has been consulted since the lookup began. Each filter is
+ * rebuilt from scratch after a longer interval so it never drifts from the database for long.
+ */
+@Service
+public class ImageExistenceIndexService {
+
+    @Value("${app.cache.existence-index.enabled}")
+    private boolean enabled;
+    /**
+     * Rows are re-read this far before the start of the previous refresh, to pick up rows that were committed after
+     * it, but stamped with their creation time before it. Must cover the time between stamping and committing a row,
+     * plus the clock skew between nodes. Rows trailing further are still added by the broadcast of the uploading node
+     * and by the next rebuild. Adding a name twice is harmless.
+     */
+    @Value("${app.cache.existence-index.refresh-overlap}")
+    private Duration refreshOverlap;
+    @Value("${app.cache.existence-index.rebuild-interval}")
+    private Duration rebuildInterval;
+    @Value("${app.cache.existence-index.max-users}")
+    private long maxUsers;
+
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+    private static final long MIN_CAPACITY = 1024;
+
+    private final ImageHostingUserFileRepository imageHostingUserFileRepository;
+    private Cache<String, UserIndex> userIndexes;
+
+    private static final Logger log = LoggerFactory.getLogger(ImageExistenceIndexService.class);
+
+    /**
+     * Bloom filter of a single user's file names, along with the state needed for incremental refreshes.
+     */
+    private static final class UserIndex {
+        private final BloomFilter filter;
+        /**
+         * Number of distinct file names added, each counted when the filter did not contain it yet.
+         */
+        private long fileCount;
+        /**
+         * Start time of the latest refresh, or of the initial load. A lookup that began before this time is answered
+         * by that refresh and does not need its own.
+         */
+        private long refreshStartedNanos;
+        /**
+         * Wall-clock start time of the latest refresh, or of the initial load. The next refresh reads the rows created
+         * since this time, minus the overlap.
+         */
+        private LocalDateTime refreshStartedAt;
+
+        private UserIndex(BloomFilter filter) {
+            this.filter = filter;
+        }
+    }
+
+    public ImageExistenceIndexService(ImageHostingUserFileRepository imageHostingUserFileRepository) {
+        this.imageHostingUserFileRepository = imageHostingUserFileRepository;
+    }
+
+    /**
+     * Initializes the per-user index cache.
+     */
+    @PostConstruct
+    public void init() {
+        this.userIndexes = Caffeine.newBuilder()
+                .maximumSize(maxUsers)
+                .expireAfterWrite(rebuildInterval)
+                .build();
+    }
+
+    /**
+     * Checks if the given user definitely has no image with the given file name.
+     *
+     * @param username The username of the user.
+     * @param filename The file name of the image.
+     * @return True if the image definitely does not exist, false if it might exist and must be confirmed.
+     */
+    public boolean isDefinitelyMissing(String username, String filename) {
+        if (!enabled) {
+            return false;
+        }
+
+        long lookupStartedNanos = System.nanoTime();
+        UserIndex index = userIndexes.get(username, this::buildIndex);
+        if (index.filter.mightContain(filename)) {
+            return false;
+        }
+        // Only misses need a fresh view - pick up files uploaded on other nodes, unless a refresh that started after
+        // this lookup has already done so. Concurrent misses of the same user thus share a single query.
+        synchronized (index) {
+            if (index.refreshStartedNanos - lookupStartedNanos < 0) {
+                refresh(username, index);
+            }
+            if (index.filter.mightContain(filename)) {
+                return false;
+            }
+        }
+        log.trace("isDefinitelyMissing, existence index rules out file {} for user {}", filename, username);
+        return true;
+    }
+
+    /**
+     * Adds a newly stored file to the user's index, if the index is loaded. A file recorded while the index is still
+     * being built is skipped, but a lookup missing it refreshes the index and finds its row then.
+     *
+     * @param username The username of the user.
+     * @param filename The file name of the new image.
+     */
+    public void recordFile(String username, String filename) {
+        UserIndex index = userIndexes.getIfPresent(username);
+        if (index != null) {
+            synchronized (index) {
+                add(index, filename);
+            }
+        }
+    }
+
+    /**
+     * Discards the user's index, so it is rebuilt on the next lookup. Required whenever files are removed.
+     *
+     * @param username The username of the user.
+     */
+    public void invalidateUser(String username) {
+        userIndexes.invalidate(username);
+    }
+
+    /**
+     * Discards the indexes of all users, so they are rebuilt on their next lookup.
+     */
+    public void invalidateAll() {
+        userIndexes.invalidateAll();
+    }
+
+    /**
+     * Loads all file names of the given user into a new index.
+     *
+     * @param username The username of the user.
+     * @return The new index.
+     */
+    private UserIndex buildIndex(String username) {
+        long startedNanos = System.nanoTime();
+        LocalDateTime startedAt = LocalDateTime.now();
+        List<String> files = imageHostingUserFileRepository.findFileNamesByUsername(username);
+        // Leave room for twice the current number of files before the filter degrades
+        UserIndex index = new UserIndex(new BloomFilter(Math.max(MIN_CAPACITY, files.size() * 2L), FALSE_POSITIVE_PROBABILITY));
+        files.forEach(filename -> add(index, filename));
+        index.refreshStartedNanos = startedNanos;
+        index.refreshStartedAt = startedAt;
+        log.debug("buildIndex, built existence index for user {} with {} files", username, files.size());
+        return index;
+    }
+
+    /**
+     * Adds all rows created since the previous refresh to the index. Creation times are stamped right before a row is
+     * persisted, so unlike IDs, which every node draws in blocks, they order rows by their commit within the overlap.
+     * If the filter has outgrown its capacity, the index is discarded instead, so the next lookup rebuilds it with a
+     * larger filter. Must be called while holding the index monitor.
+     *
+     * @param username The username of the user.
+     * @param index The index to refresh.
+     */
+    private void refresh(String username, UserIndex index) {
+        LocalDateTime since = index.refreshStartedAt.minus(refreshOverlap);
+        index.refreshStartedNanos = System.nanoTime();
+        index.refreshStartedAt = LocalDateTime.now();
+        List<String> files = imageHostingUserFileRepository.findFileNamesByUsernameCreatedSince(username, since);
+        files.forEach(filename -> add(index, filename));
+        log.trace("refresh, refreshed existence index for user {} with {} rows", username, files.size());
+
+        if (index.fileCount > index.filter.getExpectedInsertions()) {
+            log.debug("refresh, existence index for user {} exceeded its capacity, discarding", username);
+            userIndexes.invalidate(username);
+        }
+    }
+
+    private void add(UserIndex index, String filename) {
+        if (!index.filter.mightContain(filename)) {
+            index.filter.add(filename);
+            index.fileCount++;
+        }
+    }
+}
@@ -1,26 +1,41 @@
 package gg.nya.imagehosting.services;
 
+import gg.nya.imagehosting.config.WorkloadRoutingDataSource;
 import gg.nya.imagehosting.models.ImageApiEntity;
+import gg.nya.imagehosting.models.ImageBatchApiEntity;
+import gg.nya.imagehosting.models.ImageContent;
+import gg.nya.imagehosting.models.ImageDerivativeSpec;
 import gg.nya.imagehosting.models.ImageHostingUser;
 import gg.nya.imagehosting.models.ImageHostingUserFile;
+import gg.nya.imagehosting.models.ImageHostingUserFileChecksumView;
 import gg.nya.imagehosting.models.User;
 import gg.nya.imagehosting.repositories.ImageHostingUserFileRepository;
 import gg.nya.imagehosting.repositories.ImageHostingUserRepository;
+import gg.nya.imagehosting.utils.ChecksumInputStream;
+import gg.nya.imagehosting.utils.LogRateLimiter;
 import gg.nya.imagehosting.utils.Utils;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.servlet.http.HttpServletRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.server.ResponseStatusException;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.Optional;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 @Service
 public class ImageHostingService {
@@ -28,34 +43,176 @@ public class ImageHostingService {
     private final ImageHostingUserFileRepository imageHostingUserFileRepository;
     private final UserService userService;
     private final S3Service s3Service;
+    private final DataStorageService dataStorageService;
+    private final NegativeLookupService negativeLookupService;
+    private final ImageExistenceIndexService imageExistenceIndexService;
+    private final ImageDerivativeService imageDerivativeService;
+    private final ImageOptimizationService imageOptimizationService;
+    private final ImageAnimationService imageAnimationService;
+    private final CacheInvalidationService cacheInvalidationService;
+    private final ReadReplicaService readReplicaService;
 
     private static final Logger log = LoggerFactory.getLogger(ImageHostingService.class);
+    private static final LogRateLimiter notFoundLogLimiter = new LogRateLimiter(Duration.ofSeconds(10));
+
+    @Value("${app.images.streaming-threshold-bytes}")
+    private long streamingThresholdBytes;
+    @Value("${app.images.batch.max-files}")
+    private int batchMaxFiles;
+    @Value("${app.images.batch.upload-threads}")
+    private int batchUploadThreads;
+
+    private ThreadPoolExecutor batchUploadPool;
 
     @Autowired
     public ImageHostingService(ImageHostingUserRepository imageHostingUserRepository,
                                ImageHostingUserFileRepository imageHostingUserFileRepository,
-                               UserService userService, S3Service s3Service) {
+                               UserService userService, S3Service s3Service, DataStorageService dataStorageService,
+                               NegativeLookupService negativeLookupService,
+                               ImageExistenceIndexService imageExistenceIndexService,
+                               ImageDerivativeService imageDerivativeService,
+                               ImageOptimizationService imageOptimizationService,
+                               ImageAnimationService imageAnimationService,
+                               CacheInvalidationService cacheInvalidationService,
+                               ReadReplicaService readReplicaService) {
         this.imageHostingUserRepository = imageHostingUserRepository;
         this.imageHostingUserFileRepository = imageHostingUserFileRepository;
         this.userService = userService;
         this.s3Service = s3Service;
+        this.dataStorageService = dataStorageService;
+        this.negativeLookupService = negativeLookupService;
+        this.imageExistenceIndexService = imageExistenceIndexService;
+        this.imageDerivativeService = imageDerivativeService;
+        this.imageOptimizationService = imageOptimizationService;
+        this.imageAnimationService = imageAnimationService;
+        this.cacheInvalidationService = cacheInvalidationService;
+        this.readReplicaService = readReplicaService;
+    }
+
+    /**
+     * Initializes the bounded worker pool for batch uploads. When all workers are busy and the queue is full, the
+     * uploading request thread performs the upload itself, which throttles further submissions.
+     */
+    @PostConstruct
+    public void init() {
+        this.batchUploadPool = new ThreadPoolExecutor(batchUploadThreads, batchUploadThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(batchMaxFiles), WorkloadRoutingDataSource.backgroundThreadFactory("image-batch-upload"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Stops the batch upload pool.
+     */
+    @PreDestroy
+    public void shutdown() {
+        batchUploadPool.shutdown();
     }
 
     /**
-     * Serve an image from the given user.
+     * Serve an image from the given user, resized and/or re-encoded if requested. Animated GIFs are served as their
+     * companion video to clients that accept it. Falls back to the original image if the requested derivative cannot
+     * be generated in time. If the original is requested and the client's copy is current, the image is not loaded.
      *
      * @param username The username of the user.
      * @param filename The filename of the image.
-     * @return The image as an input stream, if it exists. Throws a 404 error if the image does not exist.
+     * @param width The requested maximum width, or null.
+     * @param height The requested maximum height, or null.
+     * @param format The explicitly requested format, or null to negotiate through the Accept header.
+     * @param acceptHeader The Accept header of the request, or null.
+     * @param ifNoneMatch The If-None-Match header of the request, or null.
+     * @return The image data and its media type, if it exists, or content without data if the client's copy is
+     * current. Throws a 404 error if the image does not exist.
      */
-    public ByteArrayInputStream retrieveImage(String username, String filename) {
-        log.debug("retrieveImage, checking if image for user {} with filename {} exists", username, filename);
-        if (!checkImageExists(username, filename)) {
-            log.error("retrieveImage, image for user {} with filename {} not found", username, filename);
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Image not found");
+    public ImageContent retrieveImage(String username, String filename, Integer width, Integer height, String format,
+                                      String acceptHeader, String ifNoneMatch) {
+        Optional<ImageDerivativeSpec> specOpt = imageDerivativeService.resolveSpec(filename, width, height, format, acceptHeader);
+        ImageHostingUserFileChecksumView file = requireImageExists(username, filename);
+        MediaType mediaType = getMediaType(filename);
+        // The content digest identifies the stored original, so it doubles as its entity tag
+        String eTag = file.getContentSha256() != null ? "\"" + file.getContentSha256() + "\"" : null;
+        boolean companionAccepted = imageAnimationService.acceptsCompanionVideo(filename, format, acceptHeader);
+        if (specOpt.isEmpty() && !companionAccepted) {
+            ImageContent notModified = ImageContent.notModified(mediaType, eTag);
+            if (notModified.isCurrent(ifNoneMatch)) {
+                log.debug("retrieveImage, client copy of image {} for user {} is current", filename, username);
+                return notModified;
+            }
+        }
+        if (companionAccepted) {
+            Optional<String> companion = imageAnimationService.findCompanionVideo(username, filename);
+            if (companion.isPresent()) {
+                log.debug("retrieveImage, serving companion video of GIF {} for user {}", filename, username);
+                return serveStoredFile(username, companion.get(), ImageAnimationService.VIDEO_MP4);
+            }
+        }
+        if (specOpt.isPresent()) {
+            log.debug("retrieveImage, serving derivative {} of image {} for user {}", specOpt.get(), filename, username);
+            Optional<String> derivative = imageDerivativeService.getDerivative(username, filename, specOpt.get());
+            if (derivative.isPresent()) {
+                return serveStoredFile(username, derivative.get(), specOpt.get().getMediaType());
+            }
         }
         log.debug("retrieveImage, image for user {} with filename {} found in DB, querying cached S3", username, filename);
-        return new ByteArrayInputStream(s3Service.getCacheableFile(username, filename));
+        return serveStoredFile(username, filename, mediaType).withETag(eTag);
+    }
+
+    /**
+     * Prepares a stored file for serving. Files held in the cache tiers or below the streaming threshold are served
+     * from memory, larger files are streamed instead of being loaded, so memory usage does not scale with the largest
+     * file requested.
+     *
+     * @param username The username of the user.
+     * @param fileName The file name of the stored object.
+     * @param mediaType The media type of the file.
+     * @return The file content.
+     */
+    private ImageContent serveStoredFile(String username, String fileName, MediaType mediaType) {
+        Optional<ByteBuffer> cachedFile = s3Service.findCachedFile(username, fileName);
+        if (cachedFile.isPresent()) {
+            return ImageContent.buffered(cachedFile.get(), mediaType);
+        }
+        long size = s3Service.getFileSize(username, fileName);
+        if (size > streamingThresholdBytes) {
+            log.debug("serveStoredFile, file {} of user {} has {} bytes, streaming from S3", fileName, username, size);
+            return ImageContent.streamed(fileName, size, mediaType);
+        }
+        return ImageContent.buffered(s3Service.getCacheableFile(username, fileName), mediaType);
+    }
+
+    /**
+     * Opens a stream over a byte range of an image, for images that are too large to be served from memory.
+     * The image must have been checked to exist with {@link #retrieveImage(String, String, Integer, Integer, String, String, String)}.
+     *
+     * @param username The username of the user.
+     * @param filename The file name of the stored object, as given by {@link ImageContent#objectName()}.
+     * @param start The first byte to serve.
+     * @param end The last byte to serve, inclusive.
+     * @return The requested byte range as an input stream.
+     */
+    public InputStream getImageStream(String username, String filename, long start, long end) {
+        log.debug("getImageStream, streaming bytes {}-{} of image {} for user {}", start, end, filename, username);
+        return s3Service.getFileStreamRange(username, filename, start, end);
+    }
+
+    /**
+     * Throws a 404 error if the given user has no image with the given filename.
+     *
+     * @param username The username of the user.
+     * @param filename The filename of the image.
+     * @return The ID and content digest of the image.
+     */
+    private ImageHostingUserFileChecksumView requireImageExists(String username, String filename) {
+        log.debug("requireImageExists, checking if image for user {} with filename {} exists", username, filename);
+        Optional<ImageHostingUserFileChecksumView> file = findImageFile(username, filename);
+        if (file.isEmpty()) {
+            OptionalLong suppressed = notFoundLogLimiter.tryAcquire();
+            if (suppressed.isPresent()) {
+                log.error("requireImageExists, image for user {} with filename {} not found ({} similar messages suppressed)",
+                        username, filename, suppressed.getAsLong());
+            }
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Image not found");
+        }
+        return file.get();
     }
 
     /**
@@ -89,38 +246,141 @@ public class ImageHostingService {
 
 
     /**
-     * Uploads an image for the user associated with the given API key.
+     * Uploads an image for the user associated with the given API key. The image is spooled to disk while its
+     * checksums are computed. If the user already stored an identical image, the new copy is discarded before anything
+     * is written to S3 and the existing image is returned instead. Otherwise, a file name is reserved and the image is
+     * uploaded to S3 from disk.
      *
      * @param request          The request when POSTing the image
      * @param apiKey           The API key of the user.
      * @param fileStream       The image to upload.
+     * @param fileSize         The exact size of the image in bytes.
      * @param originalFileName The original file name.
      * @return The REST entity to retrieve this image.
      * @throws IOException If the image could not be uploaded.
      */
-    public ImageApiEntity uploadImageForUser(HttpServletRequest request, String apiKey, InputStream fileStream, String originalFileName) throws IOException {
+    public ImageApiEntity uploadImageForUser(HttpServletRequest request, String apiKey, InputStream fileStream,
+                                             long fileSize, String originalFileName) throws IOException {
         log.debug("uploadImageForUser, attempting to upload image for user with API key {}", apiKey);
         ImageHostingUser user = validateApiKey(apiKey);
         MediaType mediaType = getMediaType(originalFileName);
-        String fileExtension = originalFileName.substring(originalFileName.lastIndexOf("."));
-
-        log.debug("uploadImageForUser, uploading image for user {} with file type {}", user.getUser().getUsername(), fileExtension);
-        //Generate a file name for the image
-        String fileName = tryCreateFileName(user, fileExtension);
-        //Upload image to S3
-        s3Service.uploadFile(user.getUser().getUsername(), fileName, fileStream, mediaType.toString());
-        //Create and persist new image hosting user file
-        ImageHostingUserFile imageHostingUserFile = new ImageHostingUserFile();
-        imageHostingUserFile.setImageHostingUser(user);
-        imageHostingUserFile.setFileName(fileName);
-        imageHostingUserFile.setFileSize((long) fileStream.available());
-        imageHostingUserFile.setCreatedAt(LocalDateTime.now());
-        imageHostingUserFileRepository.save(imageHostingUserFile);
+        String fileExtension = getFileExtension(originalFileName);
+        String username = user.getUser().getUsername();
 
-        //Generate REST response
-        ImageApiEntity imageApiEntity = new ImageApiEntity();
-        imageApiEntity.setURL(Utils.createResourceURL(request, user.getUser().getUsername(), "i", fileName));
-        return imageApiEntity;
+        log.debug("uploadImageForUser, uploading image for user {} with file type {}", username, fileExtension);
+        //Spool the image to disk, computing its checksums
+        SpooledUpload upload = spoolUpload(username, fileStream, fileSize);
+        try {
+            //Deduplicate against the user's existing images before anything is uploaded
+            Optional<ImageHostingUserFile> duplicate = imageHostingUserFileRepository
+                    .findFirstByImageHostingUserAndContentSha256AndFileSize(user, upload.sha256(), fileSize);
+            if (duplicate.isPresent()) {
+                log.info("uploadImageForUser, image uploaded by user {} duplicates existing file {}, discarding upload",
+                        username, duplicate.get().getFileName());
+                return createImageApiEntity(request, username, duplicate.get().getFileName());
+            }
+
+            //Generate a file name for the image and upload it to S3
+            String fileName = reserveFileNames(user, List.of(fileExtension)).get(0);
+            ImageHostingUserFile imageHostingUserFile = storeUpload(user, fileName, upload, mediaType);
+
+            //Persist new image hosting user file, stamped right before its commit for the existence index refresh
+            imageHostingUserFile.setCreatedAt(LocalDateTime.now());
+            imageHostingUserFileRepository.save(imageHostingUserFile);
+            onImageStored(imageHostingUserFile);
+            return createImageApiEntity(request, username, imageHostingUserFile.getFileName());
+        } finally {
+            dataStorageService.deleteTempFile(upload.tempName());
+        }
+    }
+
+    /**
+     * Uploads a batch of images for the user associated with the given API key. The API key is validated once for the
+     * whole batch, and the images are spooled to disk concurrently while their checksums are computed. Images the user
+     * already stored, or that appear twice in the batch, are deduplicated before anything is written to S3. File names
+     * are then reserved for the new images only, which are uploaded to S3 concurrently and persisted together.
+     * If any upload fails, the images of the batch that were already uploaded are removed again.
+     *
+     * @param request The request when POSTing the images.
+     * @param apiKey  The API key of the user.
+     * @param files   The images to upload.
+     * @return The REST entity holding the URLs of the images, in the order of the uploaded files.
+     */
+    public ImageBatchApiEntity uploadImagesForUser(HttpServletRequest request, String apiKey, List<MultipartFile> files) {
+        log.debug("uploadImagesForUser, attempting to upload {} images for user with API key {}", files.size(), apiKey);
+        if (files.isEmpty() || files.size() > batchMaxFiles) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "A batch must contain between 1 and " + batchMaxFiles + " files");
+        }
+        ImageHostingUser user = validateApiKey(apiKey);
+        String username = user.getUser().getUsername();
+        //Reject unknown file types before anything is uploaded
+        List<MediaType> mediaTypes = files.stream().map(file -> getMediaType(file.getOriginalFilename())).toList();
+
+        //Spool all images concurrently, computing their checksums
+        List<CompletableFuture<SpooledUpload>> spools = new ArrayList<>(files.size());
+        for (MultipartFile file : files) {
+            spools.add(CompletableFuture.supplyAsync(() -> {
+                try (InputStream fileStream = file.getInputStream()) {
+                    return spoolUpload(username, fileStream, file.getSize());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, batchUploadPool));
+        }
+        List<SpooledUpload> spooledUploads = awaitBatch(username, spools,
+                upload -> dataStorageService.deleteTempFile(upload.tempName()));
+
+        try {
+            //Deduplicate against the user's existing images and within the batch, before anything is uploaded
+            Map<String, String> existingFileNames = new HashMap<>();
+            imageHostingUserFileRepository.findByImageHostingUserAndContentSha256In(user,
+                            spooledUploads.stream().map(SpooledUpload::sha256).toList())
+                    .forEach(existing -> existingFileNames.putIfAbsent(
+                            existing.getContentSha256() + "/" + existing.getFileSize(), existing.getFileName()));
+            Map<String, Integer> firstUploads = new HashMap<>();
+            List<Integer> newUploads = new ArrayList<>();
+            for (int i = 0; i < spooledUploads.size(); i++) {
+                String digest = spooledUploads.get(i).digest();
+                if (!existingFileNames.containsKey(digest) && firstUploads.putIfAbsent(digest, i) == null) {
+                    newUploads.add(i);
+                }
+            }
+
+            //Reserve file names for the new images only, and upload them concurrently
+            List<String> fileNames = reserveFileNames(user,
+                    newUploads.stream().map(i -> getFileExtension(files.get(i).getOriginalFilename())).toList());
+            List<CompletableFuture<ImageHostingUserFile>> uploads = new ArrayList<>(newUploads.size());
+            for (int n = 0; n < newUploads.size(); n++) {
+                int i = newUploads.get(n);
+                String fileName = fileNames.get(n);
+                uploads.add(CompletableFuture.supplyAsync(
+                        () -> storeUpload(user, fileName, spooledUploads.get(i), mediaTypes.get(i)), batchUploadPool));
+            }
+            List<ImageHostingUserFile> newFiles = awaitBatch(username, uploads,
+                    file -> s3Service.deleteFile(username, file.getFileName()));
+
+            Map<String, String> storedFileNames = new HashMap<>(existingFileNames);
+            for (int n = 0; n < newUploads.size(); n++) {
+                storedFileNames.put(spooledUploads.get(newUploads.get(n)).digest(), newFiles.get(n).getFileName());
+            }
+            List<String> urls = new ArrayList<>(spooledUploads.size());
+            for (SpooledUpload spooledUpload : spooledUploads) {
+                urls.add(Utils.createResourceURL(request, username, "i", storedFileNames.get(spooledUpload.digest())));
+            }
+
+            //Persist all new image hosting user files together, stamped right before their commit
+            LocalDateTime createdAt = LocalDateTime.now();
+            newFiles.forEach(file -> file.setCreatedAt(createdAt));
+            imageHostingUserFileRepository.saveAll(newFiles);
+            newFiles.forEach(this::onImageStored);
+            log.info("uploadImagesForUser, stored {} new images of {} uploaded for user {}", newFiles.size(), files.size(), username);
+
+            ImageBatchApiEntity imageBatchApiEntity = new ImageBatchApiEntity();
+            imageBatchApiEntity.setURLs(urls);
+            return imageBatchApiEntity;
+        } finally {
+            spooledUploads.forEach(upload -> dataStorageService.deleteTempFile(upload.tempName()));
+        }
     }
 
     /**
@@ -142,37 +402,221 @@ public class ImageHostingService {
     }
 
 
-    private boolean checkImageExists(String username, String filename) {
-        Optional<ImageHostingUser> imageHostingUserOpt = imageHostingUserRepository.findImageHostingUserByUsername(username);
-        if (imageHostingUserOpt.isEmpty()) {
-            log.error("checkImageExists, image hosting user for user {} not found", username);
-            return false;
+    /**
+     * Looks up the image with the given filename of the given user. Names ruled out by the in-memory existence index
+     * are rejected without querying the database, and misses are remembered for a short time, so repeated requests
+     * for missing images do not reach the database either. The database lookup is served by a read replica if possible.
+     *
+     * @param username The username of the user.
+     * @param filename The filename of the image.
+     * @return The ID and content digest of the image, or empty if the image does not exist.
+     */
+    private Optional<ImageHostingUserFileChecksumView> findImageFile(String username, String filename) {
+        if (negativeLookupService.isKnownMissing(NegativeLookupService.IMAGE, username, filename)) {
+            return Optional.empty();
+        }
+        if (imageExistenceIndexService.isDefinitelyMissing(username, filename)) {
+            log.debug("findImageFile, existence index rules out file {} for user {}", filename, username);
+            return Optional.empty();
+        }
+
+        Optional<ImageHostingUserFileChecksumView> file = readReplicaService.read(username,
+                () -> imageHostingUserFileRepository.findChecksumByUsernameAndFileName(username, filename));
+        if (file.isEmpty()) {
+            log.debug("findImageFile, user {} does not have a file with filename {}", username, filename);
+            negativeLookupService.recordMissing(NegativeLookupService.IMAGE, username, filename);
+        }
+        return file;
+    }
+
+    /**
+     * Reserves a file name for each of the given file extensions, according to the user's strategy. The strategies
+     * never repeat a name on this node, so the first attempt practically always succeeds, and all pending names are
+     * checked against the user's existing files in a single query per attempt, for every strategy. Names that are
+     * taken are replaced and checked again. Aborts with a 500 error after 100 failed attempts.
+     * The check is not a reservation: another node may persist the same name before this upload does. The unique
+     * index alone cannot catch that, since images are written to the object store before they are persisted, so
+     * {@link #storeUpload} writes the object only if the name is still free, and reserves a new one otherwise.
+     *
+     * @param imageHostingUser The image hosting user.
+     * @param fileExtensions The file extensions of the files, including the leading dot.
+     * @return The file names, in the order of the given extensions.
+     */
+    private List<String> reserveFileNames(ImageHostingUser imageHostingUser, List<String> fileExtensions) {
+        String[] fileNames = new String[fileExtensions.size()];
+        Set<String> reserved = new HashSet<>();
+        int pending = fileNames.length;
+        for (int attempt = 0; attempt < 100 && pending > 0; attempt++) {
+            Map<String, Integer> candidates = new LinkedHashMap<>();
+            for (int i = 0; i < fileNames.length; i++) {
+                if (fileNames[i] == null) {
+                    String candidate = Utils.generateFilenameFromStrategy(imageHostingUser.getImageHostingMode())
+                            + fileExtensions.get(i).toLowerCase();
+                    if (!reserved.contains(candidate)) {
+                        candidates.putIfAbsent(candidate, i);
+                    }
+                }
+            }
+            if (candidates.isEmpty()) {
+                continue;
+            }
+            Set<String> taken = new HashSet<>(
+                    imageHostingUserFileRepository.findExistingFileNames(imageHostingUser, candidates.keySet()));
+            for (Map.Entry<String, Integer> candidate : candidates.entrySet()) {
+                if (!taken.contains(candidate.getKey())) {
+                    fileNames[candidate.getValue()] = candidate.getKey();
+                    reserved.add(candidate.getKey());
+                    pending--;
+                }
+            }
+        }
+        if (pending > 0) {
+            log.error("reserveFileNames, could not create {} file names for user {} with strategy {}",
+                    pending, imageHostingUser.getUser().getUsername(), imageHostingUser.getImageHostingMode());
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Could not create file for user.");
+        }
+        log.debug("reserveFileNames, determined file names {} for image hosting user {}", reserved, imageHostingUser.getId());
+        return List.of(fileNames);
+    }
+
+    /**
+     * Uploaded image spooled to a temporary file, along with its verified size and checksums.
+     *
+     * @param tempName The name of the temporary file. Must be deleted by the caller.
+     * @param fileSize The size of the image in bytes.
+     * @param sha256 The hex-encoded SHA-256 digest of the image.
+     * @param crc32c The hex-encoded CRC32C checksum of the image.
+     */
+    private record SpooledUpload(String tempName, long fileSize, String sha256, String crc32c) {
+
+        /**
+         * @return The key identical images share, made of digest and size.
+         */
+        private String digest() {
+            return sha256 + "/" + fileSize;
         }
-        //Check if this user has a file with the given filename
-        if (!imageHostingUserFileRepository.existsByImageHostingUserAndFileName(imageHostingUserOpt.get(), filename)) {
-            log.error("checkImageExists, image hosting user for user {} does not have a file with filename {}", username, filename);
-            return false;
+    }
+
+    /**
+     * Spools an uploaded image to a temporary file while computing its checksums, so the image can be deduplicated
+     * before it is uploaded. The upload is only sent from the spooled file once the stream has been read fully, so the
+     * stored object always matches the computed size and checksums, and the SDK can retry the request from the start
+     * of the file. Throws a 400 error if the stream does not provide exactly the declared number of bytes.
+     *
+     * @param username The username of the user who uploaded the image.
+     * @param fileStream The image to spool.
+     * @param fileSize The declared size of the image in bytes.
+     * @return The spooled image. Its temporary file must be deleted by the caller.
+     */
+    private SpooledUpload spoolUpload(String username, InputStream fileStream, long fileSize) {
+        String tempName = "upload_" + UUID.randomUUID();
+        ChecksumInputStream checksumStream = new ChecksumInputStream(fileStream);
+        try {
+            dataStorageService.saveTempFile(checksumStream, tempName);
+            if (checksumStream.getByteCount() != fileSize) {
+                log.error("spoolUpload, expected {} bytes for image of user {} but read {}",
+                        fileSize, username, checksumStream.getByteCount());
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Incomplete upload");
+            }
+        } catch (RuntimeException e) {
+            dataStorageService.deleteTempFile(tempName);
+            throw e;
         }
-        return true;
+        return new SpooledUpload(tempName, fileSize, checksumStream.getSha256Hex(), checksumStream.getCrc32cHex());
     }
 
+    /**
+     * Uploads a spooled image to S3. The object is only written if its name is still free. If another node took the
+     * name since it was reserved, a new name is reserved and the upload is repeated under it.
+     *
+     * @param user The image hosting user who uploaded the image.
+     * @param fileName The reserved file name of the image.
+     * @param upload The spooled image.
+     * @param mediaType The media type of the image.
+     * @return The new, not yet persisted file, carrying the final name, size and checksums of the stored object. Its
+     * creation time is left to the caller, to be stamped right before the file is persisted.
+     */
+    private ImageHostingUserFile storeUpload(ImageHostingUser user, String fileName, SpooledUpload upload, MediaType mediaType) {
+        String username = user.getUser().getUsername();
+        //Another node may have claimed the name since it was reserved - the conditional write detects that
+        String fileExtension = getFileExtension(fileName);
+        for (int attempt = 1; !s3Service.uploadNewFile(username, fileName, dataStorageService.getTempFilePath(upload.tempName()),
+                mediaType.toString()); attempt++) {
+            if (attempt >= 10) {
+                log.error("storeUpload, could not claim a file name for user {} after {} attempts", username, attempt);
+                throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Could not create file for user.");
+            }
+            log.debug("storeUpload, file name {} of user {} was taken concurrently, reserving a new one", fileName, username);
+            fileName = reserveFileNames(user, List.of(fileExtension)).get(0);
+        }
+
+        ImageHostingUserFile imageHostingUserFile = new ImageHostingUserFile();
+        imageHostingUserFile.setImageHostingUser(user);
+        imageHostingUserFile.setFileName(fileName);
+        imageHostingUserFile.setFileSize(upload.fileSize());
+        imageHostingUserFile.setContentSha256(upload.sha256());
+        imageHostingUserFile.setContentCrc32c(upload.crc32c());
+        return imageHostingUserFile;
+    }
 
     /**
-     * Attempts to create a file name for the user's given strategy. Aborts with a 500 error after 100 failed attempts.
+     * Waits for all tasks of a batch upload step. If any task failed, the results of the tasks that succeeded are
+     * cleaned up again and the first failure is rethrown.
      *
-     * @return The file name.
+     * @param username The username of the user who uploaded the batch.
+     * @param tasks The pending tasks.
+     * @param cleanup Cleans up the result of a task that succeeded, if the batch failed.
+     * @return The results, in the order of the tasks.
      */
-    private String tryCreateFileName(ImageHostingUser imageHostingUser, String fileExtension) {
-        for (int i = 0; i < 100; i++) {
-            String fileName = Utils.generateFilenameFromStrategy(imageHostingUser.getImageHostingMode()) + fileExtension.toLowerCase();
-            if (!imageHostingUserFileRepository.existsByImageHostingUserAndFileName(imageHostingUser, fileName)) {
-                log.debug("tryCreateFileName, determined file name {} for image hosting user {}", fileName, imageHostingUser.getId());
-                return fileName;
+    private <T> List<T> awaitBatch(String username, List<CompletableFuture<T>> tasks, Consumer<T> cleanup) {
+        try {
+            CompletableFuture.allOf(tasks.toArray(CompletableFuture[]::new)).join();
+            return tasks.stream().map(CompletableFuture::join).toList();
+        } catch (CompletionException e) {
+            //Wait for the remaining tasks before cleaning up, so nothing is left behind
+            tasks.forEach(task -> task.handle((result, t) -> result).join());
+            tasks.stream()
+                    .filter(task -> !task.isCompletedExceptionally())
+                    .forEach(task -> cleanup.accept(task.join()));
+            log.error("awaitBatch, batch upload for user {} failed, cleaned up all completed steps", username, e.getCause());
+            if (e.getCause() instanceof ResponseStatusException responseStatusException) {
+                throw responseStatusException;
             }
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Could not upload file");
         }
-        log.error("tryCreateFileName, could not create file name for user {} with strategy {}",
-                imageHostingUser.getUser().getUsername(), imageHostingUser.getImageHostingMode());
-        throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Could not create file for user.");
+    }
+
+    /**
+     * Updates the lookup caches for a newly persisted image and starts its background processing.
+     *
+     * @param imageHostingUserFile The persisted file.
+     */
+    private void onImageStored(ImageHostingUserFile imageHostingUserFile) {
+        String username = imageHostingUserFile.getImageHostingUser().getUser().getUsername();
+        String fileName = imageHostingUserFile.getFileName();
+        readReplicaService.recordWrite(username);
+        negativeLookupService.invalidate(NegativeLookupService.IMAGE, username, fileName);
+        imageExistenceIndexService.recordFile(username, fileName);
+        cacheInvalidationService.broadcast(CacheInvalidationService.Scope.EXISTENCE_INDEX_ADD, username + "/" + fileName);
+        //Re-compress the stored image in the background
+        imageOptimizationService.optimizeImageAsync(username, imageHostingUserFile.getId());
+        imageAnimationService.createCompanionVideoAsync(username, fileName);
+    }
+
+    /**
+     * Get the file extension of an uploaded file, including the leading dot.
+     *
+     * @param originalFileName The original file name.
+     * @return The file extension.
+     */
+    private String getFileExtension(String originalFileName) {
+        return originalFileName.substring(originalFileName.lastIndexOf("."));
+    }
+
+    private ImageApiEntity createImageApiEntity(HttpServletRequest request, String username, String fileName) {
+        ImageApiEntity imageApiEntity = new ImageApiEntity();
+        imageApiEntity.setURL(Utils.createResourceURL(request, username, "i", fileName));
+        return imageApiEntity;
     }
 
     /**
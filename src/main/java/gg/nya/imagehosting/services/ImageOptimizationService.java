@@ -0,0 +1,262 @@
+package gg.nya.imagehosting.services;
+
+import gg.nya.imagehosting.models.ImageHostingUserFile;
+import gg.nya.imagehosting.repositories.ImageHostingUserFileRepository;
+import gg.nya.imagehosting.utils.ChecksumInputStream;
+import gg.nya.imagehosting.utils.Utils;
+import net.bramp.ffmpeg.FFmpegExecutor;
+import net.bramp.ffmpeg.builder.FFmpegBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Service for losslessly re-compressing uploaded images in the background. Uploads are stored exactly as received,
+ * and replaced with a smaller, metadata-free encoding afterwards if that saves enough space.
+ * <p>
+ * Only PNG images are re-compressed, since FFmpeg cannot re-encode JPEG or WebP images without quality loss.
+ * Every candidate is decoded and compared to the original pixel by pixel before it replaces the original.
+ */
+@Service
+public class ImageOptimizationService {
+
+    @Value("${app.images.optimization.enabled}")
+    private boolean enabled;
+    @Value("${app.images.optimization.min-savings-percent}")
+    private int minSavingsPercent;
+    @Value("${app.images.optimization.max-input-bytes}")
+    private long maxInputBytes;
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private final ImageHostingUserFileRepository imageHostingUserFileRepository;
+    private final S3Service s3Service;
+    private final DataStorageService dataStorageService;
+    private final FFmpegExecutor executor;
+    private final ReadReplicaService readReplicaService;
+
+    private static final Logger log = LoggerFactory.getLogger(ImageOptimizationService.class);
+
+    /**
+     * Constructor for ImageOptimizationService. Injects the relevant services.
+     *
+     * @param imageHostingUserFileRepository Repository to record the before and after sizes of optimized images.
+     * @param s3Service Service for retrieving and replacing stored images.
+     * @param dataStorageService Service for the temporary files FFmpeg works on.
+     * @param executor The shared FFmpeg executor.
+     * @param readReplicaService Service to keep lookups of replaced images off lagging replicas.
+     */
+    public ImageOptimizationService(ImageHostingUserFileRepository imageHostingUserFileRepository, S3Service s3Service,
+                                    DataStorageService dataStorageService, FFmpegExecutor executor,
+                                    ReadReplicaService readReplicaService) {
+        this.imageHostingUserFileRepository = imageHostingUserFileRepository;
+        this.s3Service = s3Service;
+        this.dataStorageService = dataStorageService;
+        this.executor = executor;
+        this.readReplicaService = readReplicaService;
+    }
+
+    /**
+     * Asynchronously re-compresses a newly uploaded image and replaces the stored object if the savings exceed the
+     * configured threshold. The original and final sizes are recorded on the file either way.
+     *
+     * @param username The username of the owner of the image.
+     * @param fileId The ID of the uploaded file.
+     */
+    @Async
+    public void optimizeImageAsync(String username, Long fileId) {
+        if (!enabled) {
+            return;
+        }
+        Optional<ImageHostingUserFile> fileOpt = imageHostingUserFileRepository.findById(fileId);
+        if (fileOpt.isEmpty()) {
+            log.warn("optimizeImageAsync, file with ID {} of user {} not found, skipping", fileId, username);
+            return;
+        }
+        ImageHostingUserFile file = fileOpt.get();
+        String fileName = file.getFileName();
+        if (!Utils.getFileExtensionFromFilename(fileName).equals("png")) {
+            log.trace("optimizeImageAsync, file {} of user {} is not a PNG image, skipping", fileName, username);
+            return;
+        }
+
+        Optional<ByteBuffer> originalOpt = s3Service.findCacheableFile(username, fileName);
+        if (originalOpt.isEmpty()) {
+            log.warn("optimizeImageAsync, file {} of user {} could not be retrieved, skipping", fileName, username);
+            return;
+        }
+        ByteBuffer original = originalOpt.get();
+        long originalSize = original.remaining();
+        long finalSize = originalSize;
+
+        if (originalSize > maxInputBytes) {
+            log.debug("optimizeImageAsync, file {} of user {} exceeds {} bytes, skipping", fileName, username, maxInputBytes);
+        } else if (isAnimatedPng(original)) {
+            log.debug("optimizeImageAsync, file {} of user {} is an animated PNG, skipping", fileName, username);
+        } else {
+            long startTime = System.currentTimeMillis();
+            Optional<byte[]> optimized = recompressPng(username, fileName, original);
+            if (optimized.isPresent() && isWorthReplacing(originalSize, optimized.get().length)) {
+                s3Service.replaceFile(username, fileName, optimized.get(), MediaType.IMAGE_PNG_VALUE);
+                finalSize = optimized.get().length;
+                updateChecksums(file, optimized.get());
+                log.info("optimizeImageAsync, replaced file {} of user {}: {} -> {} bytes in {}ms",
+                        fileName, username, originalSize, finalSize, System.currentTimeMillis() - startTime);
+            } else {
+                log.debug("optimizeImageAsync, keeping original file {} of user {} ({} bytes)", fileName, username, originalSize);
+            }
+        }
+
+        file.setOriginalFileSize(originalSize);
+        file.setFileSize(finalSize);
+        file.setOptimizedAt(LocalDateTime.now());
+        imageHostingUserFileRepository.save(file);
+        if (finalSize != originalSize) {
+            readReplicaService.recordWrite(username);
+        }
+    }
+
+    /**
+     * Re-encodes a PNG image at maximum compression without any metadata, and verifies that the result decodes to the
+     * same pixels as the original.
+     *
+     * @param username The username of the owner of the image.
+     * @param fileName The file name of the image.
+     * @param original The original image data.
+     * @return The re-encoded image, or empty if it could not be created or is not pixel-identical to the original.
+     */
+    private Optional<byte[]> recompressPng(String username, String fileName, ByteBuffer original) {
+        String tempName = "optimize_" + UUID.randomUUID();
+        List<String> tempFiles = List.of(tempName + "_input.png", tempName + ".png",
+                tempName + "_input.md5", tempName + ".md5");
+        Path inputPath = dataStorageService.getTempFilePath(tempFiles.get(0));
+        Path outputPath = dataStorageService.getTempFilePath(tempFiles.get(1));
+
+        try {
+            dataStorageService.saveTempFile(original, tempFiles.get(0));
+            executor.createJob(new FFmpegBuilder()
+                    .setInput(inputPath.toString())
+                    .overrideOutputFiles(true)
+                    .addOutput(outputPath.toString())
+                    .setFrames(1)
+                    .setVideoCodec("png")
+                    .addExtraArgs("-compression_level", "9")
+                    .addExtraArgs("-pred", "mixed")
+                    .addExtraArgs("-map_metadata", "-1")
+                    .addExtraArgs("-update", "1")
+                    .done()).run();
+
+            List<String> originalPixels = getFrameChecksums(inputPath, dataStorageService.getTempFilePath(tempFiles.get(2)));
+            List<String> optimizedPixels = getFrameChecksums(outputPath, dataStorageService.getTempFilePath(tempFiles.get(3)));
+            if (originalPixels.isEmpty() || !originalPixels.equals(optimizedPixels)) {
+                log.warn("recompressPng, re-encoded file {} of user {} does not match the original pixels, discarding",
+                        fileName, username);
+                return Optional.empty();
+            }
+            return Optional.of(Files.readAllBytes(outputPath));
+        } catch (IOException | RuntimeException e) {
+            log.error("recompressPng, failed to re-encode file {} of user {}", fileName, username, e);
+            return Optional.empty();
+        } finally {
+            tempFiles.forEach(dataStorageService::deleteTempFile);
+        }
+    }
+
+    /**
+     * Decodes an image and computes a checksum of its raw pixel data, using FFmpeg's framemd5 muxer.
+     *
+     * @param imagePath The image to decode.
+     * @param checksumPath The temporary file to write the checksums to.
+     * @return The checksum lines, without comments.
+     * @throws IOException If the checksum file could not be read.
+     */
+    private List<String> getFrameChecksums(Path imagePath, Path checksumPath) throws IOException {
+        executor.createJob(new FFmpegBuilder()
+                .setInput(imagePath.toString())
+                .overrideOutputFiles(true)
+                .addOutput(checksumPath.toString())
+                .setFormat("framemd5")
+                .done()).run();
+        return Files.readAllLines(checksumPath, StandardCharsets.US_ASCII).stream()
+                .filter(line -> !line.startsWith("#"))
+                .toList();
+    }
+
+    /**
+     * Recomputes the checksums of a file after its stored object was replaced.
+     *
+     * @param file The file to update.
+     * @param content The new content of the file.
+     */
+    private void updateChecksums(ImageHostingUserFile file, byte[] content) {
+        ChecksumInputStream checksumStream = new ChecksumInputStream(new ByteArrayInputStream(content));
+        try {
+            checksumStream.transferTo(OutputStream.nullOutputStream());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        file.setContentSha256(checksumStream.getSha256Hex());
+        file.setContentCrc32c(checksumStream.getCrc32cHex());
+    }
+
+    /**
+     * Checks if the re-encoded image saves at least the configured share of the original size.
+     *
+     * @param originalSize The original size in bytes.
+     * @param optimizedSize The re-encoded size in bytes.
+     * @return True if the original should be replaced.
+     */
+    private boolean isWorthReplacing(long originalSize, long optimizedSize) {
+        return optimizedSize > 0 && (originalSize - optimizedSize) * 100 >= originalSize * minSavingsPercent;
+    }
+
+    /**
+     * Checks if a PNG image is animated, by looking for an animation control chunk ahead of the image data.
+     * Animated PNGs are left untouched, since re-encoding would drop all but the first frame.
+     *
+     * @param png The PNG image data.
+     * @return True if the image is animated or not a valid PNG image.
+     */
+    private static boolean isAnimatedPng(ByteBuffer png) {
+        ByteBuffer data = png.duplicate();
+        if (data.remaining() < PNG_SIGNATURE.length + 8) {
+            return true;
+        }
+        for (byte expected : PNG_SIGNATURE) {
+            if (data.get() != expected) {
+                return true;
+            }
+        }
+        // Chunks are laid out as length (4 bytes), type (4 bytes), data, CRC (4 bytes)
+        while (data.remaining() >= 8) {
+            long length = Integer.toUnsignedLong(data.getInt());
+            byte[] type = new byte[4];
+            data.get(type);
+            String chunkType = new String(type, StandardCharsets.US_ASCII);
+            if (chunkType.equals("acTL")) {
+                return true;
+            }
+            if (chunkType.equals("IDAT") || length + 4 > data.remaining()) {
+                return false;
+            }
+            data.position(data.position() + (int) length + 4);
+        }
+        return false;
+    }
+}
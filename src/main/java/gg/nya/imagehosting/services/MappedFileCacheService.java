@@ -0,0 +1,281 @@
+package gg.nya.imagehosting.services;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Second-level file cache that keeps file contents in memory-mapped slab files outside the Java heap.
+ * Files are appended to the active slab until it is full, after which the next slab is used. Once all slabs are
+ * in use, the oldest slab is discarded as a whole along with every entry it holds.
+ * <p>
+ * A discarded slab is replaced by a freshly mapped file instead of being overwritten, so buffers that were handed
+ * out before the slab was discarded stay valid until they are garbage collected.
+ */
+@Service
+public class MappedFileCacheService {
+
+    @Value("${app.cache.mapped.enabled}")
+    private boolean enabled;
+    @Value("${app.cache.mapped.directory}")
+    private String cacheDirectory;
+    @Value("${app.cache.mapped.slab-size-bytes}")
+    private long slabSizeBytes;
+    @Value("${app.cache.mapped.slab-count}")
+    private int slabCount;
+
+    private final ConcurrentHashMap<String, Entry> index = new ConcurrentHashMap<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private Slab[] slabs;
+    private int activeSlab;
+    private long slabGeneration;
+
+    private static final Logger log = LoggerFactory.getLogger(MappedFileCacheService.class);
+
+    /**
+     * Location of a cached file within a slab.
+     *
+     * @param slab The slab holding the file.
+     * @param offset The offset of the file within the slab.
+     * @param length The length of the file in bytes.
+     */
+    private record Entry(Slab slab, int offset, int length) {
+    }
+
+    /**
+     * A single memory-mapped slab file, along with the keys of all entries written to it.
+     */
+    private static final class Slab {
+        private final Path file;
+        private final MappedByteBuffer buffer;
+        private final List<String> keys = new ArrayList<>();
+        private int writePosition = 0;
+
+        private Slab(Path file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Prepares the cache directory and maps the first slab. Slab files left over from a previous run are removed,
+     * since the index is not persisted.
+     *
+     * @throws IOException If the cache directory could not be prepared.
+     */
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            log.info("init, mapped file cache is disabled");
+            return;
+        }
+        if (slabSizeBytes <= 0 || slabSizeBytes > Integer.MAX_VALUE || slabCount < 2) {
+            throw new IllegalStateException("Mapped file cache requires a slab size between 1 byte and 2GB and at least 2 slabs");
+        }
+
+        Path directory = Path.of(cacheDirectory);
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(directory, "slab-*.bin")) {
+            for (Path leftover : leftovers) {
+                Files.deleteIfExists(leftover);
+            }
+        }
+
+        slabs = new Slab[slabCount];
+        slabs[0] = mapSlab(0);
+        activeSlab = 0;
+        log.info("init, mapped file cache ready in {} with {} slabs of {} bytes", directory, slabCount, slabSizeBytes);
+    }
+
+    /**
+     * Removes all slab files. Existing mappings stay valid until they are garbage collected.
+     */
+    @PreDestroy
+    public void shutdown() {
+        if (slabs == null) {
+            return;
+        }
+        for (Slab slab : slabs) {
+            if (slab != null) {
+                deleteSlabFile(slab);
+            }
+        }
+    }
+
+    /**
+     * Retrieves a file from the cache.
+     *
+     * @param key The cache key of the file.
+     * @return A read-only view of the cached file, backed by the mapped slab, or empty if the file is not cached.
+     */
+    public Optional<ByteBuffer> get(String key) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        Entry entry = index.get(key);
+        if (entry == null) {
+            return Optional.empty();
+        }
+        log.trace("get, mapped file cache hit for key {}", key);
+        return Optional.of(entry.slab().buffer.slice(entry.offset(), entry.length()).asReadOnlyBuffer());
+    }
+
+    /**
+     * Stores a file in the cache. Files larger than a single slab are not cached.
+     *
+     * @param key The cache key of the file.
+     * @param data The file contents.
+     */
+    public void put(String key, byte[] data) {
+        if (!enabled || data.length > slabSizeBytes) {
+            return;
+        }
+
+        writeLock.lock();
+        try {
+            if (index.containsKey(key)) {
+                return;
+            }
+            Slab slab = slabs[activeSlab];
+            if (slab.writePosition + data.length > slabSizeBytes) {
+                slab = advanceSlab();
+            }
+            int offset = slab.writePosition;
+            slab.buffer.put(offset, data);
+            slab.writePosition += data.length;
+            slab.keys.add(key);
+            index.put(key, new Entry(slab, offset, data.length));
+            log.trace("put, cached {} bytes for key {} in slab {}", data.length, key, slab.file);
+        } catch (IOException e) {
+            log.error("put, could not map a new slab, skipping key {}", key, e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Lists the keys of the most recently cached files, newest first.
+     *
+     * @param limit The maximum number of keys to return.
+     * @return The keys of cached files.
+     */
+    public List<String> getRecentKeys(int limit) {
+        List<String> keys = new ArrayList<>();
+        if (!enabled) {
+            return keys;
+        }
+        writeLock.lock();
+        try {
+            for (int i = 0; i < slabCount && keys.size() < limit; i++) {
+                Slab slab = slabs[Math.floorMod(activeSlab - i, slabCount)];
+                if (slab == null) {
+                    break;
+                }
+                for (int j = slab.keys.size() - 1; j >= 0 && keys.size() < limit; j--) {
+                    String key = slab.keys.get(j);
+                    Entry entry = index.get(key);
+                    if (entry != null && entry.slab() == slab) {
+                        keys.add(key);
+                    }
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return keys;
+    }
+
+    /**
+     * Removes a file from the cache. The space it occupies is reclaimed once its slab is discarded.
+     *
+     * @param key The cache key of the file.
+     */
+    public void invalidate(String key) {
+        if (enabled && index.remove(key) != null) {
+            log.trace("invalidate, removed key {} from mapped file cache", key);
+        }
+    }
+
+    /**
+     * Removes all files from the cache. The space they occupy is reclaimed once their slabs are discarded.
+     */
+    public void invalidateAll() {
+        if (!enabled) {
+            return;
+        }
+        writeLock.lock();
+        try {
+            index.clear();
+            log.debug("invalidateAll, cleared mapped file cache index");
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Moves on to the next slab, discarding the slab previously in its place along with all of its entries.
+     * Must be called while holding the write lock.
+     *
+     * @return The new active slab.
+     * @throws IOException If the new slab file could not be mapped.
+     */
+    private Slab advanceSlab() throws IOException {
+        int next = (activeSlab + 1) % slabCount;
+        Slab discarded = slabs[next];
+        if (discarded != null) {
+            for (String key : discarded.keys) {
+                index.computeIfPresent(key, (k, entry) -> entry.slab() == discarded ? null : entry);
+            }
+            deleteSlabFile(discarded);
+            log.debug("advanceSlab, discarded slab {} with {} entries", discarded.file, discarded.keys.size());
+        }
+        slabs[next] = mapSlab(next);
+        activeSlab = next;
+        return slabs[next];
+    }
+
+    /**
+     * Creates and maps a new slab file.
+     *
+     * @param slot The slot the slab occupies.
+     * @return The mapped slab.
+     * @throws IOException If the file could not be created or mapped.
+     */
+    private Slab mapSlab(int slot) throws IOException {
+        Path file = Path.of(cacheDirectory, String.format("slab-%d-%d.bin", slot, slabGeneration++));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.SPARSE)) {
+            return new Slab(file, channel.map(FileChannel.MapMode.READ_WRITE, 0, slabSizeBytes));
+        }
+    }
+
+    /**
+     * Deletes the file backing a slab. The mapping itself stays valid until it is garbage collected.
+     *
+     * @param slab The slab whose file to delete.
+     */
+    private void deleteSlabFile(Slab slab) {
+        try {
+            Files.deleteIfExists(slab.file);
+        } catch (IOException e) {
+            log.warn("deleteSlabFile, failed to delete slab file {}", slab.file, e);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package gg.nya.imagehosting.services;
+
+import gg.nya.imagehosting.config.CacheConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.stereotype.Service;
+
+/**
+ * Service that remembers media lookups which recently came up empty, so repeated requests for missing files
+ * (dead links, scanners) can be rejected without querying the database. Entries expire after a short TTL and are
+ * invalidated as soon as the file becomes available.
+ */
+@Service
+public class NegativeLookupService {
+    /**
+     * Category of image lookups.
+     */
+    public static final String IMAGE = "image";
+    /**
+     * Category of public video lookups.
+     */
+    public static final String VIDEO = "video";
+
+    private final Cache negativeLookupCache;
+    private final CacheInvalidationService cacheInvalidationService;
+
+    private static final Logger log = LoggerFactory.getLogger(NegativeLookupService.class);
+
+    public NegativeLookupService(CacheManager cacheManager, CacheInvalidationService cacheInvalidationService) {
+        this.negativeLookupCache = cacheManager.getCache(CacheConfig.NEGATIVE_LOOKUP_CACHE);
+        this.cacheInvalidationService = cacheInvalidationService;
+    }
+
+    /**
+     * Checks whether a lookup for the given file recently came up empty.
+     *
+     * @param category The category of the file, e.g. {@link #IMAGE}.
+     * @param username The username of the owner.
+     * @param filename The filename that was looked up.
+     * @return True if the file is known to be missing, false if it is unknown.
+     */
+    public boolean isKnownMissing(String category, String username, String filename) {
+        boolean missing = negativeLookupCache.get(getKey(category, username, filename)) != null;
+        if (missing) {
+            log.trace("isKnownMissing, negative lookup cache hit for {} {} of user {}", category, filename, username);
+        }
+        return missing;
+    }
+
+    /**
+     * Remembers that a lookup for the given file came up empty.
+     *
+     * @param category The category of the file, e.g. {@link #IMAGE}.
+     * @param username The username of the owner.
+     * @param filename The filename that was looked up.
+     */
+    public void recordMissing(String category, String username, String filename) {
+        negativeLookupCache.put(getKey(category, username, filename), Boolean.TRUE);
+    }
+
+    /**
+     * Forgets a previously recorded missing lookup on all nodes, because the file has become available.
+     *
+     * @param category The category of the file, e.g. {@link #IMAGE}.
+     * @param username The username of the owner.
+     * @param filename The filename that is now available.
+     */
+    public void invalidate(String category, String username, String filename) {
+        String key = getKey(category, username, filename);
+        negativeLookupCache.evict(key);
+        cacheInvalidationService.broadcast(CacheInvalidationService.Scope.NEGATIVE_LOOKUP, key);
+    }
+
+    /**
+     * Forgets a previously recorded missing lookup on this node only, for bulk operations whose invalidations would
+     * flood the invalidation channel. Other nodes keep reporting the file as missing until their entry expires.
+     *
+     * @param category The category of the file, e.g. {@link #IMAGE}.
+     * @param username The username of the owner.
+     * @param filename The filename that is now available.
+     */
+    public void invalidateLocal(String category, String username, String filename) {
+        negativeLookupCache.evict(getKey(category, username, filename));
+    }
+
+    private String getKey(String category, String username, String filename) {
+        return category + ":" + username + "/" + filename;
+    }
+}
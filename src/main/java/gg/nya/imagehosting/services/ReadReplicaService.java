@@ -0,0 +1,81 @@
+package gg.nya.imagehosting.services;
+
+import gg.nya.imagehosting.config.CacheConfig;
+import gg.nya.imagehosting.config.ReplicaRoutingDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.stereotype.Service;
+
+import java.util.function.Supplier;
+
+/**
+ * Service that decides which media lookups may be served by a read replica.
+ * <p>
+ * Lookups of a user's media are served by a replica unless that user's media changed within the read-after-write
+ * window, which exceeds the maximum replication lag of a usable replica. Changes are broadcast to all nodes, so
+ * a video viewed on another node right after its upload is looked up on the primary as well, instead of being
+ * reported and negatively cached as missing.
+ */
+@Service
+public class ReadReplicaService {
+    /**
+     * Key that marks all users as recently written to. Cannot collide with a username.
+     */
+    static final String ALL_USERS = "*";
+
+    private final ReplicaRoutingDataSource replicaRoutingDataSource;
+    private final CacheInvalidationService cacheInvalidationService;
+    private final Cache recentWritesCache;
+
+    private static final Logger log = LoggerFactory.getLogger(ReadReplicaService.class);
+
+    /**
+     * Constructor for ReadReplicaService. Injects the relevant services.
+     *
+     * @param replicaRoutingDataSource The routing data source, to run lookups on replicas.
+     * @param cacheInvalidationService Service to broadcast changes to all nodes.
+     * @param cacheManager The cache manager, to retrieve the cache of recent changes.
+     */
+    public ReadReplicaService(ReplicaRoutingDataSource replicaRoutingDataSource,
+                              CacheInvalidationService cacheInvalidationService, CacheManager cacheManager) {
+        this.replicaRoutingDataSource = replicaRoutingDataSource;
+        this.cacheInvalidationService = cacheInvalidationService;
+        this.recentWritesCache = cacheManager.getCache(CacheConfig.RECENT_WRITES_CACHE);
+    }
+
+    /**
+     * Runs a lookup of the given user's media, on a replica if possible. The lookup must consist of read-only
+     * transactions to be served by a replica.
+     *
+     * @param username The username of the owner of the media.
+     * @param lookup The lookup to run.
+     * @return The result of the lookup.
+     * @param <T> The type of the result.
+     */
+    public <T> T read(String username, Supplier<T> lookup) {
+        if (!replicaRoutingDataSource.hasReplicas()) {
+            return lookup.get();
+        }
+        if (recentWritesCache.get(username) != null || recentWritesCache.get(ALL_USERS) != null) {
+            log.trace("read, media of user {} changed recently, reading from the primary", username);
+            return lookup.get();
+        }
+        return replicaRoutingDataSource.readFromReplica(lookup);
+    }
+
+    /**
+     * Records that the given user's media changed, so their lookups are served by the primary on all nodes until
+     * the replicas caught up. Must be called once the change is committed.
+     *
+     * @param username The username of the owner of the media.
+     */
+    public void recordWrite(String username) {
+        if (!replicaRoutingDataSource.hasReplicas()) {
+            return;
+        }
+        recentWritesCache.put(username, Boolean.TRUE);
+        cacheInvalidationService.broadcast(CacheInvalidationService.Scope.RECENT_WRITE, username);
+    }
+}
@@ -1,9 +1,13 @@
 package gg.nya.imagehosting.services;
 
+import gg.nya.imagehosting.config.CacheConfig;
 import jakarta.annotation.PostConstruct;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.annotation.CacheEvict;
 import org.springframework.cache.annotation.Cacheable;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
@@ -19,11 +23,14 @@ import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
 
 import java.net.URI;
 
-import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Optional;
 
 /**
  * Service for S3-compatible object storage interactions.
@@ -48,10 +55,30 @@ public class S3Service {
     @Value("${spring.profiles.active:dev}")
     private String env;
 
+    @Value("${app.cache.files.max-entry-bytes}")
+    private long fileCacheMaxEntryBytes;
+
     private S3Client s3Client;
+    private final Cache fileCache;
+    private final MappedFileCacheService mappedFileCacheService;
+    private final CacheInvalidationService cacheInvalidationService;
 
     final private static Logger log = LoggerFactory.getLogger(S3Service.class);
 
+    /**
+     * Constructor for S3Service. Injects the caches that sit in front of the object store.
+     *
+     * @param cacheManager The cache manager, to retrieve the in-memory file cache.
+     * @param mappedFileCacheService The off-heap file cache, used as second cache tier.
+     * @param cacheInvalidationService Service to invalidate the caches of the other nodes.
+     */
+    public S3Service(CacheManager cacheManager, MappedFileCacheService mappedFileCacheService,
+                     CacheInvalidationService cacheInvalidationService) {
+        this.fileCache = cacheManager.getCache(CacheConfig.FILE_CACHE);
+        this.mappedFileCacheService = mappedFileCacheService;
+        this.cacheInvalidationService = cacheInvalidationService;
+    }
+
     /**
      * Initializes the S3 client with the provided configuration.
      */
@@ -72,10 +99,12 @@ public class S3Service {
 
     /**
      * Get the size of a file in the S3 bucket. Throws a 404 error if the file could not be found.
+     * Sizes are cached, since stored objects are only modified through {@link #replaceFile}, which evicts them.
      * @param subdomain The subdomain of the file (username).
      * @param fileName The filename of the file.
      * @return The size of the file in bytes.
      */
+    @Cacheable(value = CacheConfig.METADATA_CACHE, key = "'size:' + #subdomain + '/' + #fileName")
     public long getFileSize(String subdomain, String fileName) {
         String key = getKeyName(subdomain, fileName);
         log.debug("getFileSize, retrieving file size for key {} from bucket {}", key, bucketName);
@@ -91,29 +120,162 @@ public class S3Service {
         }
     }
 
+    /**
+     * Get the size of a file in the S3 bucket, reporting a missing file as an empty result instead of an error. Throws
+     * a 500 error if the object store could not be read. Sizes of existing files share the cache of
+     * {@link #getFileSize(String, String)}.
+     *
+     * @param subdomain The subdomain of the file (username).
+     * @param fileName The filename of the file.
+     * @return The size of the file in bytes, or empty if the file does not exist.
+     */
+    @Cacheable(value = CacheConfig.METADATA_CACHE, key = "'size:' + #subdomain + '/' + #fileName", unless = "#result == null")
+    public Optional<Long> findFileSize(String subdomain, String fileName) {
+        String key = getKeyName(subdomain, fileName);
+        log.debug("findFileSize, retrieving file size for key {} from bucket {}", key, bucketName);
+
+        try {
+            return Optional.of(s3Client.headObject(builder -> builder
+                    .bucket(bucketName)
+                    .key(key)
+                    .build()).contentLength());
+        } catch (AwsServiceException e) {
+            if (e.statusCode() == HttpStatus.NOT_FOUND.value()) {
+                log.debug("findFileSize, no file with key {} in bucket {}", key, bucketName);
+                return Optional.empty();
+            }
+            log.error("findFileSize, could not retrieve file size for key {} from bucket {}", key, bucketName, e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Could not retrieve file");
+        } catch (SdkClientException e) {
+            log.error("findFileSize, could not reach bucket {} to retrieve file size for key {}", bucketName, key, e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Could not retrieve file");
+        }
+    }
+
     /**
      * Retrieves full file from S3 bucket. Throws a 404 error if the file could not be retrieved successfully.
-     * Caches into memory - not to be used for large files.
+     * Lookups go through two cache tiers: a small in-memory cache for files below its admission threshold, and an
+     * off-heap memory-mapped cache for everything else. Not to be used for large files.
      *
      * @param subdomain The subdomain of the file (username).
      * @param fileName  The filename of the file.
-     * @return The file data as a byte array.
+     * @return A read-only buffer holding the file data. Buffers served from the off-heap tier are not copied onto the heap.
      */
-    @Cacheable(value = "fileCache", key = "#subdomain + '/' + #fileName")
-    public byte[] getCacheableFile(String subdomain, String fileName) {
-        String key = getKeyName(subdomain, fileName);
-        log.debug("getCacheableFile, cache miss - retrieving file with key {} from bucket {}", key, bucketName);
+    public ByteBuffer getCacheableFile(String subdomain, String fileName) {
+        Optional<ByteBuffer> file = findCacheableFile(subdomain, fileName);
+        if (file.isEmpty()) {
+            log.error("getCacheableFile, could not retrieve file with key {} from bucket {}",
+                    getKeyName(subdomain, fileName), bucketName);
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "File not found");
+        }
+        return file.get();
+    }
+
+    /**
+     * Retrieves full file from S3 bucket through the same cache tiers as {@link #getCacheableFile(String, String)},
+     * but reports a missing file as an empty result instead of an error. Throws a 500 error if the object store could
+     * not be read, so callers never mistake a failed lookup for a missing file.
+     *
+     * @param subdomain The subdomain of the file (username).
+     * @param fileName  The filename of the file.
+     * @return A read-only buffer holding the file data, or empty if the file does not exist.
+     */
+    public Optional<ByteBuffer> findCacheableFile(String subdomain, String fileName) {
+        Optional<ByteBuffer> cachedFile = findCachedFile(subdomain, fileName);
+        if (cachedFile.isPresent()) {
+            return cachedFile;
+        }
+
+        log.debug("findCacheableFile, cache miss - retrieving file with key {} from bucket {}",
+                getKeyName(subdomain, fileName), bucketName);
+        Optional<byte[]> file = findFile(subdomain, fileName);
+        if (file.isEmpty()) {
+            return Optional.empty();
+        }
 
+        cacheFile(getKeyName(subdomain, fileName), file.get());
+        return Optional.of(ByteBuffer.wrap(file.get()).asReadOnlyBuffer());
+    }
+
+    /**
+     * Retrieves full file from S3 bucket, bypassing the cache tiers. For callers that keep their own cache of the
+     * file. Not to be used for large files. Only a file the object store reports as missing yields an empty result,
+     * any other failure throws a 500 error.
+     *
+     * @param subdomain The subdomain of the file (username).
+     * @param fileName  The filename of the file.
+     * @return The file data, or empty if the file does not exist.
+     */
+    public Optional<byte[]> findFile(String subdomain, String fileName) {
+        String key = getKeyName(subdomain, fileName);
         try {
             ResponseBytes<GetObjectResponse> objectBytes = s3Client.getObjectAsBytes(GetObjectRequest.builder()
                     .bucket(bucketName)
                     .key(key)
                     .build());
-            return objectBytes.asByteArray();
-        } catch (AwsServiceException | SdkClientException e) {
-            log.error("getCacheableFile, could not retrieve file with key {} from bucket {}", key, bucketName);
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "File not found");
+            return Optional.of(objectBytes.asByteArray());
+        } catch (AwsServiceException e) {
+            if (e.statusCode() == HttpStatus.NOT_FOUND.value()) {
+                log.debug("findFile, no file with key {} in bucket {}", key, bucketName);
+                return Optional.empty();
+            }
+            log.error("findFile, could not retrieve file with key {} from bucket {}", key, bucketName, e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Could not retrieve file");
+        } catch (SdkClientException e) {
+            log.error("findFile, could not reach bucket {} to retrieve file with key {}", bucketName, key, e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Could not retrieve file");
+        }
+    }
+
+    /**
+     * Looks up a file in the cache tiers only, without contacting the object store.
+     *
+     * @param subdomain The subdomain of the file (username).
+     * @param fileName  The filename of the file.
+     * @return A read-only buffer holding the file data, or empty if the file is not cached on this node.
+     */
+    public Optional<ByteBuffer> findCachedFile(String subdomain, String fileName) {
+        String key = getKeyName(subdomain, fileName);
+        byte[] cachedFile = fileCache.get(key, byte[].class);
+        if (cachedFile != null) {
+            log.trace("findCachedFile, in-memory cache hit for key {}", key);
+            return Optional.of(ByteBuffer.wrap(cachedFile).asReadOnlyBuffer());
         }
+        return mappedFileCacheService.get(key);
+    }
+
+    /**
+     * Uploads a file to the S3 bucket and places it in the cache tiers right away, for files that are generated
+     * by the application and likely to be requested immediately. Throws a 500 error if the upload fails.
+     *
+     * @param subdomain The subdomain of the file (username).
+     * @param fileName The filename of the file.
+     * @param file The file data.
+     * @param contentType The content type of the file.
+     */
+    public void uploadCacheableFile(String subdomain, String fileName, byte[] file, String contentType) {
+        putObject(subdomain, fileName, RequestBody.fromBytes(file), contentType);
+        cacheFile(getKeyName(subdomain, fileName), file);
+    }
+
+    /**
+     * Replaces the contents of an existing file in the S3 bucket. The object store swaps the object atomically, so
+     * readers see either the old or the new contents. Cached copies of the old contents are discarded on all nodes.
+     * Throws a 500 error if the upload fails.
+     *
+     * @param subdomain The subdomain of the file (username).
+     * @param fileName The filename of the file.
+     * @param file The new file data.
+     * @param contentType The content type of the file.
+     */
+    @CacheEvict(value = CacheConfig.METADATA_CACHE, key = "'size:' + #subdomain + '/' + #fileName")
+    public void replaceFile(String subdomain, String fileName, byte[] file, String contentType) {
+        String key = getKeyName(subdomain, fileName);
+        putObject(subdomain, fileName, RequestBody.fromBytes(file), contentType);
+        fileCache.evict(key);
+        mappedFileCacheService.invalidate(key);
+        cacheFile(key, file);
+        broadcastInvalidation(key);
     }
 
     /**
@@ -142,30 +304,141 @@ public class S3Service {
         }
     }
 
+    /**
+     * Upload file to S3 bucket. Throws a 500 error if the file could not be uploaded successfully.
+     * The file is read from disk, so the SDK can re-send it from the start if a request has to be retried.
+     *
+     * @param subdomain  The subdomain of the image (username).
+     * @param fileName   The filename of the image.
+     * @param file The path of the local file to upload.
+     * @param contentType The content type of the image.
+     */
+    public void uploadFile(String subdomain, String fileName, Path file, String contentType) {
+        putObject(subdomain, fileName, RequestBody.fromFile(file), contentType);
+    }
+
+    /**
+     * Upload file to S3 bucket under a name that must not be taken yet. The object store only accepts the write if no
+     * object exists under the key, so two uploads can never claim the same name. Throws a 500 error if the file could
+     * not be uploaded for any other reason.
+     *
+     * @param subdomain  The subdomain of the image (username).
+     * @param fileName   The filename of the image.
+     * @param file The path of the local file to upload.
+     * @param contentType The content type of the image.
+     * @return True if the file was uploaded, false if an object with the name already exists.
+     */
+    public boolean uploadNewFile(String subdomain, String fileName, Path file, String contentType) {
+        String key = getKeyName(subdomain, fileName);
+        log.debug("uploadNewFile, attempting to upload new file with key {} to bucket {}", key, bucketName);
+
+        try {
+            s3Client.putObject(builder -> builder
+                    .bucket(bucketName)
+                    .key(key)
+                    .contentType(contentType)
+                    .ifNoneMatch("*")
+                    .build(), RequestBody.fromFile(file));
+            return true;
+        } catch (S3Exception e) {
+            // 412 if the object exists, 409 if a concurrent conditional write to the same key won
+            if (e.statusCode() == HttpStatus.PRECONDITION_FAILED.value() || e.statusCode() == HttpStatus.CONFLICT.value()) {
+                log.debug("uploadNewFile, key {} in bucket {} is already taken", key, bucketName);
+                return false;
+            }
+            log.error("uploadNewFile, could not upload file with key {} to bucket {}", key, bucketName);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Could not upload file");
+        } catch (AwsServiceException | SdkClientException e) {
+            log.error("uploadNewFile, could not upload file with key {} to bucket {}", key, bucketName);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Could not upload file");
+        }
+    }
+
     /**
      * Upload file to S3 bucket. Throws a 500 error if the file could not be uploaded successfully.
      *
      * @param subdomain  The subdomain of the image (username).
      * @param fileName   The filename of the image.
-     * @param fileStream The image as an InputStream.
+     * @param file The file data.
      * @param contentType The content type of the image.
      */
-    public void uploadFile(String subdomain, String fileName, InputStream fileStream, String contentType) {
+    public void uploadFile(String subdomain, String fileName, byte[] file, String contentType) {
+        putObject(subdomain, fileName, RequestBody.fromBytes(file), contentType);
+    }
+
+    /**
+     * Delete a file from the S3 bucket and from the cache tiers of all nodes. Throws a 500 error if the file could not
+     * be deleted.
+     *
+     * @param subdomain The subdomain of the file (username).
+     * @param fileName The filename of the file.
+     */
+    @CacheEvict(value = CacheConfig.METADATA_CACHE, key = "'size:' + #subdomain + '/' + #fileName")
+    public void deleteFile(String subdomain, String fileName) {
+        String key = getKeyName(subdomain, fileName);
+        log.debug("deleteFile, attempting to delete file with key {} from bucket {}", key, bucketName);
+
+        try {
+            s3Client.deleteObject(builder -> builder
+                    .bucket(bucketName)
+                    .key(key)
+                    .build());
+        } catch (AwsServiceException | SdkClientException e) {
+            log.error("deleteFile, could not delete file with key {} from bucket {}", key, bucketName);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Could not delete file");
+        }
+        fileCache.evict(key);
+        mappedFileCacheService.invalidate(key);
+        broadcastInvalidation(key);
+    }
+
+    /**
+     * Invalidates the cached contents and size of a modified file on all other nodes.
+     *
+     * @param key The key of the file.
+     */
+    private void broadcastInvalidation(String key) {
+        cacheInvalidationService.broadcast(CacheInvalidationService.Scope.FILE, key);
+        cacheInvalidationService.broadcast(CacheInvalidationService.Scope.METADATA, "size:" + key);
+    }
+
+    /**
+     * Put an object into the S3 bucket. Throws a 500 error if the object could not be stored successfully.
+     *
+     * @param subdomain The subdomain of the file (username).
+     * @param fileName The filename of the file.
+     * @param requestBody The contents of the object.
+     * @param contentType The content type of the object.
+     */
+    private void putObject(String subdomain, String fileName, RequestBody requestBody, String contentType) {
         String key = getKeyName(subdomain, fileName);
-        log.debug("uploadFile, attempting to upload file with key {} to bucket {}", key, bucketName);
+        log.debug("putObject, attempting to upload file with key {} to bucket {}", key, bucketName);
 
         try {
             s3Client.putObject(builder -> builder
                     .bucket(bucketName)
                     .key(key)
                     .contentType(contentType)
-                    .build(), RequestBody.fromInputStream(fileStream, fileStream.available()));
-        } catch (AwsServiceException | SdkClientException | IOException e) {
-            log.error("uploadFile, could not upload file with key {} to bucket {}", key, bucketName);
+                    .build(), requestBody);
+        } catch (AwsServiceException | SdkClientException e) {
+            log.error("putObject, could not upload file with key {} to bucket {}", key, bucketName);
             throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Could not upload file");
         }
     }
 
+    /**
+     * Places a file in the off-heap cache tier, and in the in-memory tier if it is below the admission threshold.
+     *
+     * @param key The full key of the file in the S3 bucket.
+     * @param file The file data.
+     */
+    private void cacheFile(String key, byte[] file) {
+        mappedFileCacheService.put(key, file);
+        if (file.length <= fileCacheMaxEntryBytes) {
+            fileCache.put(key, file);
+        }
+    }
+
     /**
      * Get the full name of the key in the S3 bucket.
      *
@@ -0,0 +1,547 @@
+package gg.nya.imagehosting.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Service that stores the thumbnails of each user packed into a single append-only file, instead of one file per
+ * thumbnail.
+ * <p>
+ * Every user directory holds a pack file with the thumbnail data and an index file with one record per write or
+ * deletion, both tagged with a generation number. Thumbnails are read with a single positional read at the offset
+ * recorded in the index, which is kept in memory for recently used users. Replaced and deleted thumbnails leave dead
+ * space in the pack, which is reclaimed by rewriting the live thumbnails into the next generation once the dead share
+ * exceeds a threshold. The new generation becomes visible when its index file is renamed into place, so a crash
+ * during compaction leaves the previous generation intact.
+ * <p>
+ * Directories still holding thumbnails as individual PNG files are migrated into the pack when they are first loaded.
+ * <p>
+ * The object store holds the authoritative copy of every thumbnail, so this store only serves as a local cache and
+ * may be wiped at any time.
+ */
+@Service
+public class ThumbnailStoreService {
+
+    @Value("${app.localstorage.thumbnail-directory}")
+    private String thumbnailDirectory;
+    @Value("${app.thumbnails.store.max-cached-indexes}")
+    private long maxCachedIndexes;
+    @Value("${app.thumbnails.store.compaction-threshold-percent}")
+    private int compactionThresholdPercent;
+    @Value("${app.thumbnails.store.compaction-min-bytes}")
+    private long compactionMinBytes;
+
+    private static final Pattern INDEX_FILE_PATTERN = Pattern.compile("thumbnails-(\\d+)\\.idx");
+    private static final String LEGACY_THUMBNAIL_GLOB = "*.png";
+    private static final int TOMBSTONE = -1;
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * Locks are striped by username rather than stored with the index, so an index that is evicted and reloaded
+     * while it is being written is still guarded by the same lock.
+     */
+    private final ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[LOCK_STRIPES];
+    private Cache<String, UserIndex> userIndexes;
+
+    private static final Logger log = LoggerFactory.getLogger(ThumbnailStoreService.class);
+
+    /**
+     * Location of a thumbnail within a pack file.
+     *
+     * @param offset The offset of the thumbnail data.
+     * @param length The length of the thumbnail data in bytes.
+     */
+    private record Entry(long offset, int length) {
+    }
+
+    /**
+     * In-memory copy of a user's index, along with the sizes needed to decide on compaction.
+     * Must only be accessed while holding the user's lock.
+     */
+    private static final class UserIndex {
+        private final Path directory;
+        private long generation;
+        private Map<String, Entry> entries = new HashMap<>();
+        private long packSize;
+        private long liveBytes;
+
+        private UserIndex(Path directory, long generation) {
+            this.directory = directory;
+            this.generation = generation;
+        }
+
+        private Path packPath() {
+            return directory.resolve("thumbnails-" + generation + ".pack");
+        }
+
+        private Path indexPath() {
+            return directory.resolve("thumbnails-" + generation + ".idx");
+        }
+    }
+
+    public ThumbnailStoreService() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Initializes the cache of loaded user indexes.
+     */
+    @PostConstruct
+    public void init() {
+        this.userIndexes = Caffeine.newBuilder()
+                .maximumSize(maxCachedIndexes)
+                .build();
+    }
+
+    /**
+     * Retrieves a thumbnail.
+     *
+     * @param username The username of the owner.
+     * @param name The identifier of the thumbnail.
+     * @return The thumbnail data, or empty if the user has no thumbnail with this identifier.
+     * @throws IOException If the store could not be read.
+     */
+    public Optional<byte[]> get(String username, String name) throws IOException {
+        ReentrantReadWriteLock lock = getLock(username);
+        while (true) {
+            lock.readLock().lock();
+            try {
+                UserIndex index = userIndexes.getIfPresent(username);
+                if (index != null) {
+                    Entry entry = index.entries.get(name);
+                    return entry == null ? Optional.empty() : Optional.of(read(index, entry));
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            // Loading may migrate legacy files, so it requires exclusive access
+            lock.writeLock().lock();
+            try {
+                getOrLoadIndex(username);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Stores a thumbnail, replacing any previous thumbnail with the same identifier.
+     *
+     * @param username The username of the owner.
+     * @param name The identifier of the thumbnail.
+     * @param data The thumbnail data.
+     * @throws IOException If the store could not be written.
+     */
+    public void put(String username, String name, byte[] data) throws IOException {
+        ReentrantReadWriteLock lock = getLock(username);
+        lock.writeLock().lock();
+        try {
+            UserIndex index = getOrLoadIndex(username);
+            append(index, name, data);
+            compactIfWorthwhile(index);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes a thumbnail. Its space is reclaimed by a later compaction.
+     *
+     * @param username The username of the owner.
+     * @param name The identifier of the thumbnail.
+     * @return True if the thumbnail existed.
+     * @throws IOException If the store could not be written.
+     */
+    public boolean delete(String username, String name) throws IOException {
+        ReentrantReadWriteLock lock = getLock(username);
+        lock.writeLock().lock();
+        try {
+            UserIndex index = getOrLoadIndex(username);
+            if (!index.entries.containsKey(name)) {
+                return false;
+            }
+            Files.write(index.indexPath(), encodeRecord(name, 0, TOMBSTONE),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            applyRecord(index, name, 0, TOMBSTONE);
+            compactIfWorthwhile(index);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Lists the users that have a directory in the store.
+     *
+     * @return The usernames.
+     * @throws IOException If the store directory could not be listed.
+     */
+    public List<String> listUsers() throws IOException {
+        Path root = Path.of(thumbnailDirectory);
+        List<String> usernames = new ArrayList<>();
+        if (!Files.isDirectory(root)) {
+            return usernames;
+        }
+        try (DirectoryStream<Path> userDirectories = Files.newDirectoryStream(root, Files::isDirectory)) {
+            userDirectories.forEach(userDirectory -> usernames.add(userDirectory.getFileName().toString()));
+        }
+        return usernames;
+    }
+
+    /**
+     * Lists the identifiers of all thumbnails of a user. Loading the user's index moves thumbnails that are still
+     * stored as individual files into the pack.
+     *
+     * @param username The username of the user.
+     * @return The identifiers of the thumbnails.
+     * @throws IOException If the store could not be read.
+     */
+    public List<String> listThumbnails(String username) throws IOException {
+        ReentrantReadWriteLock lock = getLock(username);
+        lock.writeLock().lock();
+        try {
+            return List.copyOf(getOrLoadIndex(username).entries.keySet());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private ReentrantReadWriteLock getLock(String username) {
+        return locks[Math.floorMod(username.hashCode(), LOCK_STRIPES)];
+    }
+
+    /**
+     * Returns the loaded index of a user, loading it from disk if required. Must be called while holding the user's
+     * write lock.
+     *
+     * @param username The username of the user.
+     * @return The index.
+     * @throws IOException If the index could not be loaded.
+     */
+    private UserIndex getOrLoadIndex(String username) throws IOException {
+        UserIndex index = userIndexes.getIfPresent(username);
+        if (index == null) {
+            index = loadIndex(username);
+            userIndexes.put(username, index);
+        }
+        return index;
+    }
+
+    /**
+     * Loads the latest generation of a user's index, removes files of other generations left behind by an
+     * interrupted compaction, and migrates legacy thumbnail files into the pack.
+     *
+     * @param username The username of the user.
+     * @return The index.
+     * @throws IOException If the index could not be loaded.
+     */
+    private UserIndex loadIndex(String username) throws IOException {
+        Path directory = Path.of(thumbnailDirectory, username);
+        List<Long> generations = new ArrayList<>();
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> indexFiles = Files.newDirectoryStream(directory, "thumbnails-*.idx")) {
+                for (Path indexFile : indexFiles) {
+                    Matcher matcher = INDEX_FILE_PATTERN.matcher(indexFile.getFileName().toString());
+                    if (matcher.matches()) {
+                        generations.add(Long.parseLong(matcher.group(1)));
+                    }
+                }
+            }
+        }
+        UserIndex index = new UserIndex(directory, generations.stream().max(Comparator.naturalOrder()).orElse(0L));
+        readIndex(index);
+        if (Files.isDirectory(directory)) {
+            deleteStaleGenerations(index);
+            migrateLegacyFiles(username, index);
+        }
+        log.debug("loadIndex, loaded thumbnail index of user {} with {} thumbnails, generation {}",
+                username, index.entries.size(), index.generation);
+        return index;
+    }
+
+    /**
+     * Reads all records of the index file. A partially written record at the end, left by a crash, is cut off.
+     *
+     * @param index The index to fill.
+     * @throws IOException If the index file could not be read.
+     */
+    private void readIndex(UserIndex index) throws IOException {
+        Path packPath = index.packPath();
+        index.packSize = Files.exists(packPath) ? Files.size(packPath) : 0;
+        Path indexPath = index.indexPath();
+        if (!Files.exists(indexPath)) {
+            return;
+        }
+
+        long indexSize = Files.size(indexPath);
+        long validBytes = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+            while (validBytes < indexSize) {
+                byte[] name = new byte[in.readUnsignedShort()];
+                in.readFully(name);
+                long offset = in.readLong();
+                int length = in.readInt();
+                validBytes += 2 + name.length + 12;
+                // The pack is flushed before its index record is written, so this only guards against corruption
+                if (length == TOMBSTONE || offset + length <= index.packSize) {
+                    applyRecord(index, new String(name, StandardCharsets.UTF_8), offset, length);
+                }
+            }
+        } catch (EOFException e) {
+            log.warn("readIndex, truncating partially written record at the end of {}", indexPath);
+            try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.WRITE)) {
+                channel.truncate(validBytes);
+            }
+        }
+    }
+
+    private void applyRecord(UserIndex index, String name, long offset, int length) {
+        Entry previous = length == TOMBSTONE
+                ? index.entries.remove(name)
+                : index.entries.put(name, new Entry(offset, length));
+        if (previous != null) {
+            index.liveBytes -= previous.length();
+        }
+        if (length != TOMBSTONE) {
+            index.liveBytes += length;
+        }
+    }
+
+    /**
+     * Encodes an index record as the UTF-8 length of the name (2 bytes), the name, the offset (8 bytes) and the
+     * length (4 bytes, -1 for deletions).
+     */
+    private static byte[] encodeRecord(String name, long offset, int length) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(2 + nameBytes.length + 12);
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeShort(nameBytes.length);
+        out.write(nameBytes);
+        out.writeLong(offset);
+        out.writeInt(length);
+        return record.toByteArray();
+    }
+
+    /**
+     * Appends a thumbnail to the pack and records it in the index. The pack is flushed to disk first, so an index
+     * record never points at data that was lost in a crash. The index record itself is not flushed, so a crash may
+     * lose the latest writes - callers that remove other copies of the thumbnail must call {@link #forceIndex} first.
+     *
+     * @param index The index of the user.
+     * @param name The identifier of the thumbnail.
+     * @param data The thumbnail data.
+     * @throws IOException If the store could not be written.
+     */
+    private void append(UserIndex index, String name, byte[] data) throws IOException {
+        Files.createDirectories(index.directory);
+        long offset = index.packSize;
+        try (FileChannel pack = FileChannel.open(index.packPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                pack.write(buffer, offset + buffer.position());
+            }
+            pack.force(false);
+        }
+        Files.write(index.indexPath(), encodeRecord(name, offset, data.length),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        index.packSize = offset + data.length;
+        applyRecord(index, name, offset, data.length);
+    }
+
+    /**
+     * Flushes the index file and the directory entries of the pack and index to disk, so all records written so far
+     * survive a crash.
+     *
+     * @param index The index of the user.
+     * @throws IOException If the index could not be flushed.
+     */
+    private void forceIndex(UserIndex index) throws IOException {
+        try (FileChannel indexChannel = FileChannel.open(index.indexPath(), StandardOpenOption.WRITE)) {
+            indexChannel.force(false);
+        }
+        forceDirectory(index.directory);
+    }
+
+    /**
+     * Flushes the entries of a directory to disk, so files created or renamed in it survive a crash. Not all
+     * platforms allow opening directories, in which case the directory is left to the file system.
+     *
+     * @param directory The directory to flush.
+     */
+    private void forceDirectory(Path directory) {
+        try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            directoryChannel.force(true);
+        } catch (IOException e) {
+            log.debug("forceDirectory, could not sync directory {}", directory, e);
+        }
+    }
+
+    private byte[] read(UserIndex index, Entry entry) throws IOException {
+        byte[] data = new byte[entry.length()];
+        try (FileChannel pack = FileChannel.open(index.packPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                if (pack.read(buffer, entry.offset() + buffer.position()) < 0) {
+                    throw new EOFException("Thumbnail pack " + index.packPath() + " ends before offset " + entry.offset());
+                }
+            }
+        }
+        return data;
+    }
+
+    private void compactIfWorthwhile(UserIndex index) throws IOException {
+        long deadBytes = index.packSize - index.liveBytes;
+        if (index.packSize >= compactionMinBytes && deadBytes * 100 >= index.packSize * compactionThresholdPercent) {
+            compact(index);
+        }
+    }
+
+    /**
+     * Rewrites the live thumbnails of a user into the next generation of the store, in pack order, and removes the
+     * previous generation. Must be called while holding the user's write lock.
+     *
+     * @param index The index of the user.
+     * @throws IOException If the new generation could not be written. The previous generation stays in use.
+     */
+    private void compact(UserIndex index) throws IOException {
+        long startTime = System.currentTimeMillis();
+        long previousPackSize = index.packSize;
+        Path previousPack = index.packPath();
+        Path previousIndex = index.indexPath();
+        long generation = index.generation + 1;
+        Path pack = index.directory.resolve("thumbnails-" + generation + ".pack");
+        Path indexFile = index.directory.resolve("thumbnails-" + generation + ".idx");
+        Path indexTemp = index.directory.resolve("thumbnails-" + generation + ".idx.tmp");
+
+        List<Map.Entry<String, Entry>> liveEntries = new ArrayList<>(index.entries.entrySet());
+        liveEntries.sort(Comparator.comparingLong(entry -> entry.getValue().offset()));
+        Map<String, Entry> entries = new HashMap<>();
+        long position = 0;
+        try (FileChannel source = FileChannel.open(previousPack, StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(pack, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING);
+             FileChannel indexChannel = FileChannel.open(indexTemp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING);
+             BufferedOutputStream indexOut = new BufferedOutputStream(Channels.newOutputStream(indexChannel))) {
+            for (Map.Entry<String, Entry> liveEntry : liveEntries) {
+                Entry entry = liveEntry.getValue();
+                long transferred = 0;
+                while (transferred < entry.length()) {
+                    transferred += source.transferTo(entry.offset() + transferred, entry.length() - transferred, target);
+                }
+                indexOut.write(encodeRecord(liveEntry.getKey(), position, entry.length()));
+                entries.put(liveEntry.getKey(), new Entry(position, entry.length()));
+                position += entry.length();
+            }
+            target.force(false);
+            // The index must be complete on disk before the rename makes it visible
+            indexOut.flush();
+            indexChannel.force(false);
+        } catch (IOException e) {
+            Files.deleteIfExists(pack);
+            Files.deleteIfExists(indexTemp);
+            throw e;
+        }
+        // Renaming the index into place commits the new generation, which is durable once the directory is synced
+        Files.move(indexTemp, indexFile, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(index.directory);
+        index.generation = generation;
+        index.entries = entries;
+        index.packSize = position;
+        index.liveBytes = position;
+        Files.deleteIfExists(previousPack);
+        Files.deleteIfExists(previousIndex);
+        log.info("compact, compacted thumbnails in {} from {} to {} bytes in {}ms",
+                index.directory, previousPackSize, position, System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Deletes pack and index files of all generations other than the current one.
+     *
+     * @param index The loaded index.
+     * @throws IOException If the directory could not be listed.
+     */
+    private void deleteStaleGenerations(UserIndex index) throws IOException {
+        List<Path> staleFiles = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(index.directory, "thumbnails-*")) {
+            for (Path file : files) {
+                if (!file.equals(index.packPath()) && !file.equals(index.indexPath())) {
+                    staleFiles.add(file);
+                }
+            }
+        }
+        for (Path staleFile : staleFiles) {
+            log.debug("deleteStaleGenerations, deleting stale thumbnail store file {}", staleFile);
+            Files.deleteIfExists(staleFile);
+        }
+    }
+
+    /**
+     * Moves thumbnails stored as individual PNG files into the pack, and deletes the files once the pack and index
+     * are flushed to disk. Thumbnails already in the pack take precedence.
+     *
+     * @param username The username of the user.
+     * @param index The loaded index.
+     * @throws IOException If a file could not be migrated.
+     */
+    private void migrateLegacyFiles(String username, UserIndex index) throws IOException {
+        List<Path> legacyFiles = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(index.directory, LEGACY_THUMBNAIL_GLOB)) {
+            files.forEach(legacyFiles::add);
+        }
+        if (legacyFiles.isEmpty()) {
+            return;
+        }
+
+        boolean appended = false;
+        for (Path legacyFile : legacyFiles) {
+            String fileName = legacyFile.getFileName().toString();
+            String name = fileName.substring(0, fileName.length() - ".png".length());
+            if (!index.entries.containsKey(name)) {
+                append(index, name, Files.readAllBytes(legacyFile));
+                appended = true;
+            }
+        }
+        // The legacy files are the only local copy until the new index records are on disk
+        if (appended) {
+            forceIndex(index);
+        }
+        for (Path legacyFile : legacyFiles) {
+            Files.delete(legacyFile);
+        }
+        log.info("migrateLegacyFiles, moved {} thumbnail files of user {} into the packed store", legacyFiles.size(), username);
+    }
+}
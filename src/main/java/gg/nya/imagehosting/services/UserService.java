@@ -40,9 +40,16 @@ public class UserService {
         userRepository.save(user);
     }
 
-    public List<User> getUsers(int page, int size) {
-        PageRequest request = PageRequest.of(page, size);
-        return userRepository.findAll(request).getContent();
+    /**
+     * Gets a page of users ordered by ID. Pages are continued from the last user of the previous page, so later
+     * pages are as cheap as the first.
+     *
+     * @param afterId The ID of the last user of the previous page, or 0 for the first page.
+     * @param size The number of users per page.
+     * @return The users of the page.
+     */
+    public List<User> getUsers(long afterId, int size) {
+        return userRepository.findByIdGreaterThanOrderByIdAsc(afterId, PageRequest.of(0, size));
     }
 
     public long getUserCount() {
@@ -3,32 +3,35 @@ package gg.nya.imagehosting.services;
 import gg.nya.imagehosting.models.*;
 import gg.nya.imagehosting.repositories.VideoUploadUserFileRepository;
 import gg.nya.imagehosting.repositories.VideoUploadUserRepository;
+import gg.nya.imagehosting.utils.LogRateLimiter;
 import gg.nya.imagehosting.utils.Utils;
-import jakarta.annotation.PostConstruct;
-import net.bramp.ffmpeg.FFmpeg;
 import net.bramp.ffmpeg.FFmpegExecutor;
-import net.bramp.ffmpeg.FFprobe;
 import net.bramp.ffmpeg.builder.FFmpegBuilder;
+import net.bramp.ffmpeg.builder.FFmpegOutputBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationContext;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.data.domain.PageRequest;
-import org.springframework.data.domain.Sort;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.server.ResponseStatusException;
 
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -37,10 +40,6 @@ import java.util.concurrent.TimeUnit;
 @Service
 public class VideoHostingService {
 
-    @Value("${media.ffmpeg.path}")
-    private String ffmpegPath;
-    @Value("${media.ffprobe.path}")
-    private String ffprobePath;
     @Value("${app.videoupload.max-identifier-generation-attempts}")
     private int maxIdentifierGenerationAttempts;
 
@@ -49,11 +48,14 @@ public class VideoHostingService {
     private final S3Service s3Service;
     private final DataStorageService dataStorageService;
     private final UserService userService;
+    private final NegativeLookupService negativeLookupService;
+    private final ReadReplicaService readReplicaService;
 
     private final ApplicationContext applicationContext;
-    private FFmpegExecutor executor;
+    private final FFmpegExecutor executor;
 
     private static final Logger log = LoggerFactory.getLogger(VideoHostingService.class);
+    private static final LogRateLimiter notFoundLogLimiter = new LogRateLimiter(Duration.ofSeconds(10));
 
     /**
      * Constructor for VideoHostingService.
@@ -64,31 +66,27 @@ public class VideoHostingService {
      * @param userFileRepository Repository for retrieving video files uploaded by users.
      * @param s3Service Service for interacting with S3-compatible storage to retrieve and store video.
      * @param userService Service for managing user information, in case a new video upload user needs to be created.
+     * @param negativeLookupService Service for remembering lookups of videos that are not available.
+     * @param readReplicaService Service for serving video lookups from read replicas.
+     * @param executor The shared FFmpeg executor, for converting videos and generating thumbnails.
      * @param applicationContext The Spring application context, used to get a proxy of this service for async processing.
      */
     @Autowired
     public VideoHostingService(VideoUploadUserRepository videoUploadUserRepository, DataStorageService dataStorageService,
                                VideoUploadUserFileRepository userFileRepository, S3Service s3Service, UserService userService,
-                               ApplicationContext applicationContext) {
+                               NegativeLookupService negativeLookupService, ReadReplicaService readReplicaService,
+                               FFmpegExecutor executor, ApplicationContext applicationContext) {
         this.videoUploadUserRepository = videoUploadUserRepository;
         this.dataStorageService = dataStorageService;
         this.videoUploadUserFileRepository = userFileRepository;
         this.s3Service = s3Service;
         this.userService = userService;
+        this.negativeLookupService = negativeLookupService;
+        this.readReplicaService = readReplicaService;
+        this.executor = executor;
         this.applicationContext = applicationContext;
     }
 
-    /**
-     * Initializes the FFmpeg executor with the configured paths to the FFmpeg and FFprobe binaries.
-     * @throws IOException if the binaries cannot be found or accessed.
-     */
-    @PostConstruct
-    public void init() throws IOException {
-        FFmpeg ffmpeg = new FFmpeg(ffmpegPath);
-        FFprobe ffprobe = new FFprobe(ffprobePath);
-        this.executor = new FFmpegExecutor(ffmpeg, ffprobe);
-    }
-
     /**
      * Serve a video from the given user.
      *
@@ -102,7 +100,11 @@ public class VideoHostingService {
         log.debug("getVideo, retrieving video {} for user {}", fileIdentifier, username);
 
         if (isPublicVideoUnavailable(username, fileIdentifier)) {
-            log.error("getVideo, video for user {} with identifier {} not found", username, fileIdentifier);
+            OptionalLong suppressed = notFoundLogLimiter.tryAcquire();
+            if (suppressed.isPresent()) {
+                log.error("getVideo, video for user {} with identifier {} not found ({} similar messages suppressed)",
+                        username, fileIdentifier, suppressed.getAsLong());
+            }
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Video not found");
         }
 
@@ -142,17 +144,19 @@ public class VideoHostingService {
         MediaType fileType = getMediaType(originalFileName);
         log.debug("saveVideo, uploading video for user {} with file type {} and {} bytes", username, fileType, fileSize);
 
-        //Create new file identifier
-        String newIdentifier = tryCreateIdentifier(videoUser);
+        // Claim a new file identifier by saving the video to the repository as processing
+        String originalFileType = fileType.getSubtype(); //e.g. "mp4"
+        String newIdentifier = persistWithNewIdentifier(username, videoTitle, videoUser, fileSize, originalFileType);
 
         //Upload input video file
-        String originalFileType = fileType.getSubtype(); //e.g. "mp4"
         String inputFile = username + "_" + newIdentifier + "_input." + originalFileType; //e.g. "myusername_abcd1234_input.mp4"
         log.debug("saveVideo, storing temporary input video file for user {} with file name {}", username, inputFile);
-        dataStorageService.saveTempFile(videoInputStream, inputFile);
-
-        // Save the video file to the repository as processing
-        persistToDatabase(username, videoTitle, newIdentifier, videoUser, fileSize);
+        try {
+            dataStorageService.saveTempFile(videoInputStream, inputFile);
+        } catch (RuntimeException e) {
+            updateDatabaseStatus(username, newIdentifier, VideoUploadStatus.FAILED);
+            throw e;
+        }
 
         //Process video upload asynchronously - call via proxy for async to work
         applicationContext.getBean(VideoHostingService.class).processVideoAsync(
@@ -200,7 +204,11 @@ public class VideoHostingService {
     public long getVideoFileSize(String username, String filename) {
         log.debug("getVideoFileSize, fetching video length for user {} with filename {}", username, filename);
         if (isPublicVideoUnavailable(username, filename)) {
-            log.error("getVideoFileSize, video for user {} with filename {} not found", username, filename);
+            OptionalLong suppressed = notFoundLogLimiter.tryAcquire();
+            if (suppressed.isPresent()) {
+                log.error("getVideoFileSize, video for user {} with filename {} not found ({} similar messages suppressed)",
+                        username, filename, suppressed.getAsLong());
+            }
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Video not found");
         }
         return s3Service.getFileSize(username, filename + ".mp4");
@@ -226,49 +234,86 @@ public class VideoHostingService {
     }
 
     /**
-     * Gets a paginated list of videos for the given user. Videos are sorted by creation date in descending order.
+     * Gets a page of videos for the given user. Videos are sorted by creation date in descending order.
+     * Pages are continued from the last video of the previous page, so later pages are as cheap as the first.
+     * Each page is fetched with a single query that resolves the user by name and selects only the listed columns,
+     * and is served by a read replica if possible.
      *
-     * @param page The page number to retrieve (0-indexed).
+     * @param after The position after which to continue, or null for the first page.
      * @param size The number of videos per page.
      * @param username The username of the user.
      * @return A list of videos for the given user.
      */
-    public List<VideoUploadUserFile> getVideos(int page, int size, String username) {
-        log.debug("getVideos, fetching videos for user {} with page {} and size {}", username, page, size);
-        Optional<VideoUploadUser> videoUploadUserOpt = videoUploadUserRepository.findByUsername(username);
-        if (videoUploadUserOpt.isEmpty()) {
+    public List<VideoLibraryItem> getVideos(VideoLibraryCursor after, int size, String username) {
+        log.debug("getVideos, fetching videos for user {} after {} with size {}", username, after, size);
+        PageRequest request = PageRequest.of(0, size);
+        if (after != null) {
+            return readReplicaService.read(username, () -> videoUploadUserFileRepository.findLibraryItemsAfter(
+                    username, VideoUploadStatus.COMPLETED, after.createdAt(), after.id(), request));
+        }
+
+        List<VideoLibraryItem> videos = readReplicaService.read(username, () ->
+                videoUploadUserFileRepository.findLibraryItems(username, VideoUploadStatus.COMPLETED, request));
+        // An empty first page is the only case where the user might not exist at all
+        if (videos.isEmpty() && !readReplicaService.read(username,
+                () -> videoUploadUserRepository.existsByUserUsername(username))) {
             log.error("getVideos, video upload user for user {} not found", username);
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Could not find video upload user");
         }
-
-        VideoUploadUser videoUploadUser = videoUploadUserOpt.get();
-        PageRequest request = PageRequest.of(page, size)
-                .withSort(Sort.by(Sort.Direction.DESC, "createdAt"));
-        return videoUploadUserFileRepository.findAllByVideoUploadUserAndUploadStatus(videoUploadUser, VideoUploadStatus.COMPLETED, request).getContent();
+        return videos;
     }
 
     /**
      * Fetches up to 'limit' abandoned videos that are still in processing state after a specified duration.
      * @param limit The maximum number of abandoned videos to fetch.
      * @param thresholdHours The number of hours after which a processing video is considered abandoned.
-     * @return A list of abandoned video files.
+     * @return A list of abandoned video files, with the usernames of their owners.
      */
-    public List<VideoUploadUserFile> getAbandonedVideos(int limit, int thresholdHours) {
+    public List<AbandonedVideoUpload> getAbandonedVideos(int limit, int thresholdHours) {
         log.debug("getAbandonedVideos, fetching abandoned videos with limit {}", limit);
         PageRequest request = PageRequest.of(0, limit);
-        return videoUploadUserFileRepository.findAllByUploadStatusAndCreatedAtBefore(VideoUploadStatus.PROCESSING,
-                LocalDateTime.now().minusHours(thresholdHours), request).getContent();
+        return videoUploadUserFileRepository.findAbandonedUploads(VideoUploadStatus.PROCESSING,
+                LocalDateTime.now().minusHours(thresholdHours), request);
+    }
+
+    /**
+     * Marks the given abandoned uploads as failed with a single set-based update, after removing all temporary
+     * files that belong to them. Uploads created before the original extension was persisted only have their
+     * output and thumbnail files removed here - their input files are left to the temp directory sweep.
+     *
+     * @param abandonedVideos The abandoned video uploads to clean up.
+     * @return The number of database rows that were updated.
+     */
+    @Transactional
+    public int failAbandonedUploads(List<AbandonedVideoUpload> abandonedVideos) {
+        log.debug("failAbandonedUploads, cleaning up {} abandoned uploads", abandonedVideos.size());
+        if (abandonedVideos.isEmpty()) {
+            return 0;
+        }
+
+        for (AbandonedVideoUpload video : abandonedVideos) {
+            String username = video.username();
+            for (Path tempFile : getTempFilePaths(username, video.fileName(), video.originalExtension())) {
+                log.trace("failAbandonedUploads, deleting temporary file {} for user {}", tempFile, username);
+                dataStorageService.deleteTempFile(tempFile.getFileName().toString());
+            }
+        }
+
+        List<Long> ids = abandonedVideos.stream().map(AbandonedVideoUpload::id).toList();
+        return videoUploadUserFileRepository.updateUploadStatusByIdIn(ids, VideoUploadStatus.FAILED);
     }
 
     /**
-     * Fetches video metadata for the given user and filename.
+     * Fetches the video metadata shown on the player page for the given user and filename, from a read replica if
+     * possible.
      * @param username The username of the user.
      * @param filename The filename of the video.
      * @return An Optional containing the video metadata if found, or empty if not found.
      */
-    public Optional<VideoUploadUserFile> getVideoMetadata(String username, String filename) {
+    public Optional<VideoPlayerView> getVideoMetadata(String username, String filename) {
         log.debug("getVideoMetadata, fetching video data for user {} with filename {}", username, filename);
-        return videoUploadUserFileRepository.findByUsernameAndFileName(username, filename);
+        return readReplicaService.read(username,
+                () -> videoUploadUserFileRepository.findPlayerViewByUsernameAndFileName(username, filename));
     }
 
     /**
@@ -361,45 +406,36 @@ public class VideoHostingService {
         return videoInputStreamAvailable;
     }
 
-    /**
-     * Attempts to create a file identifier for the user's given strategy. Aborts with a 500 error after sufficient failed attempts.
-     *
-     * @param videoUploadUser The video upload user entity.
-     * @return The generated file name, without extension.
-     */
-    private String tryCreateIdentifier(VideoUploadUser videoUploadUser) {
-        log.trace("tryCreateIdentifier, attempting to create file identifier for user {}", videoUploadUser.getId());
-
-        for (int i = 0; i < maxIdentifierGenerationAttempts; i++) {
-            String fileName = Utils.generateFilenameFromStrategy(videoUploadUser.getVideoUploadMode());
-            if (!videoUploadUserFileRepository.existsByVideoUploadUserAndFileName(videoUploadUser, fileName)) {
-                log.trace("tryCreateIdentifier, determined file name {} for image hosting user {}", fileName, videoUploadUser.getId());
-                return fileName;
-            }
-        }
-        log.error("tryCreateIdentifier, could not create file name for user {} with strategy {}",
-                videoUploadUser.getUser().getUsername(), videoUploadUser.getVideoUploadMode());
-        throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Could not create file for user.");
-    }
-
     /**
      * Queries the database to check if the user with the given username has a public video with the given filename.
+     * Unavailable videos are remembered for a short time, so repeated requests for them do not reach the database.
+     * The database is queried on a read replica if possible.
      *
      * @param username The username of the user.
      * @param filename The filename of the video.
      * @return True if the video doesn't exist in a public status, false otherwise.
      */
     private boolean isPublicVideoUnavailable(String username, String filename) {
+        if (negativeLookupService.isKnownMissing(NegativeLookupService.VIDEO, username, filename)) {
+            return true;
+        }
         log.trace("isPublicVideoUnavailable, checking if video upload user for {} exists", username);
 
-        Optional<VideoUploadUser> videoUploadUserOpt = videoUploadUserRepository.findByUsername(username);
+        Optional<VideoUploadUser> videoUploadUserOpt = readReplicaService.read(username,
+                () -> videoUploadUserRepository.findByUsername(username));
         if (videoUploadUserOpt.isEmpty()) {
             log.trace("checkVideoExists, video upload user for user {} not found", username);
+            negativeLookupService.recordMissing(NegativeLookupService.VIDEO, username, filename);
             return true;
         }
 
-        return !videoUploadUserFileRepository.existsByVideoUploadUserAndFileNameAndUploadStatus(videoUploadUserOpt.get(),
-                filename, VideoUploadStatus.COMPLETED);
+        if (!readReplicaService.read(username, () -> videoUploadUserFileRepository
+                .existsByVideoUploadUserAndFileNameAndUploadStatus(videoUploadUserOpt.get(), filename,
+                        VideoUploadStatus.COMPLETED))) {
+            negativeLookupService.recordMissing(NegativeLookupService.VIDEO, username, filename);
+            return true;
+        }
+        return false;
     }
 
     /**
@@ -414,46 +450,75 @@ public class VideoHostingService {
     @Async
     protected void processVideoAsync(String fileIdentifier, MediaType originalFileType, String username,
                                      double startTimeSeconds, double endTimeSeconds) {
-        Path inputFilePath = dataStorageService.getTempFilePath(username + "_" + fileIdentifier + "_input." + originalFileType.getSubtype());
-        Path outputFilePath = dataStorageService.getTempFilePath(username + "_" + fileIdentifier + ".mp4");
-        Path thumbnailPath = dataStorageService.getTempFilePath("thumbnail_" + username + "_" + fileIdentifier + ".png");
+        List<Path> tempFiles = getTempFilePaths(username, fileIdentifier, originalFileType.getSubtype());
+        Path inputFilePath = tempFiles.get(0);
+        Path outputFilePath = tempFiles.get(1);
+        List<ThumbnailVariant> thumbnailVariants = ThumbnailVariant.all();
+        List<Path> thumbnailPaths = tempFiles.subList(tempFiles.size() - thumbnailVariants.size(), tempFiles.size());
 
         log.debug("processVideoAsync, converting video file: {} -> {}", inputFilePath, outputFilePath);
         convertToMp4(inputFilePath, outputFilePath, startTimeSeconds, endTimeSeconds);
 
-        log.debug("processVideoAsync, generating thumbnail: {} -> {}", inputFilePath, thumbnailPath);
-        generateThumbnail(inputFilePath, thumbnailPath);
+        log.debug("processVideoAsync, generating {} thumbnails from {}", thumbnailPaths.size(), inputFilePath);
+        generateThumbnails(inputFilePath, thumbnailVariants, thumbnailPaths);
 
         String thumbnailIdentifier = "v-" + fileIdentifier;
-        log.debug("processVideoAsync, copying thumbnail: {} ->  {}", thumbnailPath, thumbnailIdentifier);
-        try {
-            InputStream thumbnailInputStream = new FileInputStream(thumbnailPath.toFile());
-            dataStorageService.saveThumbnail(username, thumbnailIdentifier, thumbnailInputStream);
-            thumbnailInputStream.close();
-        }
-        catch(IOException e) {
-            log.error("processVideoAsync, failed to copy thumbnail file: {} -> {}", thumbnailPath, thumbnailIdentifier, e);
-            cleanUpUpload(username, fileIdentifier, List.of(inputFilePath, outputFilePath, thumbnailPath), VideoUploadStatus.FAILED);
-            return;
+        for (int i = 0; i < thumbnailVariants.size(); i++) {
+            Path thumbnailPath = thumbnailPaths.get(i);
+            String variantIdentifier = thumbnailVariants.get(i).toIdentifier(thumbnailIdentifier);
+            log.debug("processVideoAsync, copying thumbnail: {} ->  {}", thumbnailPath, variantIdentifier);
+            try (InputStream thumbnailInputStream = new FileInputStream(thumbnailPath.toFile())) {
+                dataStorageService.saveThumbnail(username, variantIdentifier, thumbnailInputStream);
+            }
+            catch(IOException | ResponseStatusException e) {
+                log.error("processVideoAsync, failed to store thumbnail file: {} -> {}", thumbnailPath, variantIdentifier, e);
+                dataStorageService.deleteThumbnail(username, thumbnailIdentifier);
+                cleanUpUpload(username, fileIdentifier, tempFiles, VideoUploadStatus.FAILED);
+                return;
+            }
         }
 
         log.debug("processVideoAsync, uploading video {} to S3 for user {}", outputFilePath, username);
         try {
-            InputStream videoInputStream = new FileInputStream(outputFilePath.toFile());
-            s3Service.uploadFile(username, fileIdentifier + ".mp4", videoInputStream, originalFileType.toString());
+            s3Service.uploadFile(username, fileIdentifier + ".mp4", outputFilePath, originalFileType.toString());
         }
-        catch (IOException e) {
+        catch (ResponseStatusException e) {
             log.error("processVideoAsync, failed to store video file {} to S3", outputFilePath, e);
-            cleanUpUpload(username, fileIdentifier, List.of(inputFilePath, outputFilePath, thumbnailPath), VideoUploadStatus.FAILED);
+            dataStorageService.deleteThumbnail(username, thumbnailIdentifier);
+            cleanUpUpload(username, fileIdentifier, tempFiles, VideoUploadStatus.FAILED);
             return;
         }
 
         log.debug("processVideoAsync, upload successful, cleaning up temporary files for user {}, file {}", username, fileIdentifier);
-        cleanUpUpload(username, fileIdentifier, List.of(inputFilePath, outputFilePath, thumbnailPath), VideoUploadStatus.COMPLETED);
+        cleanUpUpload(username, fileIdentifier, tempFiles, VideoUploadStatus.COMPLETED);
 
         log.debug("processVideoAsync, video processing completed for user {}, file {}", username, fileIdentifier);
     }
 
+    /**
+     * Resolves the temporary files that are created while processing an upload, in the order input, output, followed
+     * by one thumbnail per variant in the order of {@link ThumbnailVariant#all()}.
+     * If the original extension is unknown, the input file is omitted.
+     *
+     * @param username The username of the user who uploaded the video.
+     * @param fileIdentifier The identifier of the video, without extension.
+     * @param originalExtension The extension of the temporary input file, or null if unknown.
+     * @return The paths of all temporary files belonging to the upload.
+     */
+    private List<Path> getTempFilePaths(String username, String fileIdentifier, String originalExtension) {
+        Path outputFilePath = dataStorageService.getTempFilePath(username + "_" + fileIdentifier + ".mp4");
+        List<Path> paths = new ArrayList<>();
+        if (originalExtension != null) {
+            paths.add(dataStorageService.getTempFilePath(username + "_" + fileIdentifier + "_input." + originalExtension));
+        }
+        paths.add(outputFilePath);
+        for (ThumbnailVariant variant : ThumbnailVariant.all()) {
+            paths.add(dataStorageService.getTempFilePath("thumbnail_" + username + "_" + fileIdentifier + "_"
+                    + variant.size().getParameter() + "." + variant.getFileExtension()));
+        }
+        return paths;
+    }
+
     /**
      * Convert a video file to MP4 format with the same resolution as input, and clip to the specified duration.
      *
@@ -495,24 +560,47 @@ public class VideoHostingService {
     }
 
     /**
-     * Generates a thumbnail from the first frame of a video file at 480x270 resolution.
+     * Generates all thumbnail variants from the first frame of a video file, decoding the frame only once.
+     * WebP variants are encoded lossy, which is several times smaller than PNG for video frames.
      *
      * @param inputFilePath The original path to the file to convert from.
-     * @param thumbnailFilePath The path at which to save the generated thumbnail.
+     * @param variants The variants to generate.
+     * @param thumbnailFilePaths The paths at which to save the variants, in the order of the variants.
      */
-    private void generateThumbnail(Path inputFilePath, Path thumbnailFilePath) {
-        log.trace("generateThumbnail, generating thumbnail: {} -> {}", inputFilePath, thumbnailFilePath);
+    private void generateThumbnails(Path inputFilePath, List<ThumbnailVariant> variants, List<Path> thumbnailFilePaths) {
+        log.trace("generateThumbnails, generating {} thumbnails from {}", variants.size(), inputFilePath);
 
         FFmpegBuilder builder = new FFmpegBuilder()
                 .setInput(inputFilePath.toString())
-                .overrideOutputFiles(true)
-                .addOutput(thumbnailFilePath.toString())
-                .setFrames(1)
-                .setVideoFilter("scale=480:270")
-                .done();
+                .overrideOutputFiles(true);
+        for (int i = 0; i < variants.size(); i++) {
+            ThumbnailVariant variant = variants.get(i);
+            FFmpegOutputBuilder output = builder.addOutput(thumbnailFilePaths.get(i).toString())
+                    .setFrames(1)
+                    .setVideoFilter(getThumbnailFilter(variant.size()));
+            if (variant.format().equals("webp")) {
+                output.setVideoCodec("libwebp").addExtraArgs("-quality", "75");
+            } else {
+                output.setVideoCodec("mjpeg").addExtraArgs("-q:v", "4");
+            }
+            output.addExtraArgs("-update", "1");
+        }
         executor.createJob(builder).run();
 
-        log.debug("generateThumbnail, thumbnail generation completed successfully for file {}", thumbnailFilePath);
+        log.debug("generateThumbnails, thumbnail generation completed successfully for file {}", inputFilePath);
+    }
+
+    /**
+     * Builds the FFmpeg filter for a thumbnail size. The frame is scaled down to fit the size, keeping its aspect
+     * ratio and never upscaling, and padded to the exact size, so every thumbnail has the dimensions that pages
+     * reserve for it.
+     *
+     * @param size The thumbnail size.
+     * @return The video filter.
+     */
+    private static String getThumbnailFilter(ThumbnailSize size) {
+        return String.format("scale='min(iw,%1$d)':'min(ih,%2$d)':force_original_aspect_ratio=decrease,"
+                + "pad=%1$d:%2$d:(ow-iw)/2:(oh-ih)/2,setsar=1", size.getWidth(), size.getHeight());
     }
 
     /**
@@ -530,6 +618,8 @@ public class VideoHostingService {
             VideoUploadUserFile videoFile = videoFileOpt.get();
             videoFile.setUploadStatus(status);
             videoUploadUserFileRepository.save(videoFile);
+            readReplicaService.recordWrite(username);
+            negativeLookupService.invalidate(NegativeLookupService.VIDEO, username, fileName);
         }
         else {
             log.error("updateDatabaseStatus, failed to update status for file {} for user {}: file not found in database",
@@ -539,24 +629,43 @@ public class VideoHostingService {
     }
 
     /**
-     * Persists a new video upload record to the database with PROCESSING status.
+     * Persists a new video upload record to the database with PROCESSING status, under a new file identifier for the
+     * user's given strategy. The unique index on the user's file names decides whether an identifier is free, so the
+     * identifier is claimed with a single insert instead of being checked first. Identifiers that are taken are
+     * replaced with a new one and the insert is retried. Aborts with a 500 error after sufficient failed attempts.
      *
      * @param username The username of the user uploading the video.
      * @param videoTitle The title of the video.
-     * @param fileIdentifier The generated file identifier for the video.
      * @param videoUser The VideoUploadUser entity associated with the user.
      * @param fileSize The size of the video input stream in bytes.
+     * @param originalExtension The extension of the temporary input file, so it can be cleaned up if processing is abandoned.
+     * @return The claimed file identifier, without extension.
      */
-    private void persistToDatabase(String username, String videoTitle, String fileIdentifier, VideoUploadUser videoUser, long fileSize) {
-        log.trace("persistToDatabase, storing video file for user {} with file name {} in database as PROCESSING", username, fileIdentifier);
-
-        VideoUploadUserFile videoUploadUserFile = new VideoUploadUserFile();
-        videoUploadUserFile.setVideoUploadUser(videoUser);
-        videoUploadUserFile.setFileName(fileIdentifier);
-        videoUploadUserFile.setFileSize(fileSize);
-        videoUploadUserFile.setVideoTitle(videoTitle);
-        videoUploadUserFile.setCreatedAt(LocalDateTime.now());
-        videoUploadUserFile.setUploadStatus(VideoUploadStatus.PROCESSING);
-        videoUploadUserFileRepository.save(videoUploadUserFile);
+    private String persistWithNewIdentifier(String username, String videoTitle, VideoUploadUser videoUser,
+                                            long fileSize, String originalExtension) {
+        for (int i = 0; i < maxIdentifierGenerationAttempts; i++) {
+            String fileIdentifier = Utils.generateFilenameFromStrategy(videoUser.getVideoUploadMode());
+            log.trace("persistWithNewIdentifier, storing video file for user {} with file name {} in database as PROCESSING",
+                    username, fileIdentifier);
+
+            VideoUploadUserFile videoUploadUserFile = new VideoUploadUserFile();
+            videoUploadUserFile.setVideoUploadUser(videoUser);
+            videoUploadUserFile.setFileName(fileIdentifier);
+            videoUploadUserFile.setFileSize(fileSize);
+            videoUploadUserFile.setVideoTitle(videoTitle);
+            videoUploadUserFile.setCreatedAt(LocalDateTime.now());
+            videoUploadUserFile.setUploadStatus(VideoUploadStatus.PROCESSING);
+            videoUploadUserFile.setOriginalExtension(originalExtension);
+            try {
+                videoUploadUserFileRepository.save(videoUploadUserFile);
+                readReplicaService.recordWrite(username);
+                return fileIdentifier;
+            } catch (DataIntegrityViolationException e) {
+                log.debug("persistWithNewIdentifier, file name {} of user {} is taken, retrying", fileIdentifier, username);
+            }
+        }
+        log.error("persistWithNewIdentifier, could not create file name for user {} with strategy {}",
+                username, videoUser.getVideoUploadMode());
+        throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Could not create file for user.");
     }
 }
@@ -0,0 +1,110 @@
+package gg.nya.imagehosting.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.zip.CRC32C;
+
+/**
+ * Input stream that computes the SHA-256 digest and CRC32C checksum of everything read through it, and counts the
+ * bytes read, so a stream can be uploaded and fingerprinted in a single pass.
+ */
+public class ChecksumInputStream extends FilterInputStream {
+    private final MessageDigest sha256;
+    private final CRC32C crc32c = new CRC32C();
+    private long byteCount = 0;
+
+    /**
+     * Creates a new checksum stream.
+     *
+     * @param in The stream to read from.
+     */
+    public ChecksumInputStream(InputStream in) {
+        super(in);
+        try {
+            this.sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b != -1) {
+            sha256.update((byte) b);
+            crc32c.update(b);
+            byteCount++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = in.read(b, off, len);
+        if (read > 0) {
+            sha256.update(b, off, read);
+            crc32c.update(b, off, read);
+            byteCount += read;
+        }
+        return read;
+    }
+
+    /**
+     * Skipped bytes would be missing from the checksums, so they are read instead.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buffer = new byte[8192];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (read < 0) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * @return The number of bytes read so far.
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * Completes the SHA-256 digest. Must only be called once, after the stream has been read fully.
+     *
+     * @return The SHA-256 digest of all bytes read, as lowercase hex string.
+     */
+    public String getSha256Hex() {
+        return HexFormat.of().formatHex(sha256.digest());
+    }
+
+    /**
+     * @return The CRC32C checksum of all bytes read, as lowercase hex string.
+     */
+    public String getCrc32cHex() {
+        return String.format("%08x", crc32c.getValue());
+    }
+}
@@ -0,0 +1,40 @@
+package gg.nya.imagehosting.utils;
+
+import java.time.Duration;
+import java.util.OptionalLong;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how often a log statement is emitted. At most one message is let through per interval, and the number
+ * of messages suppressed in between is reported with the next message that is let through.
+ */
+public class LogRateLimiter {
+    private final long intervalNanos;
+    private final AtomicLong nextPermitNanos;
+    private final AtomicLong suppressed = new AtomicLong();
+
+    /**
+     * Creates a new rate limiter.
+     *
+     * @param interval The minimum time between two messages.
+     */
+    public LogRateLimiter(Duration interval) {
+        this.intervalNanos = interval.toNanos();
+        this.nextPermitNanos = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Attempts to acquire permission to log a message.
+     *
+     * @return The number of messages suppressed since the last permitted one, or empty if this message should be suppressed.
+     */
+    public OptionalLong tryAcquire() {
+        long now = System.nanoTime();
+        long nextPermit = nextPermitNanos.get();
+        if (now - nextPermit >= 0 && nextPermitNanos.compareAndSet(nextPermit, now + intervalNanos)) {
+            return OptionalLong.of(suppressed.getAndSet(0));
+        }
+        suppressed.incrementAndGet();
+        return OptionalLong.empty();
+    }
+}
@@ -2,9 +2,16 @@ package gg.nya.imagehosting.utils;
 
 import gg.nya.imagehosting.models.HostingMode;
 import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
 
+import java.security.SecureRandom;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Static utility class, mainly for module-independent String operations.
@@ -12,6 +19,18 @@ import java.util.UUID;
 public abstract class Utils {
     static final String ALPHANUMERIC_CHARACTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
     static final int ALPHANUMERIC_LENGTH = 8;
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("ddMMyyyy-HHmmss");
+    private static final int TIMESTAMP_SEQUENCE_BITS = 20;
+
+    /**
+     * Each thread draws from its own generator, so concurrent uploads do not contend on a shared one.
+     */
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+    /**
+     * The second of the last timestamped filename in the upper bits, and the number of filenames already issued
+     * within that second in the lower bits.
+     */
+    private static final AtomicLong TIMESTAMP_SEQUENCE = new AtomicLong();
 
     private Utils() {
     }
@@ -59,6 +78,30 @@ public abstract class Utils {
         return filename.substring(filename.lastIndexOf(".") + 1).toLowerCase();
     }
 
+    /**
+     * Checks whether an Accept header explicitly accepts the given media type, i.e. lists it by name with a quality
+     * value above zero. Wildcard ranges are not counted, so clients that send no explicit preference keep getting the
+     * widely supported default format.
+     * Returns false for a missing or malformed header.
+     *
+     * @param acceptHeader The Accept header of the request, or null.
+     * @param mediaType The media type to check, e.g. image/webp.
+     * @return True if the media type is explicitly accepted.
+     */
+    public static boolean acceptsMediaType(String acceptHeader, MediaType mediaType) {
+        if(acceptHeader == null || acceptHeader.isBlank()) return false;
+        try {
+            for (MediaType range : MediaType.parseMediaTypes(acceptHeader)) {
+                if (!range.isWildcardType() && !range.isWildcardSubtype() && range.isCompatibleWith(mediaType)) {
+                    return range.getQualityValue() > 0;
+                }
+            }
+        } catch (InvalidMediaTypeException e) {
+            return false;
+        }
+        return false;
+    }
+
     /**
      * Generates a filename based on the provided strategy.
      *
@@ -118,18 +161,30 @@ public abstract class Utils {
      * @return A random alphanumeric string of the provided length.
      */
     private static String generateRandomAlphanumericString() {
+        SecureRandom random = RANDOM.get();
         StringBuilder sb = new StringBuilder(ALPHANUMERIC_LENGTH);
         for (int i = 0; i < ALPHANUMERIC_LENGTH; i++) {
-            int index = (int) (Math.random() * ALPHANUMERIC_CHARACTERS.length());
+            int index = random.nextInt(ALPHANUMERIC_CHARACTERS.length());
             sb.append(ALPHANUMERIC_CHARACTERS.charAt(index));
         }
         return sb.toString();
     }
 
     /**
-     * Generates a timestamped filename.
+     * Generates a timestamped filename. The first filename of a second is the plain timestamp, and every further
+     * filename within the same second gets a sequence suffix, e.g. 01012021-120000-1, so this node never generates
+     * the same filename twice. If the clock moves backwards, the last second keeps being used until it catches up.
      */
     private static String generateTimestampedFilename() {
-        return LocalDateTime.now().format(java.time.format.DateTimeFormatter.ofPattern("ddMMyyyy-HHmmss"));
+        long now = Instant.now().getEpochSecond();
+        long next = TIMESTAMP_SEQUENCE.updateAndGet(previous -> {
+            long previousSecond = previous >>> TIMESTAMP_SEQUENCE_BITS;
+            return previousSecond >= now ? previous + 1 : now << TIMESTAMP_SEQUENCE_BITS;
+        });
+        long second = next >>> TIMESTAMP_SEQUENCE_BITS;
+        long sequence = next & ((1L << TIMESTAMP_SEQUENCE_BITS) - 1);
+        String timestamp = LocalDateTime.ofInstant(Instant.ofEpochSecond(second), ZoneId.systemDefault())
+                .format(TIMESTAMP_FORMAT);
+        return sequence == 0 ? timestamp : timestamp + "-" + sequence;
     }
 }
@@ -0,0 +1,3 @@
+-- Image files draw their IDs in blocks of 50, so a batch of uploads can be inserted with a single batched statement.
+-- Must match the allocation size of the sequence generator of ImageHostingUserFile.
+ALTER SEQUENCE image_hosting_user_files_id_seq INCREMENT BY 50;
@@ -0,0 +1,24 @@
+-- Runs outside a transaction (see V11__ImageFileUserCreatedAtIndex.sql.conf) so the index can be built CONCURRENTLY
+-- without blocking uploads. Serves the incremental refresh of the existence index, which reads the names of a user's
+-- files created since a point in time on every lookup that misses the index.
+
+-- A concurrent build that failed leaves an invalid index behind, which IF NOT EXISTS would otherwise accept.
+DO
+$$
+    DECLARE
+        invalid_index TEXT;
+    BEGIN
+        FOR invalid_index IN
+            SELECT c.relname
+            FROM pg_index i
+                     JOIN pg_class c ON c.oid = i.indexrelid
+            WHERE NOT i.indisvalid
+              AND c.relname IN ('idx_image_hosting_user_files_user_created_at')
+            LOOP
+                EXECUTE format('DROP INDEX %I', invalid_index);
+            END LOOP;
+    END
+$$;
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_image_hosting_user_files_user_created_at
+ON image_hosting_user_files (image_hosting_user_id, created_at) INCLUDE (file_name);
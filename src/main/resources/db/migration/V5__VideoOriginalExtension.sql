@@ -0,0 +1,2 @@
+ALTER TABLE video_upload_user_files
+ADD COLUMN original_extension VARCHAR(255);
@@ -0,0 +1,5 @@
+ALTER TABLE image_hosting_user_files
+ADD COLUMN original_file_size BIGINT;
+
+ALTER TABLE image_hosting_user_files
+ADD COLUMN optimized_at TIMESTAMP;
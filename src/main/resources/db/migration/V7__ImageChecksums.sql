@@ -0,0 +1,8 @@
+ALTER TABLE image_hosting_user_files
+ADD COLUMN content_sha256 CHAR(64);
+
+ALTER TABLE image_hosting_user_files
+ADD COLUMN content_crc32c CHAR(8);
+
+CREATE INDEX IF NOT EXISTS idx_image_hosting_user_files_user_sha256
+ON image_hosting_user_files (image_hosting_user_id, content_sha256);
@@ -0,0 +1,102 @@
+-- Runs outside a transaction (see V8__HotPathIndexes.sql.conf) so the indexes can be built CONCURRENTLY without
+-- blocking writes to the file tables. Every step below is idempotent, so a failed run can be repaired and retried.
+
+-- Duplicate accounts or API keys cannot be merged automatically, they have to be resolved by hand.
+DO
+$$
+    BEGIN
+        IF EXISTS (SELECT 1 FROM users GROUP BY username HAVING count(*) > 1) THEN
+            RAISE EXCEPTION 'V8: users contains duplicate usernames, resolve them before building ux_users_username';
+        END IF;
+        IF EXISTS (SELECT 1 FROM image_hosting_users GROUP BY api_key HAVING count(*) > 1) THEN
+            RAISE EXCEPTION 'V8: image_hosting_users contains duplicate API keys, regenerate them before building ux_image_hosting_users_api_key';
+        END IF;
+    END
+$$;
+
+-- A user registered for a service more than once keeps the oldest registration, which takes over the files of the others.
+UPDATE image_hosting_user_files f
+SET image_hosting_user_id = keep.id
+FROM image_hosting_users dup
+         JOIN (SELECT user_id, min(id) AS id FROM image_hosting_users GROUP BY user_id) keep ON keep.user_id = dup.user_id
+WHERE f.image_hosting_user_id = dup.id
+  AND dup.id <> keep.id;
+
+DELETE
+FROM image_hosting_users dup
+    USING image_hosting_users keep
+WHERE dup.user_id = keep.user_id
+  AND dup.id > keep.id;
+
+UPDATE video_upload_user_files f
+SET video_upload_user_id = keep.id
+FROM video_upload_users dup
+         JOIN (SELECT user_id, min(id) AS id FROM video_upload_users GROUP BY user_id) keep ON keep.user_id = dup.user_id
+WHERE f.video_upload_user_id = dup.id
+  AND dup.id <> keep.id;
+
+DELETE
+FROM video_upload_users dup
+    USING video_upload_users keep
+WHERE dup.user_id = keep.user_id
+  AND dup.id > keep.id;
+
+-- Both rows of a duplicate file name point at the same storage key, so only the newest row describes the stored object.
+DELETE
+FROM image_hosting_user_files old
+    USING image_hosting_user_files newer
+WHERE old.image_hosting_user_id = newer.image_hosting_user_id
+  AND old.file_name = newer.file_name
+  AND old.id < newer.id;
+
+DELETE
+FROM video_upload_user_files old
+    USING video_upload_user_files newer
+WHERE old.video_upload_user_id = newer.video_upload_user_id
+  AND old.file_name = newer.file_name
+  AND old.id < newer.id;
+
+-- A concurrent build that failed leaves an invalid index behind, which IF NOT EXISTS would otherwise accept.
+DO
+$$
+    DECLARE
+        invalid_index TEXT;
+    BEGIN
+        FOR invalid_index IN
+            SELECT c.relname
+            FROM pg_index i
+                     JOIN pg_class c ON c.oid = i.indexrelid
+            WHERE NOT i.indisvalid
+              AND c.relname IN ('ux_users_username', 'ux_image_hosting_users_api_key', 'ux_image_hosting_users_user_id',
+                                'ux_video_upload_users_user_id', 'ux_image_hosting_user_files_user_file_name',
+                                'idx_image_hosting_user_files_created_at', 'ux_video_upload_user_files_user_file_name',
+                                'idx_video_upload_user_files_status_created_at')
+            LOOP
+                EXECUTE format('DROP INDEX %I', invalid_index);
+            END LOOP;
+    END
+$$;
+
+CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS ux_users_username
+ON users (username);
+
+CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS ux_image_hosting_users_api_key
+ON image_hosting_users (api_key);
+
+CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS ux_image_hosting_users_user_id
+ON image_hosting_users (user_id);
+
+CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS ux_video_upload_users_user_id
+ON video_upload_users (user_id);
+
+CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS ux_image_hosting_user_files_user_file_name
+ON image_hosting_user_files (image_hosting_user_id, file_name);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_image_hosting_user_files_created_at
+ON image_hosting_user_files (created_at);
+
+CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS ux_video_upload_user_files_user_file_name
+ON video_upload_user_files (video_upload_user_id, file_name) INCLUDE (upload_status);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_video_upload_user_files_status_created_at
+ON video_upload_user_files (upload_status, created_at);
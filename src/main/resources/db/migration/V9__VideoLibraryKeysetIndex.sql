@@ -0,0 +1,23 @@
+-- Runs outside a transaction (see V9__VideoLibraryKeysetIndex.sql.conf) so the index can be built CONCURRENTLY without
+-- blocking writes to the video file table. Every step below is idempotent, so a failed run can be retried.
+
+-- A concurrent build that failed leaves an invalid index behind, which IF NOT EXISTS would otherwise accept.
+DO
+$$
+    DECLARE
+        invalid_index TEXT;
+    BEGIN
+        FOR invalid_index IN
+            SELECT c.relname
+            FROM pg_index i
+                     JOIN pg_class c ON c.oid = i.indexrelid
+            WHERE NOT i.indisvalid
+              AND c.relname IN ('idx_video_upload_user_files_library')
+            LOOP
+                EXECUTE format('DROP INDEX %I', invalid_index);
+            END LOOP;
+    END
+$$;
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_video_upload_user_files_library
+ON video_upload_user_files (video_upload_user_id, upload_status, created_at DESC, id DESC);
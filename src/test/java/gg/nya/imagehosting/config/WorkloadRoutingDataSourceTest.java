@@ -0,0 +1,45 @@
+package gg.nya.imagehosting.config;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+class WorkloadRoutingDataSourceTest {
+
+    private final WorkloadRoutingDataSource dataSource =
+            new WorkloadRoutingDataSource(mock(DataSource.class), mock(DataSource.class));
+
+    @Test
+    void callingThread_usesWebPool() {
+        assertEquals("web", dataSource.determineCurrentLookupKey());
+    }
+
+    @Test
+    void markedTask_usesBackgroundPoolOnlyWhileRunning() {
+        Object[] lookupKey = new Object[1];
+        WorkloadRoutingDataSource.markAsBackground()
+                .decorate(() -> lookupKey[0] = dataSource.determineCurrentLookupKey())
+                .run();
+
+        assertEquals("background", lookupKey[0]);
+        assertEquals("web", dataSource.determineCurrentLookupKey());
+    }
+
+    @Test
+    void backgroundThreadFactory_runsEveryTaskAsBackground() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(1,
+                WorkloadRoutingDataSource.backgroundThreadFactory("test-worker"));
+        try {
+            assertEquals("background", pool.submit(dataSource::determineCurrentLookupKey).get());
+            assertEquals("background", pool.submit(dataSource::determineCurrentLookupKey).get());
+            assertTrue(pool.submit(() -> Thread.currentThread().isDaemon()).get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package gg.nya.imagehosting.config;
+
+import gg.nya.imagehosting.TestcontainersConfiguration;
+import gg.nya.imagehosting.config.WriteBehindSessionRepository.CachedSession;
+import gg.nya.imagehosting.services.CacheInvalidationService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.jdbc.JdbcTest;
+import org.springframework.cache.Cache;
+import org.springframework.cache.concurrent.ConcurrentMapCache;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.session.Session;
+import org.springframework.session.SessionRepository;
+import org.springframework.session.jdbc.JdbcIndexedSessionRepository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serial;
+import java.io.Serializable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Runs the write-behind session repository with sticky sessions against the real session tables.
+ */
+@JdbcTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Import(TestcontainersConfiguration.class)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class WriteBehindSessionRepositoryTest {
+
+    private static final Duration ACCESS_FLUSH_INTERVAL = Duration.ofMinutes(1);
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private final Cache sessionCache = new ConcurrentMapCache("sessions");
+    private final CacheInvalidationService cacheInvalidationService = mock(CacheInvalidationService.class);
+    private JdbcTemplate database;
+    private JdbcTemplate sessionJdbcTemplate;
+    private JdbcIndexedSessionRepository jdbcRepository;
+    private WriteBehindSessionRepository repository;
+
+    @BeforeEach
+    void setUp() {
+        database = new JdbcTemplate(dataSource);
+        // Spied on to count the writes of the session repositories
+        sessionJdbcTemplate = spy(new JdbcTemplate(dataSource));
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        jdbcRepository = new JdbcIndexedSessionRepository(sessionJdbcTemplate, transactionTemplate);
+        jdbcRepository.setConversionService(
+                WriteBehindSessionRepository.createConversionService(getClass().getClassLoader()));
+        repository = new WriteBehindSessionRepository(jdbcRepository, sessionJdbcTemplate,
+                JdbcIndexedSessionRepository.DEFAULT_TABLE_NAME, sessionCache, cacheInvalidationService, true,
+                ACCESS_FLUSH_INTERVAL);
+        CountingValue.serializations.set(0);
+    }
+
+    @AfterEach
+    void tearDown() {
+        database.update("DELETE FROM SPRING_SESSION");
+    }
+
+    @Test
+    void save_newSession_isWrittenAndBroadcast() {
+        CachedSession session = savedSession();
+
+        assertEquals("alice", loadFromDatabase(session.getId()).getAttribute("user"));
+        assertSame(session, sessionCache.get(session.getId(), CachedSession.class));
+        verify(cacheInvalidationService).broadcast(CacheInvalidationService.Scope.SESSION, session.getId());
+    }
+
+    @Test
+    void save_unchangedAttribute_writesNothing() {
+        CachedSession session = savedSession();
+        clearInvocations(sessionJdbcTemplate, cacheInvalidationService);
+
+        session.setAttribute("user", new String("alice"));
+        repository.save(session);
+
+        assertEquals(0, writes());
+        verifyNoInteractions(cacheInvalidationService);
+    }
+
+    @Test
+    void save_changedAttribute_isSerializedOnce() {
+        CachedSession session = savedSession();
+
+        session.setAttribute("counter", new CountingValue(1));
+        repository.save(session);
+
+        assertEquals(1, CountingValue.serializations.get());
+        assertEquals(1, loadFromDatabase(session.getId()).<CountingValue>getAttribute("counter").number);
+    }
+
+    @Test
+    void save_onlyAccessed_writesAccessTimeBehind() {
+        CachedSession session = savedSession();
+        long writtenAccessTime = lastAccessTime(session.getId());
+        clearInvocations(sessionJdbcTemplate, cacheInvalidationService);
+
+        Instant accessTime = session.getLastAccessedTime().plusSeconds(10);
+        session.setLastAccessedTime(accessTime);
+        repository.save(session);
+
+        assertEquals(0, writes());
+        assertEquals(writtenAccessTime, lastAccessTime(session.getId()));
+
+        repository.flushAccessTimes();
+
+        assertEquals(accessTime.toEpochMilli(), lastAccessTime(session.getId()));
+        verify(cacheInvalidationService).broadcastIfCapacity(CacheInvalidationService.Scope.SESSION,
+                Set.of(session.getId()));
+    }
+
+    @Test
+    void flushAccessTimes_sessionDeletedElsewhere_isEvicted() {
+        CachedSession session = savedSession();
+        session.setLastAccessedTime(session.getLastAccessedTime().plusSeconds(10));
+        repository.save(session);
+        // Logged out on another node, whose broadcast has not arrived yet
+        database.update("DELETE FROM SPRING_SESSION WHERE SESSION_ID = ?", session.getId());
+
+        repository.flushAccessTimes();
+
+        assertNull(sessionCache.get(session.getId()));
+        assertNull(repository.findById(session.getId()));
+    }
+
+    @Test
+    void cleanUpExpiredSessions_keepsSessionsWithinFlushInterval() {
+        CachedSession recentlyExpired = savedSession();
+        CachedSession longExpired = savedSession();
+        long now = Instant.now().toEpochMilli();
+        setExpiryTime(recentlyExpired.getId(), now - ACCESS_FLUSH_INTERVAL.toMillis() / 2);
+        setExpiryTime(longExpired.getId(), now - ACCESS_FLUSH_INTERVAL.toMillis() * 2);
+
+        repository.cleanUpExpiredSessions();
+
+        assertEquals(1, rowCount(recentlyExpired.getId()));
+        assertEquals(0, rowCount(longExpired.getId()));
+    }
+
+    @Test
+    void findById_expiredLocalCopy_isReloadedWhileAliveInDatabase() {
+        CachedSession session = savedSession();
+        session.setLastAccessedTime(Instant.now().minus(Duration.ofHours(2)));
+
+        CachedSession found = repository.findById(session.getId());
+
+        assertNotNull(found);
+        assertNotSame(session, found);
+        assertEquals("alice", found.getAttribute("user"));
+        assertEquals(1, rowCount(session.getId()));
+    }
+
+    @Test
+    void findById_expiredInDatabase_returnsNothing() {
+        CachedSession session = savedSession();
+        session.setLastAccessedTime(Instant.now().minus(Duration.ofHours(2)));
+        database.update("UPDATE SPRING_SESSION SET LAST_ACCESS_TIME = 0, EXPIRY_TIME = 0 WHERE SESSION_ID = ?",
+                session.getId());
+
+        assertNull(repository.findById(session.getId()));
+        assertNull(sessionCache.get(session.getId()));
+    }
+
+    @Test
+    void save_changedSessionId_dropsOldId() {
+        CachedSession session = savedSession();
+        String oldId = session.getId();
+        clearInvocations(cacheInvalidationService);
+
+        session.changeSessionId();
+        repository.save(session);
+
+        assertNull(sessionCache.get(oldId));
+        assertSame(session, sessionCache.get(session.getId(), CachedSession.class));
+        assertNull(loadFromDatabase(oldId));
+        assertNotNull(loadFromDatabase(session.getId()));
+        verify(cacheInvalidationService).broadcast(CacheInvalidationService.Scope.SESSION, oldId);
+    }
+
+    @Test
+    void deleteById_evictsAndBroadcasts() {
+        CachedSession session = savedSession();
+        clearInvocations(cacheInvalidationService);
+
+        repository.deleteById(session.getId());
+
+        assertNull(sessionCache.get(session.getId()));
+        assertEquals(0, rowCount(session.getId()));
+        verify(cacheInvalidationService).broadcast(CacheInvalidationService.Scope.SESSION, session.getId());
+    }
+
+    private CachedSession savedSession() {
+        CachedSession session = repository.createSession();
+        session.setAttribute("user", "alice");
+        repository.save(session);
+        return session;
+    }
+
+    private Session loadFromDatabase(String id) {
+        SessionRepository<? extends Session> jdbcSessions = jdbcRepository;
+        return jdbcSessions.findById(id);
+    }
+
+    private void setExpiryTime(String id, long expiryTime) {
+        database.update("UPDATE SPRING_SESSION SET EXPIRY_TIME = ? WHERE SESSION_ID = ?", expiryTime, id);
+    }
+
+    private long lastAccessTime(String id) {
+        return database.queryForObject("SELECT LAST_ACCESS_TIME FROM SPRING_SESSION WHERE SESSION_ID = ?", Long.class,
+                id);
+    }
+
+    private int rowCount(String id) {
+        return database.queryForObject("SELECT count(*) FROM SPRING_SESSION WHERE SESSION_ID = ?", Integer.class, id);
+    }
+
+    private long writes() {
+        return mockingDetails(sessionJdbcTemplate).getInvocations().stream()
+                .map(invocation -> invocation.getMethod().getName())
+                .filter(name -> name.equals("update") || name.equals("batchUpdate"))
+                .count();
+    }
+
+    /**
+     * Attribute value that counts how often it is serialized.
+     */
+    private static final class CountingValue implements Serializable {
+        @Serial
+        private static final long serialVersionUID = 1L;
+        private static final AtomicInteger serializations = new AtomicInteger();
+
+        private final int number;
+
+        private CountingValue(int number) {
+            this.number = number;
+        }
+
+        @Serial
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            serializations.incrementAndGet();
+            out.defaultWriteObject();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package gg.nya.imagehosting.models;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ByteRangeTest {
+
+    private static final long CONTENT_LENGTH = 1000;
+
+    @Test
+    void parse_withoutHeader_servesFullContent() {
+        assertNull(ByteRange.parse(null, CONTENT_LENGTH));
+        assertNull(ByteRange.parse("items=0-10", CONTENT_LENGTH));
+    }
+
+    @Test
+    void parse_closedRange() {
+        assertEquals(new ByteRange(100, 199), ByteRange.parse("bytes=100-199", CONTENT_LENGTH));
+    }
+
+    @Test
+    void parse_openRange_endsAtLastByte() {
+        assertEquals(new ByteRange(900, 999), ByteRange.parse("bytes=900-", CONTENT_LENGTH));
+    }
+
+    @Test
+    void parse_suffixRange_servesLastBytes() {
+        ByteRange range = ByteRange.parse("bytes=-100", CONTENT_LENGTH);
+        assertEquals(new ByteRange(900, 999), range);
+        assertEquals(100, range.length());
+    }
+
+    @Test
+    void parse_suffixRangeLongerThanContent_servesFullContent() {
+        assertEquals(new ByteRange(0, 999), ByteRange.parse("bytes=-5000", CONTENT_LENGTH));
+    }
+
+    @Test
+    void parse_zeroSuffixRange_isNotSatisfiable() {
+        assertNotSatisfiable("bytes=-0");
+    }
+
+    @Test
+    void parse_endBeyondContent_isClamped() {
+        assertEquals(new ByteRange(500, 999), ByteRange.parse("bytes=500-5000", CONTENT_LENGTH));
+    }
+
+    @Test
+    void parse_startBeyondContent_isNotSatisfiable() {
+        assertNotSatisfiable("bytes=1000-");
+        assertNotSatisfiable("bytes=1000-1010");
+    }
+
+    @Test
+    void parse_multipleRanges_servesFullContent() {
+        assertNull(ByteRange.parse("bytes=0-1,5-6", CONTENT_LENGTH));
+        assertNull(ByteRange.parse("bytes=0-1, -100", CONTENT_LENGTH));
+    }
+
+    @Test
+    void parse_invalidSyntax_isIgnored() {
+        assertNull(ByteRange.parse("bytes=abc", CONTENT_LENGTH));
+        assertNull(ByteRange.parse("bytes=a-b", CONTENT_LENGTH));
+        assertNull(ByteRange.parse("bytes=200-100", CONTENT_LENGTH));
+        assertNull(ByteRange.parse("bytes=-", CONTENT_LENGTH));
+    }
+
+    @Test
+    void toContentRange_formatsRangeAndLength() {
+        assertEquals("bytes 900-999/1000", ByteRange.parse("bytes=-100", CONTENT_LENGTH).toContentRange(CONTENT_LENGTH));
+    }
+
+    private void assertNotSatisfiable(String rangeHeader) {
+        ResponseStatusException e = assertThrows(ResponseStatusException.class,
+                () -> ByteRange.parse(rangeHeader, CONTENT_LENGTH));
+        assertEquals(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, e.getStatusCode());
+        assertEquals("bytes */" + CONTENT_LENGTH, e.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+    }
+}
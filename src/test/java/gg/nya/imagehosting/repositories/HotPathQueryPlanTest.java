@@ -0,0 +1,221 @@
+package gg.nya.imagehosting.repositories;
+
+import gg.nya.imagehosting.TestcontainersConfiguration;
+import gg.nya.imagehosting.models.ImageHostingUser;
+import gg.nya.imagehosting.models.User;
+import gg.nya.imagehosting.models.VideoUploadStatus;
+import gg.nya.imagehosting.models.VideoUploadUser;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.domain.Pageable;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Guards the indexes of V8, V9 and V11: every repository query on a request or job hot path is run once, and the SQL
+ * Hibernate generated for it is planned by Postgres with sequential scans disabled. Dropping an index or changing a
+ * query so it no longer matches one shows up as a missing index in the plan.
+ */
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.session_factory.statement_inspector=" +
+        "gg.nya.imagehosting.repositories.HotPathQueryPlanTest$CapturingStatementInspector")
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Import(TestcontainersConfiguration.class)
+class HotPathQueryPlanTest {
+
+    private static final String USERNAME = "planner";
+    private static final Pageable PAGE = Pageable.ofSize(20);
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private ImageHostingUserRepository imageHostingUserRepository;
+
+    @Autowired
+    private ImageHostingUserFileRepository imageHostingUserFileRepository;
+
+    @Autowired
+    private VideoUploadUserRepository videoUploadUserRepository;
+
+    @Autowired
+    private VideoUploadUserFileRepository videoUploadUserFileRepository;
+
+    private User user;
+    private ImageHostingUser imageHostingUser;
+    private VideoUploadUser videoUploadUser;
+
+    @BeforeEach
+    void setUp() {
+        user = entityManager.persistAndFlush(new User(USERNAME, "password"));
+        imageHostingUser = entityManager.persistAndFlush(new ImageHostingUser(user));
+        videoUploadUser = entityManager.persistAndFlush(new VideoUploadUser(user));
+    }
+
+    @Test
+    void findUserByUsername_usesUsernameIndex() {
+        assertUsesIndex(() -> userRepository.findByUsername(USERNAME), "ux_users_username");
+    }
+
+    @Test
+    void findUsersAfterId_usesPrimaryKey() {
+        assertUsesIndex(() -> userRepository.findByIdGreaterThanOrderByIdAsc(0L, PAGE), "users_pkey");
+    }
+
+    @Test
+    void findImageHostingUserByApiKey_usesApiKeyIndex() {
+        assertUsesIndex(() -> imageHostingUserRepository.findImageHostingUserByApiKey("key"),
+                "ux_image_hosting_users_api_key");
+    }
+
+    @Test
+    void findImageHostingUserByUser_usesUserIndex() {
+        assertUsesIndex(() -> imageHostingUserRepository.findImageHostingUserByUser(user),
+                "ux_image_hosting_users_user_id");
+    }
+
+    @Test
+    void findImageHostingUserByUsername_usesUserIndex() {
+        assertUsesIndex(() -> imageHostingUserRepository.findImageHostingUserByUsername(USERNAME),
+                "ux_image_hosting_users_user_id");
+    }
+
+    @Test
+    void findExistingFileNames_usesFileNameIndex() {
+        assertUsesIndex(() -> imageHostingUserFileRepository.findExistingFileNames(imageHostingUser,
+                Set.of("a.png", "b.png")), "ux_image_hosting_user_files_user_file_name");
+    }
+
+    @Test
+    void findChecksumByUsernameAndFileName_usesFileNameIndex() {
+        assertUsesIndex(() -> imageHostingUserFileRepository.findChecksumByUsernameAndFileName(USERNAME, "a.png"),
+                "ux_image_hosting_user_files_user_file_name");
+    }
+
+    @Test
+    void findFileNamesByUsername_usesUserIndex() {
+        assertUsesIndex(() -> imageHostingUserFileRepository.findFileNamesByUsername(USERNAME),
+                "ux_image_hosting_user_files_user_file_name", "idx_image_hosting_user_files_user_created_at");
+    }
+
+    @Test
+    void findFileNamesByUsernameCreatedSince_usesUserCreatedAtIndex() {
+        assertUsesIndex(() -> imageHostingUserFileRepository.findFileNamesByUsernameCreatedSince(USERNAME,
+                LocalDateTime.now()), "idx_image_hosting_user_files_user_created_at");
+    }
+
+    @Test
+    void findRecentFileKeys_usesCreatedAtIndex() {
+        assertUsesIndex(() -> imageHostingUserFileRepository.findRecentFileKeys(PAGE),
+                "idx_image_hosting_user_files_created_at");
+    }
+
+    @Test
+    void findByChecksum_usesChecksumIndex() {
+        assertUsesIndex(() -> imageHostingUserFileRepository.findFirstByImageHostingUserAndContentSha256AndFileSize(
+                imageHostingUser, "0".repeat(64), 1L), "idx_image_hosting_user_files_user_sha256");
+        assertUsesIndex(() -> imageHostingUserFileRepository.findByImageHostingUserAndContentSha256In(
+                imageHostingUser, List.of("0".repeat(64))), "idx_image_hosting_user_files_user_sha256");
+    }
+
+    @Test
+    void findVideoUploadUserByUsername_usesUserIndex() {
+        assertUsesIndex(() -> videoUploadUserRepository.findByUsername(USERNAME), "ux_video_upload_users_user_id");
+        assertUsesIndex(() -> videoUploadUserRepository.existsByUserUsername(USERNAME), "ux_users_username");
+    }
+
+    @Test
+    void findVideoByFileName_usesFileNameIndex() {
+        String index = "ux_video_upload_user_files_user_file_name";
+        assertUsesIndex(() -> videoUploadUserFileRepository.findByUsernameAndFileName(USERNAME, "a.mp4"), index);
+        assertUsesIndex(() -> videoUploadUserFileRepository.findPlayerViewByUsernameAndFileName(USERNAME, "a.mp4"),
+                index);
+        assertUsesIndex(() -> videoUploadUserFileRepository.existsByVideoUploadUserAndFileNameAndUploadStatus(
+                videoUploadUser, "a.mp4", VideoUploadStatus.COMPLETED), index);
+    }
+
+    @Test
+    void findLibraryItems_usesLibraryIndex() {
+        String index = "idx_video_upload_user_files_library";
+        assertUsesIndex(() -> videoUploadUserFileRepository.findLibraryItems(USERNAME, VideoUploadStatus.COMPLETED,
+                PAGE), index);
+        assertUsesIndex(() -> videoUploadUserFileRepository.findLibraryItemsAfter(USERNAME,
+                VideoUploadStatus.COMPLETED, LocalDateTime.now(), 1L, PAGE), index);
+    }
+
+    @Test
+    void findUploadsByStatus_usesStatusIndex() {
+        String index = "idx_video_upload_user_files_status_created_at";
+        assertUsesIndex(() -> videoUploadUserFileRepository.findAbandonedUploads(VideoUploadStatus.PROCESSING,
+                LocalDateTime.now(), PAGE), index);
+        assertUsesIndex(() -> videoUploadUserFileRepository.findRecentFileKeysByUploadStatus(
+                VideoUploadStatus.COMPLETED, PAGE), index);
+    }
+
+    /**
+     * Runs the given repository call and asserts that the plan of the first statement it issued contains no
+     * sequential scan and uses one of the given indexes.
+     */
+    private void assertUsesIndex(Runnable query, String... indexNames) {
+        CapturingStatementInspector.STATEMENTS.clear();
+        query.run();
+        assertFalse(CapturingStatementInspector.STATEMENTS.isEmpty(), "The query issued no statement");
+
+        String sql = CapturingStatementInspector.STATEMENTS.getFirst();
+        String plan = explain(sql);
+        assertFalse(plan.contains("Seq Scan"), () -> "Sequential scan in the plan of\n" + sql + "\n" + plan);
+        assertTrue(List.of(indexNames).stream().anyMatch(plan::contains),
+                () -> "None of " + List.of(indexNames) + " in the plan of\n" + sql + "\n" + plan);
+    }
+
+    /**
+     * Plans the given statement for arbitrary parameter values. Disabling sequential scans makes the planner pick an
+     * index whenever one applies, so the result does not depend on the (empty) table statistics.
+     */
+    private String explain(String sql) {
+        StringBuilder numbered = new StringBuilder();
+        int parameter = 0;
+        for (char c : sql.toCharArray()) {
+            if (c == '?') {
+                numbered.append('$').append(++parameter);
+            } else {
+                numbered.append(c);
+            }
+        }
+        jdbcTemplate.execute("SET LOCAL enable_seqscan = off");
+        return String.join("\n", jdbcTemplate.queryForList("EXPLAIN (GENERIC_PLAN) " + numbered, String.class));
+    }
+
+    /**
+     * Records the SQL of every select Hibernate prepares, so the plan of exactly that statement can be checked.
+     */
+    public static class CapturingStatementInspector implements StatementInspector {
+
+        static final List<String> STATEMENTS = new CopyOnWriteArrayList<>();
+
+        @Override
+        public String inspect(String sql) {
+            if (sql.stripLeading().toLowerCase().startsWith("select")) {
+                STATEMENTS.add(sql);
+            }
+            return sql;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package gg.nya.imagehosting.repositories;
+
+import gg.nya.imagehosting.TestcontainersConfiguration;
+import gg.nya.imagehosting.models.ImageHostingUser;
+import gg.nya.imagehosting.models.ImageHostingUserFile;
+import gg.nya.imagehosting.models.User;
+import org.hibernate.Session;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that image files are inserted in JDBC batches and that their sequence-drawn IDs stay unique when several
+ * nodes draw ID blocks from the same sequence. Also compares the statements per file with batching disabled, the way
+ * every file was inserted on its own before IDs were drawn in blocks, against the configured batching.
+ */
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.session_factory.statement_inspector=" +
+        "gg.nya.imagehosting.repositories.ImageFileBatchInsertTest$CapturingStatementInspector")
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Import(TestcontainersConfiguration.class)
+class ImageFileBatchInsertTest {
+
+    private static final int BATCH_SIZE = 30;
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private ImageHostingUserFileRepository imageHostingUserFileRepository;
+
+    private ImageHostingUser imageHostingUser;
+
+    private static final Logger log = LoggerFactory.getLogger(ImageFileBatchInsertTest.class);
+
+    @BeforeEach
+    void setUp() {
+        User user = entityManager.persist(new User("batcher", "password"));
+        imageHostingUser = entityManager.persistAndFlush(new ImageHostingUser(user));
+        CapturingStatementInspector.STATEMENTS.clear();
+    }
+
+    @Test
+    void saveAll_insertsBatchWithOneStatement() {
+        List<String> inserts = saveAllAndCaptureInserts("batch");
+
+        assertEquals(1, inserts.size(), () -> "Expected a single batched insert, got " + inserts);
+        assertTrue(inserts.getFirst().startsWith("insert into image_hosting_user_files"));
+    }
+
+    @Test
+    void saveAll_batchingReducesStatementsPerFile() {
+        Session session = entityManager.getEntityManager().unwrap(Session.class);
+        session.setJdbcBatchSize(1);
+        int unbatched = saveAllAndCaptureInserts("unbatched").size();
+        session.setJdbcBatchSize(null);
+        int batched = saveAllAndCaptureInserts("batched").size();
+
+        log.info("saveAll_batchingReducesStatementsPerFile, insert statements per file: {} without batching, {} with batching",
+                (double) unbatched / BATCH_SIZE, (double) batched / BATCH_SIZE);
+        assertEquals(BATCH_SIZE, unbatched, "Without batching, every file is inserted by its own statement");
+        assertEquals(1, batched, "With batching, all files are inserted by a single statement");
+    }
+
+    @Test
+    void idBlocks_doNotOverlapBetweenNodes() {
+        List<Long> ids = new ArrayList<>();
+        List<Long> otherNodeBlockEnds = new ArrayList<>();
+        for (int round = 0; round < 4; round++) {
+            List<ImageHostingUserFile> files = files("round" + round);
+            imageHostingUserFileRepository.saveAll(files);
+            entityManager.flush();
+            files.forEach(file -> ids.add(file.getId()));
+            // Another node drawing a block ends it at the returned value
+            otherNodeBlockEnds.add(jdbcTemplate.queryForObject(
+                    "SELECT nextval('image_hosting_user_files_id_seq')", Long.class));
+        }
+
+        assertEquals(ids.size(), new HashSet<>(ids).size(), "IDs must be unique");
+        for (int i = 1; i < ids.size(); i++) {
+            assertTrue(ids.get(i) > ids.get(i - 1), "IDs of one node must increase in order of persisting");
+        }
+        for (long blockEnd : otherNodeBlockEnds) {
+            long blockStart = blockEnd - ImageHostingUserFile.ID_ALLOCATION_SIZE + 1;
+            assertTrue(ids.stream().noneMatch(id -> id >= blockStart && id <= blockEnd),
+                    () -> "IDs overlap the block " + blockStart + "-" + blockEnd + " of another node: " + ids);
+        }
+    }
+
+    /**
+     * Persists a batch of files and returns the insert statements Hibernate prepared for it, leaving out the draws of
+     * new ID blocks from the sequence.
+     */
+    private List<String> saveAllAndCaptureInserts(String prefix) {
+        CapturingStatementInspector.STATEMENTS.clear();
+        imageHostingUserFileRepository.saveAll(files(prefix));
+        entityManager.flush();
+        return CapturingStatementInspector.STATEMENTS.stream()
+                .filter(sql -> !sql.contains("nextval"))
+                .toList();
+    }
+
+    private List<ImageHostingUserFile> files(String prefix) {
+        return IntStream.range(0, BATCH_SIZE).mapToObj(i -> {
+            ImageHostingUserFile file = new ImageHostingUserFile();
+            file.setImageHostingUser(imageHostingUser);
+            file.setFileName(prefix + i + ".png");
+            file.setFileSize(1L);
+            file.setCreatedAt(LocalDateTime.now());
+            return file;
+        }).toList();
+    }
+
+    /**
+     * Records the SQL of every statement Hibernate prepares. A batch is prepared once and executed for all its rows.
+     */
+    public static class CapturingStatementInspector implements StatementInspector {
+
+        static final List<String> STATEMENTS = new CopyOnWriteArrayList<>();
+
+        @Override
+        public String inspect(String sql) {
+            STATEMENTS.add(sql);
+            return sql;
+        }
+    }
+}
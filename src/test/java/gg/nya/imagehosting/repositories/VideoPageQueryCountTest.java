@@ -0,0 +1,115 @@
+package gg.nya.imagehosting.repositories;
+
+import gg.nya.imagehosting.TestcontainersConfiguration;
+import gg.nya.imagehosting.models.*;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.domain.Pageable;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Counts the statements behind the video pages with Hibernate statistics. The owner has roles, which are fetched
+ * eagerly with every loaded user, so any entity sneaking back into these queries shows up as extra statements.
+ */
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.generate_statistics=true")
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Import(TestcontainersConfiguration.class)
+class VideoPageQueryCountTest {
+
+    private static final String USERNAME = "viewer";
+    private static final int VIDEO_COUNT = 5;
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    @Autowired
+    private RoleRepository roleRepository;
+
+    @Autowired
+    private VideoUploadUserFileRepository videoUploadUserFileRepository;
+
+    private Statistics statistics;
+
+    @BeforeEach
+    void setUp() {
+        User user = new User(USERNAME, "password");
+        user.getRoles().addAll(roleRepository.findAll());
+        entityManager.persist(user);
+        VideoUploadUser videoUploadUser = entityManager.persist(new VideoUploadUser(user));
+
+        LocalDateTime createdAt = LocalDateTime.now().minusDays(1);
+        for (int i = 0; i < VIDEO_COUNT; i++) {
+            entityManager.persist(video(videoUploadUser, "video" + i, VideoUploadStatus.COMPLETED,
+                    createdAt.plusMinutes(i)));
+        }
+        entityManager.persist(video(videoUploadUser, "pending", VideoUploadStatus.PROCESSING, createdAt));
+        entityManager.flush();
+        entityManager.clear();
+
+        statistics = entityManager.getEntityManager().getEntityManagerFactory().unwrap(SessionFactory.class)
+                .getStatistics();
+        statistics.clear();
+    }
+
+    @Test
+    void libraryPages_costOneStatementEach() {
+        List<VideoLibraryItem> firstPage = videoUploadUserFileRepository.findLibraryItems(USERNAME,
+                VideoUploadStatus.COMPLETED, Pageable.ofSize(3));
+        assertEquals(List.of("video4", "video3", "video2"), firstPage.stream().map(VideoLibraryItem::fileName).toList());
+        assertEquals(1, statistics.getPrepareStatementCount());
+
+        statistics.clear();
+        VideoLibraryCursor cursor = VideoLibraryCursor.after(firstPage.getLast());
+        List<VideoLibraryItem> secondPage = videoUploadUserFileRepository.findLibraryItemsAfter(USERNAME,
+                VideoUploadStatus.COMPLETED, cursor.createdAt(), cursor.id(), Pageable.ofSize(3));
+        assertEquals(List.of("video1", "video0"), secondPage.stream().map(VideoLibraryItem::fileName).toList());
+        assertEquals(1, statistics.getPrepareStatementCount());
+        assertEquals(0, statistics.getEntityLoadCount());
+    }
+
+    @Test
+    void playerPage_costsOneStatement() {
+        Optional<VideoPlayerView> view = videoUploadUserFileRepository.findPlayerViewByUsernameAndFileName(USERNAME,
+                "video0");
+
+        assertTrue(view.isPresent());
+        assertEquals(USERNAME, view.get().displayName());
+        assertEquals(1, statistics.getPrepareStatementCount());
+        assertEquals(0, statistics.getEntityLoadCount());
+    }
+
+    @Test
+    void abandonedUploadBatch_costsOneStatement() {
+        List<AbandonedVideoUpload> abandoned = videoUploadUserFileRepository.findAbandonedUploads(
+                VideoUploadStatus.PROCESSING, LocalDateTime.now(), Pageable.ofSize(10));
+
+        assertEquals(1, abandoned.size());
+        assertEquals(1, statistics.getPrepareStatementCount());
+        assertEquals(0, statistics.getEntityLoadCount());
+    }
+
+    private static VideoUploadUserFile video(VideoUploadUser videoUploadUser, String fileName,
+                                             VideoUploadStatus status, LocalDateTime createdAt) {
+        VideoUploadUserFile file = new VideoUploadUserFile();
+        file.setVideoUploadUser(videoUploadUser);
+        file.setFileName(fileName);
+        file.setFileSize(1L);
+        file.setVideoTitle(fileName);
+        file.setCreatedAt(createdAt);
+        file.setUploadStatus(status);
+        file.setOriginalExtension("mp4");
+        return file;
+    }
+}
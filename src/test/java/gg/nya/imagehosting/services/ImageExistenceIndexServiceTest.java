@@ -0,0 +1,86 @@
+package gg.nya.imagehosting.services;
+
+import gg.nya.imagehosting.repositories.ImageHostingUserFileRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class ImageExistenceIndexServiceTest {
+
+    private static final String USERNAME = "uploader";
+    private static final Duration REFRESH_OVERLAP = Duration.ofMinutes(1);
+
+    private final List<Row> committedRows = new ArrayList<>();
+    private ImageHostingUserFileRepository repository;
+    private ImageExistenceIndexService service;
+
+    private record Row(String fileName, LocalDateTime createdAt) {
+    }
+
+    @BeforeEach
+    void setUp() {
+        repository = mock(ImageHostingUserFileRepository.class);
+        when(repository.findFileNamesByUsername(USERNAME)).thenAnswer(invocation ->
+                committedRows.stream().map(Row::fileName).toList());
+        when(repository.findFileNamesByUsernameCreatedSince(eq(USERNAME), any())).thenAnswer(invocation -> {
+            LocalDateTime since = invocation.getArgument(1);
+            return committedRows.stream().filter(row -> !row.createdAt().isBefore(since)).map(Row::fileName).toList();
+        });
+
+        service = new ImageExistenceIndexService(repository);
+        ReflectionTestUtils.setField(service, "enabled", true);
+        ReflectionTestUtils.setField(service, "refreshOverlap", REFRESH_OVERLAP);
+        ReflectionTestUtils.setField(service, "rebuildInterval", Duration.ofHours(1));
+        ReflectionTestUtils.setField(service, "maxUsers", 10L);
+        service.init();
+    }
+
+    @Test
+    void isDefinitelyMissing_refreshesOnEveryMiss() {
+        committedRows.add(new Row("first.png", LocalDateTime.now()));
+        assertTrue(service.isDefinitelyMissing(USERNAME, "second.png"));
+
+        // Uploaded on another node right after the previous refresh
+        committedRows.add(new Row("second.png", LocalDateTime.now()));
+
+        assertFalse(service.isDefinitelyMissing(USERNAME, "second.png"));
+    }
+
+    @Test
+    void refresh_findsRowStampedBeforePreviousRefreshButCommittedAfter() {
+        LocalDateTime stampedAt = LocalDateTime.now();
+        committedRows.add(new Row("first.png", stampedAt));
+        assertTrue(service.isDefinitelyMissing(USERNAME, "late.png"));
+
+        // Stamped before the index was built, but committed only afterwards, on another node with a slower clock
+        committedRows.add(new Row("late.png", stampedAt.minus(REFRESH_OVERLAP.dividedBy(2))));
+
+        assertFalse(service.isDefinitelyMissing(USERNAME, "late.png"));
+    }
+
+    @Test
+    void refresh_rereadsOverlapBeforePreviousRefresh() {
+        LocalDateTime beforeBuild = LocalDateTime.now();
+        service.isDefinitelyMissing(USERNAME, "first.png");
+        LocalDateTime afterBuild = LocalDateTime.now();
+
+        service.isDefinitelyMissing(USERNAME, "missing.png");
+
+        ArgumentCaptor<LocalDateTime> since = ArgumentCaptor.forClass(LocalDateTime.class);
+        verify(repository).findFileNamesByUsername(USERNAME);
+        verify(repository).findFileNamesByUsernameCreatedSince(eq(USERNAME), since.capture());
+        assertFalse(since.getValue().isBefore(beforeBuild.minus(REFRESH_OVERLAP)));
+        assertFalse(since.getValue().isAfter(afterBuild.minus(REFRESH_OVERLAP)));
+    }
+}